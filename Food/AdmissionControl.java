@@ -0,0 +1,218 @@
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+    private static final Metrics.Counter CONCURRENCY_REJECTIONS = Metrics.getInstance().counter("food_admission_rejected_total", "Requests shed by admission control.", "reason", "concurrency");
+
+    enum Operation {
+        LOGIN(0.2, 5, 50, 100),
+        SIGNUP(0, 0, 10, 20),
+        CHECKOUT(2, 10, 200, 400),
+        ACCEPT(5, 20, 200, 400);
+
+        private final Bucket user;
+        private final Bucket address;
+        private final Metrics.Counter userRejections;
+        private final Metrics.Counter addressRejections;
+
+        Operation(double userRate, int userBurst, double addressRate, int addressBurst) {
+            String prefix = "food.admission." + name().toLowerCase(Locale.ROOT);
+            user = Bucket.of(Double.parseDouble(System.getProperty(prefix + ".userRate", Double.toString(userRate))),
+                    Integer.getInteger(prefix + ".userBurst", userBurst));
+            address = Bucket.of(Double.parseDouble(System.getProperty(prefix + ".ipRate", Double.toString(addressRate))),
+                    Integer.getInteger(prefix + ".ipBurst", addressBurst));
+            userRejections = Metrics.getInstance().counter("food_admission_rejected_total", "Requests shed by admission control.", "reason", name().toLowerCase(Locale.ROOT) + "_user");
+            addressRejections = Metrics.getInstance().counter("food_admission_rejected_total", "Requests shed by admission control.", "reason", name().toLowerCase(Locale.ROOT) + "_ip");
+        }
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> arrivals = new ConcurrentHashMap<>();
+    private final AdaptiveLimiter limiter;
+    private final ScheduledExecutorService sweeper;
+
+    public AdmissionControl() {
+        this(new AdaptiveLimiter(Integer.getInteger("food.admission.initialLimit", 128),
+                Integer.getInteger("food.admission.minLimit", 16),
+                Integer.getInteger("food.admission.maxLimit", 1024),
+                Long.getLong("food.admission.targetLatencyMs", 100L),
+                Double.parseDouble(System.getProperty("food.admission.backoff", "0.9"))));
+    }
+
+    public AdmissionControl(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+        Metrics.getInstance().gauge("food_admission_concurrency_limit", "Current adaptive limit on concurrent order writes.", limiter::getLimit);
+        Metrics.getInstance().gauge("food_admission_in_flight", "Order writes currently admitted.", limiter::getInFlight);
+        Metrics.getInstance().gauge("food_admission_tracked_keys", "Users and addresses with a partly drained rate bucket.", arrivals::size);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admission-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 60, 60, TimeUnit.SECONDS);
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    public boolean admit(Operation operation, String username, String address) {
+        if (address != null && !tryTake(operation.address, operation.name() + "/ip/" + address)) {
+            operation.addressRejections.increment();
+            logger.debug("Rejected {} from {}: address rate exceeded", operation, address);
+            return false;
+        }
+        if (username != null && !tryTake(operation.user, operation.name() + "/user/" + username)) {
+            operation.userRejections.increment();
+            logger.debug("Rejected {} for {}: user rate exceeded", operation, username);
+            return false;
+        }
+        return true;
+    }
+
+    public void check(Operation operation, String username, String address) {
+        if (!admit(operation, username, address)) {
+            throw new RateLimitedException(operation);
+        }
+    }
+
+    private boolean tryTake(Bucket bucket, String key) {
+        if (bucket == null) {
+            return true;
+        }
+        AtomicLong arrival = arrivals.get(key);
+        if (arrival == null) {
+            arrival = arrivals.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long theoretical = arrival.get();
+            long base = theoretical - now > 0 ? theoretical : now;
+            if (base - now > bucket.toleranceNanos) {
+                return false;
+            }
+            if (arrival.compareAndSet(theoretical, base + bucket.intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        arrivals.entrySet().removeIf(entry -> entry.getValue().get() - now <= 0);
+    }
+
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    static final class RateLimitedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+
+        RateLimitedException(Operation operation) {
+            super(operation + " rate exceeded");
+            this.operation = operation;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+    }
+
+    private static final class Bucket {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+
+        private Bucket(long intervalNanos, long toleranceNanos) {
+            this.intervalNanos = intervalNanos;
+            this.toleranceNanos = toleranceNanos;
+        }
+
+        static Bucket of(double ratePerSecond, int burst) {
+            if (!(ratePerSecond > 0)) {
+                return null;
+            }
+            long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+            return new Bucket(interval, interval * (Math.max(1, burst) - 1));
+        }
+    }
+
+    static final class AdaptiveLimiter {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong limitBits;
+        private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime());
+        private final int minLimit;
+        private final int maxLimit;
+        private final long targetNanos;
+        private final double backoff;
+
+        AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMillis, double backoff) {
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.targetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetLatencyMillis));
+            this.backoff = Math.min(0.99, Math.max(0.1, backoff));
+            limitBits = new AtomicLong(Double.doubleToLongBits(Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit))));
+        }
+
+        public long getLimit() {
+            return (long) Double.longBitsToDouble(limitBits.get());
+        }
+
+        public long getInFlight() {
+            return inFlight.get();
+        }
+
+        public boolean tryAcquire() {
+            int limit = (int) getLimit();
+            while (true) {
+                int current = inFlight.get();
+                if (current >= limit) {
+                    CONCURRENCY_REJECTIONS.increment();
+                    return false;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() {
+            inFlight.decrementAndGet();
+        }
+
+        public void onLatency(long startNanos, long latencyNanos) {
+            boolean slow = latencyNanos > targetNanos;
+            if (slow) {
+                // Writes that overlapped the last cut saw the same overload, so they do not cut again
+                long decreasedAt = lastDecreaseNanos.get();
+                if (startNanos - decreasedAt < 0 || !lastDecreaseNanos.compareAndSet(decreasedAt, startNanos + latencyNanos)) {
+                    return;
+                }
+            }
+            while (true) {
+                long bits = limitBits.get();
+                double limit = Double.longBitsToDouble(bits);
+                double next;
+                if (slow) {
+                    next = Math.max(minLimit, limit * backoff);
+                } else if (inFlight.get() * 2 >= limit) {
+                    next = Math.min(maxLimit, limit + 1 / limit);
+                } else {
+                    return;
+                }
+                if (next == limit || limitBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class BatchDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(BatchDispatcher.class);
+    private static final Metrics.Histogram BATCH_LATENCY = Metrics.getInstance().histogram("food_dispatch_batch_seconds", "Time spent collecting, solving and applying one dispatch batch.");
+    private static final Metrics.Histogram SOLVE_LATENCY = Metrics.getInstance().histogram("food_dispatch_batch_solve_seconds", "Time spent solving the assignment problem for one dispatch batch.");
+    private static final Metrics.Counter ASSIGNED = Metrics.getInstance().counter("food_dispatch_batch_assigned_total", "Orders assigned by the batch dispatcher.");
+    private static final Metrics.Counter COST = Metrics.getInstance().counter("food_dispatch_batch_cost_meters_total", "Summed distance and load cost of batch assignments, in metres.");
+
+    private static final double NO_EDGE = 1e9;
+    private static final double UNASSIGNED = 1e6;
+
+    interface Assigner {
+        boolean assign(Order order, DeliveryPerson deliveryPerson);
+    }
+
+    private final CourierDispatcher dispatcher;
+    private final Assigner assigner;
+    private final int maxOrders;
+    private final int candidatesPerOrder;
+    private final double fallbackCostKm;
+    private final double loadWeightKm;
+    private final int parallelThreshold;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong assigned = new AtomicLong();
+    private final AtomicLong costMeters = new AtomicLong();
+    private volatile long lastBatchOrders;
+    private volatile long lastBatchMeters;
+
+    public BatchDispatcher(CourierDispatcher dispatcher, Assigner assigner) {
+        this(dispatcher, assigner,
+                Long.getLong("food.dispatch.batch.windowMs", 2000L),
+                Integer.getInteger("food.dispatch.batch.maxOrders", 256),
+                Integer.getInteger("food.dispatch.batch.candidates", 8),
+                Double.parseDouble(System.getProperty("food.dispatch.maxRadiusKm", "15")),
+                Double.parseDouble(System.getProperty("food.dispatch.batch.loadWeightKm", "1.0")),
+                Integer.getInteger("food.dispatch.batch.parallelThreshold", 64));
+    }
+
+    public BatchDispatcher(CourierDispatcher dispatcher, Assigner assigner, long windowMillis, int maxOrders,
+                           int candidatesPerOrder, double fallbackCostKm, double loadWeightKm, int parallelThreshold) {
+        this.dispatcher = dispatcher;
+        this.assigner = assigner;
+        this.maxOrders = Math.max(1, maxOrders);
+        this.candidatesPerOrder = Math.max(1, candidatesPerOrder);
+        this.fallbackCostKm = fallbackCostKm;
+        this.loadWeightKm = loadWeightKm;
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+        this.windowMillis = Math.max(1, windowMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-dispatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, this.windowMillis, this.windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public String getStats() {
+        return String.format("batches=%d, assigned=%d, meanCost=%.2fkm, lastBatch=%d orders/%.2fkm",
+                batches.get(), assigned.get(), assigned.get() == 0 ? 0 : costMeters.get() / 1000.0 / assigned.get(),
+                lastBatchOrders, lastBatchMeters / 1000.0);
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tick() {
+        try {
+            dispatchPending();
+        } catch (RuntimeException e) {
+            logger.error("Error running a dispatch batch", e);
+        }
+    }
+
+    int dispatchPending() {
+        List<Order> orders = OrderManager.getPendingOrders();
+        if (orders.isEmpty() || dispatcher.getAvailableCount() == 0) {
+            return 0;
+        }
+        long start = BATCH_LATENCY.start();
+        if (orders.size() > maxOrders) {
+            orders = new ArrayList<>(orders.subList(0, maxOrders));
+        }
+        List<Problem> problems = partition(orders);
+        long solveStart = SOLVE_LATENCY.start();
+        boolean parallel = orders.size() >= parallelThreshold && problems.size() > 1;
+        List<int[]> solutions = (parallel ? problems.parallelStream() : problems.stream())
+                .map(Problem::solve)
+                .collect(Collectors.toList());
+        SOLVE_LATENCY.stop(solveStart);
+        int count = 0;
+        double cost = 0;
+        for (int p = 0; p < problems.size(); p++) {
+            Problem problem = problems.get(p);
+            int[] solution = solutions.get(p);
+            for (int row = 0; row < solution.length; row++) {
+                int column = solution[row];
+                if (column < 0 || problem.cost[row][column] >= UNASSIGNED) {
+                    continue;
+                }
+                if (assigner.assign(problem.orders.get(row), problem.couriers.get(column))) {
+                    count++;
+                    cost += problem.cost[row][column];
+                }
+            }
+        }
+        BATCH_LATENCY.stop(start);
+        long meters = Math.round(cost * 1000);
+        batches.incrementAndGet();
+        assigned.addAndGet(count);
+        costMeters.addAndGet(meters);
+        ASSIGNED.add(count);
+        COST.add(meters);
+        lastBatchOrders = orders.size();
+        lastBatchMeters = meters;
+        logger.debug("Dispatched {} of {} pending orders in {} subproblem(s), cost {} km",
+                count, orders.size(), problems.size(), meters / 1000.0);
+        return count;
+    }
+
+    private List<Problem> partition(List<Order> orders) {
+        List<List<DeliveryPerson>> candidates = new ArrayList<>(orders.size());
+        List<Integer> fallbackOrders = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            GeoPoint destination = orders.get(i).getDeliveryLocation();
+            List<DeliveryPerson> nearest = destination == null ? new ArrayList<>()
+                    : dispatcher.nearestAvailable(destination, candidatesPerOrder);
+            if (nearest.isEmpty()) {
+                fallbackOrders.add(i);
+            }
+            candidates.add(nearest);
+        }
+        if (!fallbackOrders.isEmpty()) {
+            List<DeliveryPerson> fallback = dispatcher.firstAvailable(fallbackOrders.size());
+            for (int i : fallbackOrders) {
+                candidates.set(i, fallback);
+            }
+        }
+        int[] parent = new int[orders.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        Map<DeliveryPerson, Integer> firstOrder = new HashMap<>();
+        for (int i = 0; i < orders.size(); i++) {
+            for (DeliveryPerson courier : candidates.get(i)) {
+                Integer other = firstOrder.putIfAbsent(courier, i);
+                if (other != null) {
+                    parent[find(parent, i)] = find(parent, other);
+                }
+            }
+        }
+        Map<Integer, List<Integer>> components = new LinkedHashMap<>();
+        for (int i = 0; i < orders.size(); i++) {
+            if (!candidates.get(i).isEmpty()) {
+                components.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(i);
+            }
+        }
+        List<Problem> problems = new ArrayList<>(components.size());
+        for (List<Integer> rows : components.values()) {
+            problems.add(buildProblem(orders, candidates, rows));
+        }
+        return problems;
+    }
+
+    private Problem buildProblem(List<Order> orders, List<List<DeliveryPerson>> candidates, List<Integer> rows) {
+        Map<DeliveryPerson, Integer> columns = new LinkedHashMap<>();
+        int minLoad = Integer.MAX_VALUE;
+        for (int i : rows) {
+            for (DeliveryPerson courier : candidates.get(i)) {
+                if (columns.putIfAbsent(courier, columns.size()) == null) {
+                    minLoad = Math.min(minLoad, load(courier));
+                }
+            }
+        }
+        List<Order> problemOrders = new ArrayList<>(rows.size());
+        List<DeliveryPerson> couriers = new ArrayList<>(columns.keySet());
+        double[][] cost = new double[rows.size()][couriers.size()];
+        for (int r = 0; r < rows.size(); r++) {
+            Order order = orders.get(rows.get(r));
+            problemOrders.add(order);
+            Arrays.fill(cost[r], NO_EDGE);
+            GeoPoint destination = order.getDeliveryLocation();
+            for (DeliveryPerson courier : candidates.get(rows.get(r))) {
+                GeoPoint location = courier.getLocation();
+                double distance = destination != null && location != null ? destination.distanceKm(location) : fallbackCostKm;
+                cost[r][columns.get(courier)] = distance + loadWeightKm * (load(courier) - minLoad);
+            }
+        }
+        return new Problem(problemOrders, couriers, cost);
+    }
+
+    private static int load(DeliveryPerson courier) {
+        return courier.getActiveDeliveries() + courier.getCompletedDeliveries();
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    static int[] solve(double[][] cost, int columns) {
+        int rows = cost.length;
+        int width = columns + rows;
+        double[] u = new double[rows + 1];
+        double[] v = new double[width + 1];
+        int[] owner = new int[width + 1];
+        int[] way = new int[width + 1];
+        double[] minimum = new double[width + 1];
+        boolean[] used = new boolean[width + 1];
+        for (int row = 1; row <= rows; row++) {
+            owner[0] = row;
+            int column = 0;
+            Arrays.fill(minimum, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[column] = true;
+                int current = owner[column];
+                double delta = Double.POSITIVE_INFINITY;
+                int next = 0;
+                for (int j = 1; j <= width; j++) {
+                    if (used[j]) {
+                        continue;
+                    }
+                    double reduced = (j <= columns ? cost[current - 1][j - 1] : UNASSIGNED) - u[current] - v[j];
+                    if (reduced < minimum[j]) {
+                        minimum[j] = reduced;
+                        way[j] = column;
+                    }
+                    if (minimum[j] < delta) {
+                        delta = minimum[j];
+                        next = j;
+                    }
+                }
+                for (int j = 0; j <= width; j++) {
+                    if (used[j]) {
+                        u[owner[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minimum[j] -= delta;
+                    }
+                }
+                column = next;
+            } while (owner[column] != 0);
+            do {
+                int previous = way[column];
+                owner[column] = owner[previous];
+                column = previous;
+            } while (column != 0);
+        }
+        int[] assignment = new int[rows];
+        Arrays.fill(assignment, -1);
+        for (int j = 1; j <= columns; j++) {
+            if (owner[j] != 0) {
+                assignment[owner[j] - 1] = j - 1;
+            }
+        }
+        return assignment;
+    }
+
+    private static final class Problem {
+        private final List<Order> orders;
+        private final List<DeliveryPerson> couriers;
+        private final double[][] cost;
+
+        Problem(List<Order> orders, List<DeliveryPerson> couriers, double[][] cost) {
+            this.orders = orders;
+            this.couriers = couriers;
+            this.cost = cost;
+        }
+
+        int[] solve() {
+            return BatchDispatcher.solve(cost, couriers.size());
+        }
+    }
+}
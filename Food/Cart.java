@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+class Cart {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] itemIds;
+    private int[] quantities;
+    private long[] unitPriceCents;
+    private FoodItem[] items;
+    private int[] index;
+    private int size;
+    private long totalCents;
+
+    public Cart() {
+        itemIds = new int[INITIAL_CAPACITY];
+        quantities = new int[INITIAL_CAPACITY];
+        unitPriceCents = new long[INITIAL_CAPACITY];
+        items = new FoodItem[INITIAL_CAPACITY];
+        index = new int[INITIAL_CAPACITY * 2];
+    }
+
+    public void add(FoodItem item, int quantity) {
+        int line = find(item);
+        if (line < 0) {
+            line = append(item);
+        }
+        quantities[line] += quantity;
+        totalCents += unitPriceCents[line] * quantity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getItemId(int line) {
+        return itemIds[line];
+    }
+
+    public FoodItem getItem(int line) {
+        return items[line];
+    }
+
+    public int getQuantity(int line) {
+        return quantities[line];
+    }
+
+    public long getUnitPriceCents(int line) {
+        return unitPriceCents[line];
+    }
+
+    public long getTotalCents() {
+        return totalCents;
+    }
+
+    private int find(FoodItem item) {
+        int id = item.getId();
+        if (id == 0) {
+            for (int line = 0; line < size; line++) {
+                if (items[line] == item) {
+                    return line;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = mix(id) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int line = index[slot] - 1;
+            if (itemIds[line] == id) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    private int append(FoodItem item) {
+        if (size == itemIds.length) {
+            grow();
+        }
+        int line = size++;
+        itemIds[line] = item.getId();
+        unitPriceCents[line] = item.getPriceCents();
+        items[line] = item;
+        if (item.getId() != 0) {
+            insertIndex(line);
+        }
+        return line;
+    }
+
+    private void grow() {
+        int capacity = itemIds.length * 2;
+        itemIds = Arrays.copyOf(itemIds, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        unitPriceCents = Arrays.copyOf(unitPriceCents, capacity);
+        items = Arrays.copyOf(items, capacity);
+        index = new int[capacity * 2];
+        for (int line = 0; line < size; line++) {
+            if (itemIds[line] != 0) {
+                insertIndex(line);
+            }
+        }
+    }
+
+    private void insertIndex(int line) {
+        int mask = index.length - 1;
+        int slot = mix(itemIds[line]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = line + 1;
+    }
+
+    private static int mix(int id) {
+        int hash = id * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
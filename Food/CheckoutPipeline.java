@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class CheckoutPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(CheckoutPipeline.class);
+
+    interface Persister {
+        void persist(List<Order> orders) throws SQLException, IOException;
+    }
+
+    private final MenuCatalog menuCatalog;
+    private final Persister persister;
+    private final long handoffTimeoutNanos;
+    private final Set<Order> inFlight = ConcurrentHashMap.newKeySet();
+    private final Stage validate;
+    private final Stage price;
+    private final Stage persist;
+    private final Stage publish;
+    private volatile boolean closed;
+
+    public CheckoutPipeline(MenuCatalog menuCatalog, Persister persister) {
+        this(menuCatalog, persister,
+                Integer.getInteger("food.checkout.queueCapacity", 1024),
+                Integer.getInteger("food.checkout.persistThreads", 1),
+                Integer.getInteger("food.checkout.maxBatch", 64),
+                Long.getLong("food.checkout.handoffTimeoutMs", 100L));
+    }
+
+    public CheckoutPipeline(MenuCatalog menuCatalog, Persister persister, int queueCapacity, int persistThreads,
+                            int maxBatchSize, long handoffTimeoutMillis) {
+        this.menuCatalog = menuCatalog;
+        this.persister = persister;
+        this.handoffTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, handoffTimeoutMillis));
+        int capacity = Math.max(1, queueCapacity);
+        validate = new Stage("validate", capacity, 1, maxBatchSize, this::validate);
+        price = new Stage("price", capacity, 1, maxBatchSize, this::price);
+        persist = new Stage("persist", capacity, persistThreads, maxBatchSize, this::persist);
+        publish = new Stage("publish", capacity, 1, maxBatchSize, this::publish);
+    }
+
+    public CompletableFuture<FoodOrderingService.CheckoutResult> submit(Order order) {
+        Job job = new Job(order);
+        if (closed) {
+            finish(job, FoodOrderingService.CheckoutStatus.FAILED);
+        } else if (!inFlight.add(order)) {
+            job.future.complete(new FoodOrderingService.CheckoutResult(FoodOrderingService.CheckoutStatus.ALREADY_PLACED,
+                    order, Collections.emptyList()));
+        } else if (!validate.queue.offer(job)) {
+            validate.reject(job);
+        }
+        return job.future;
+    }
+
+    public int getQueueDepth() {
+        return validate.queue.size() + price.queue.size() + persist.queue.size() + publish.queue.size();
+    }
+
+    public void close() {
+        closed = true;
+        validate.stop();
+        price.stop();
+        persist.stop();
+        publish.stop();
+    }
+
+    private void validate(List<Job> batch) {
+        for (Job job : batch) {
+            Order order = job.order;
+            if (order.getStatus() != OrderStatus.NEW) {
+                finish(job, FoodOrderingService.CheckoutStatus.ALREADY_PLACED);
+            } else if (order.getCart().isEmpty()) {
+                finish(job, FoodOrderingService.CheckoutStatus.EMPTY_CART);
+            } else {
+                forward(job, price);
+            }
+        }
+    }
+
+    private void price(List<Job> batch) {
+        for (Job job : batch) {
+            List<FoodItem> changedItems = menuCatalog.findChangedItems(job.order);
+            if (!changedItems.isEmpty()) {
+                finish(job, FoodOrderingService.CheckoutStatus.MENU_CHANGED, changedItems);
+            } else {
+                forward(job, persist);
+            }
+        }
+    }
+
+    private void persist(List<Job> batch) {
+        if (save(batch)) {
+            for (Job job : batch) {
+                handOff(job);
+            }
+        } else {
+            retry(batch);
+        }
+    }
+
+    // Unsaved orders are retried together, halving on each failure so that one bad order fails on its own
+    private void retry(List<Job> batch) {
+        List<Job> unsaved = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            if (!isSaved(job.order)) {
+                unsaved.add(job);
+            } else {
+                handOff(job);
+            }
+        }
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        if (save(unsaved)) {
+            for (Job job : unsaved) {
+                handOff(job);
+            }
+        } else if (unsaved.size() == 1) {
+            Job job = unsaved.get(0);
+            if (isSaved(job.order)) {
+                handOff(job);
+            } else {
+                finish(job, FoodOrderingService.CheckoutStatus.FAILED);
+            }
+        } else {
+            int middle = unsaved.size() / 2;
+            retry(unsaved.subList(0, middle));
+            retry(unsaved.subList(middle, unsaved.size()));
+        }
+    }
+
+    private static boolean isSaved(Order order) {
+        return order.getId() != 0 || order.getDuplicateOf() != null;
+    }
+
+    private boolean save(List<Job> batch) {
+        List<Order> orders = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            orders.add(job.order);
+        }
+        try {
+            persister.persist(orders);
+            return true;
+        } catch (SQLException | IOException e) {
+            if (batch.size() == 1) {
+                logger.error("Error saving order", e);
+            } else {
+                logger.warn("Error saving a batch of {} orders, retrying", batch.size(), e);
+            }
+            return false;
+        }
+    }
+
+    private void publish(List<Job> batch) {
+        for (Job job : batch) {
+            Order original = job.order.getDuplicateOf();
+            if (original != null) {
+                inFlight.remove(job.order);
+                job.future.complete(new FoodOrderingService.CheckoutResult(FoodOrderingService.CheckoutStatus.PLACED,
+                        original, Collections.emptyList()));
+                continue;
+            }
+            if (!OrderManager.placeOrder(job.order)) {
+                finish(job, FoodOrderingService.CheckoutStatus.ALREADY_PLACED);
+                continue;
+            }
+            menuCatalog.recordSales(job.order.getCart());
+            finish(job, FoodOrderingService.CheckoutStatus.PLACED);
+        }
+    }
+
+    private void forward(Job job, Stage next) {
+        try {
+            if (!next.queue.offer(job, handoffTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                next.reject(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(job, FoodOrderingService.CheckoutStatus.FAILED);
+        }
+    }
+
+    private void handOff(Job job) {
+        try {
+            publish.queue.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            publish(Collections.singletonList(job));
+        }
+    }
+
+    private void finish(Job job, FoodOrderingService.CheckoutStatus status) {
+        finish(job, status, Collections.emptyList());
+    }
+
+    private void finish(Job job, FoodOrderingService.CheckoutStatus status, List<FoodItem> changedItems) {
+        inFlight.remove(job.order);
+        job.future.complete(new FoodOrderingService.CheckoutResult(status, job.order, changedItems));
+    }
+
+    private static final class Job {
+        private final Order order;
+        private final CompletableFuture<FoodOrderingService.CheckoutResult> future = new CompletableFuture<>();
+
+        Job(Order order) {
+            this.order = order;
+        }
+    }
+
+    private final class Stage {
+        private final String name;
+        private final BlockingQueue<Job> queue;
+        private final Thread[] workers;
+        private final int maxBatchSize;
+        private final Consumer<List<Job>> handler;
+        private final Metrics.Counter rejected;
+        private volatile boolean running = true;
+
+        Stage(String name, int capacity, int threads, int maxBatchSize, Consumer<List<Job>> handler) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            this.handler = handler;
+            this.rejected = Metrics.getInstance().counter("food_checkout_rejected_total",
+                    "Checkouts rejected because a pipeline stage was full.", "stage", name);
+            Metrics.getInstance().gauge("food_checkout_queue_depth", "Checkouts waiting in each pipeline stage.", "stage", name, queue::size);
+            workers = new Thread[Math.max(1, threads)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Thread(this::run, "checkout-" + name + (workers.length > 1 ? "-" + i : ""));
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+        }
+
+        void reject(Job job) {
+            rejected.increment();
+            logger.debug("Checkout {} stage is full, rejecting order", name);
+            finish(job, FoodOrderingService.CheckoutStatus.BUSY);
+        }
+
+        void stop() {
+            running = false;
+            for (Thread worker : workers) {
+                try {
+                    worker.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Job job;
+            while ((job = queue.poll()) != null) {
+                finish(job, FoodOrderingService.CheckoutStatus.FAILED);
+            }
+        }
+
+        private void run() {
+            List<Job> batch = new ArrayList<>(maxBatchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    handler.accept(batch);
+                } catch (InterruptedException e) {
+                    running = false;
+                } catch (RuntimeException e) {
+                    logger.error("Checkout {} stage failed", name, e);
+                    for (Job job : batch) {
+                        if (!job.future.isDone()) {
+                            finish(job, FoodOrderingService.CheckoutStatus.FAILED);
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+}
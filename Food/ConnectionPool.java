@@ -0,0 +1,380 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final Metrics.Histogram ACQUIRE_LATENCY = Metrics.getInstance().histogram("food_db_connection_acquire_seconds", "Time spent waiting for a pooled connection.");
+    private static final Metrics.Counter ACQUIRE_TIMEOUTS = Metrics.getInstance().counter("food_db_connection_timeouts_total", "Connection requests that timed out.");
+    private static final Metrics.Counter BUSY_ERRORS = Metrics.getInstance().counter("food_db_busy_errors_total", "Statements that failed with SQLITE_BUSY or SQLITE_LOCKED.");
+    private static final int SQLITE_BUSY = 5;
+    private static final int SQLITE_LOCKED = 6;
+
+    private static final String URL = System.getProperty("food.db.url", "jdbc:sqlite:database.db");
+    private static final int MAX_SIZE = Integer.getInteger("food.db.poolSize", 8);
+    private static final int MIN_IDLE = Integer.getInteger("food.db.minIdle", 2);
+    private static final long ACQUIRE_TIMEOUT_MS = Long.getLong("food.db.acquireTimeoutMs", 10_000L);
+    private static final long RETRY_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("food.db.statementCacheSize", 32);
+    private static final String[] PRAGMAS = {
+            "PRAGMA journal_mode=WAL",
+            "PRAGMA synchronous=NORMAL",
+            "PRAGMA busy_timeout=5000",
+            "PRAGMA foreign_keys=ON",
+            "PRAGMA temp_store=MEMORY",
+            "PRAGMA cache_size=-8000"
+    };
+
+    private static ConnectionPool instance;
+
+    private final String url;
+    private final int maxSize;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong busyErrors = new AtomicLong();
+    private volatile boolean closed;
+
+    public static synchronized ConnectionPool getInstance() {
+        if (instance == null) {
+            instance = new ConnectionPool(URL, MAX_SIZE, MIN_IDLE);
+            ConnectionPool pool = instance;
+            Metrics.getInstance().gauge("food_db_connections_active", "Connections currently leased.", pool::getActiveCount);
+            Metrics.getInstance().gauge("food_db_connections_idle", "Connections waiting in the pool.", pool::getIdleCount);
+        }
+        return instance;
+    }
+
+    public ConnectionPool(String url, int maxSize, int minIdle) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            logger.error("SQLite JDBC driver not found", e);
+        }
+        this.url = url;
+        this.maxSize = Math.max(1, maxSize);
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+        for (int i = 0; i < Math.min(minIdle, this.maxSize); i++) {
+            try {
+                idle.offer(openConnection());
+            } catch (SQLException e) {
+                logger.error("Could not open an idle connection", e);
+                break;
+            }
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        PooledConnection pooled = idle.poll();
+        if (pooled == null) {
+            pooled = tryOpen();
+        }
+        if (pooled == null) {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(ACQUIRE_TIMEOUT_MS);
+            try {
+                long remaining;
+                while (pooled == null && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    pooled = idle.poll(Math.min(remaining, RETRY_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                    if (pooled == null) {
+                        pooled = tryOpen();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+            if (pooled == null && closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            if (pooled == null) {
+                timeouts.incrementAndGet();
+                ACQUIRE_TIMEOUTS.increment();
+                throw new SQLTimeoutException("Timed out waiting for a connection after " + ACQUIRE_TIMEOUT_MS + " ms");
+            }
+        }
+        recordWait(System.nanoTime() - start);
+        active.incrementAndGet();
+        return pooled.lease();
+    }
+
+    private PooledConnection tryOpen() throws SQLException {
+        while (true) {
+            int current = created.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (created.compareAndSet(current, current + 1)) {
+                try {
+                    return createConnection();
+                } catch (SQLException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        created.incrementAndGet();
+        try {
+            return createConnection();
+        } catch (SQLException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : PRAGMAS) {
+                statement.execute(pragma);
+            }
+        }
+        return new PooledConnection(connection);
+    }
+
+    private void recordWait(long waitNanos) {
+        ACQUIRE_LATENCY.record(waitNanos);
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    private Throwable recordFailure(Throwable cause) {
+        if (cause instanceof SQLException && isBusy((SQLException) cause)) {
+            busyErrors.incrementAndGet();
+            BUSY_ERRORS.increment();
+        }
+        return cause;
+    }
+
+    static boolean isBusy(SQLException e) {
+        int code = e.getErrorCode() & 0xff;
+        return code == SQLITE_BUSY || code == SQLITE_LOCKED;
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        if (closed || !pooled.reset() || !idle.offer(pooled)) {
+            pooled.closePhysical();
+            created.decrementAndGet();
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.closePhysical();
+            created.decrementAndGet();
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getTotalCount() {
+        return created.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getBusyCount() {
+        return busyErrors.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquisitions.get();
+        return count == 0 ? 0.0 : totalWaitNanos.get() / (count * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public String getStats() {
+        return String.format("active=%d, idle=%d, total=%d/%d, acquisitions=%d, timeouts=%d, busy=%d, avgWait=%.3fms, maxWait=%.3fms",
+                getActiveCount(), getIdleCount(), getTotalCount(), maxSize, getAcquisitionCount(),
+                getTimeoutCount(), getBusyCount(), getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    private class PooledConnection implements InvocationHandler {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statementCache;
+        private Connection proxy;
+        private volatile boolean leased;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection lease() {
+            leased = true;
+            proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (leased && target == proxy) {
+                    leased = false;
+                    release(this);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return !leased || target != proxy || physical.isClosed();
+            }
+            if (!leased || target != proxy) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            if ("prepareStatement".equals(name) && isCacheable(args)) {
+                return cachedStatement(args);
+            }
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw recordFailure(e.getCause());
+            }
+        }
+
+        private boolean isCacheable(Object[] args) {
+            return args.length == 1 || (args.length == 2 && args[1] instanceof Integer);
+        }
+
+        private PreparedStatement cachedStatement(Object[] args) throws SQLException {
+            String sql = (String) args[0];
+            String key = args.length == 1 ? sql : sql + "#" + args[1];
+            PreparedStatement statement = statementCache.get(key);
+            if (statement == null || statement.isClosed()) {
+                statement = args.length == 1
+                        ? physical.prepareStatement(sql)
+                        : physical.prepareStatement(sql, (Integer) args[1]);
+                statementCache.put(key, statement);
+            }
+            return cachedStatementProxy(statement);
+        }
+
+        private PreparedStatement cachedStatementProxy(PreparedStatement statement) {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (target, method, args) -> {
+                        String name = method.getName();
+                        if ("close".equals(name)) {
+                            ResultSet resultSet = statement.getResultSet();
+                            if (resultSet != null) {
+                                resultSet.close();
+                            }
+                            statement.clearParameters();
+                            statement.clearBatch();
+                            return null;
+                        }
+                        if ("getConnection".equals(name)) {
+                            return proxy;
+                        }
+                        try {
+                            return method.invoke(statement, args);
+                        } catch (InvocationTargetException e) {
+                            throw recordFailure(e.getCause());
+                        }
+                    });
+        }
+
+        boolean reset() {
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                logger.warn("Discarding a connection that could not be reset", e);
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (PreparedStatement statement : statementCache.values()) {
+                closeQuietly(statement);
+            }
+            statementCache.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                logger.warn("Error closing a pooled connection", e);
+            }
+        }
+
+        private void closeQuietly(Statement statement) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+enum DispatchPolicy implements Comparator<DeliveryPerson> {
+    LEAST_RECENTLY_ASSIGNED {
+        @Override
+        public int compare(DeliveryPerson a, DeliveryPerson b) {
+            int result = Long.compare(a.getLastAssignedSequence(), b.getLastAssignedSequence());
+            return result != 0 ? result : a.getName().compareTo(b.getName());
+        }
+    },
+    FEWEST_COMPLETED_DELIVERIES {
+        @Override
+        public int compare(DeliveryPerson a, DeliveryPerson b) {
+            int result = Integer.compare(a.getCompletedDeliveries(), b.getCompletedDeliveries());
+            return result != 0 ? result : LEAST_RECENTLY_ASSIGNED.compare(a, b);
+        }
+    }
+}
+
+class CourierDispatcher {
+    private static CourierDispatcher instance;
+
+    private final ConcurrentHashMap<String, DeliveryPerson> couriers = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<DeliveryPerson> available;
+    private final CourierGrid grid;
+    private final int nearestCandidates;
+    private final double maxRadiusKm;
+    private final AtomicLong assignmentSequence = new AtomicLong();
+
+    public static synchronized CourierDispatcher getInstance() {
+        if (instance == null) {
+            instance = new CourierDispatcher(DispatchPolicy.valueOf(
+                    System.getProperty("food.dispatch.policy", DispatchPolicy.LEAST_RECENTLY_ASSIGNED.name())));
+        }
+        return instance;
+    }
+
+    public CourierDispatcher(Comparator<DeliveryPerson> policy) {
+        this(policy, new CourierGrid(Double.parseDouble(System.getProperty("food.dispatch.cellKm", "0.5"))),
+                Integer.getInteger("food.dispatch.nearestCandidates", 8),
+                Double.parseDouble(System.getProperty("food.dispatch.maxRadiusKm", "15")));
+    }
+
+    public CourierDispatcher(Comparator<DeliveryPerson> policy, CourierGrid grid, int nearestCandidates, double maxRadiusKm) {
+        this.available = new ConcurrentSkipListSet<>(policy);
+        this.grid = grid;
+        this.nearestCandidates = Math.max(1, nearestCandidates);
+        this.maxRadiusKm = maxRadiusKm;
+    }
+
+    public DeliveryPerson register(DeliveryPerson deliveryPerson) {
+        DeliveryPerson existing = couriers.putIfAbsent(deliveryPerson.getName(), deliveryPerson);
+        if (existing != null) {
+            return existing;
+        }
+        deliveryPerson.setDispatcher(this);
+        refresh(deliveryPerson);
+        return deliveryPerson;
+    }
+
+    public void unregister(DeliveryPerson deliveryPerson) {
+        if (couriers.remove(deliveryPerson.getName(), deliveryPerson)) {
+            synchronized (deliveryPerson) {
+                available.remove(deliveryPerson);
+                grid.remove(deliveryPerson);
+                deliveryPerson.setDispatcher(null);
+            }
+        }
+    }
+
+    public DeliveryPerson getCourier(String username) {
+        return couriers.get(username);
+    }
+
+    public Collection<DeliveryPerson> getCouriers() {
+        return couriers.values();
+    }
+
+    public List<DeliveryPerson> getAvailableCouriers() {
+        return new ArrayList<>(available);
+    }
+
+    public int getAvailableCount() {
+        return available.size();
+    }
+
+    public List<DeliveryPerson> firstAvailable(int limit) {
+        List<DeliveryPerson> first = new ArrayList<>(Math.min(limit, 64));
+        for (DeliveryPerson deliveryPerson : available) {
+            if (first.size() == limit) {
+                break;
+            }
+            first.add(deliveryPerson);
+        }
+        return first;
+    }
+
+    public int getLocatedCount() {
+        return grid.size();
+    }
+
+    public List<DeliveryPerson> nearestAvailable(GeoPoint point, int limit) {
+        return grid.nearest(point, limit, maxRadiusKm);
+    }
+
+    void refresh(DeliveryPerson deliveryPerson) {
+        synchronized (deliveryPerson) {
+            if (couriers.get(deliveryPerson.getName()) != deliveryPerson) {
+                return;
+            }
+            if (isEligible(deliveryPerson)) {
+                available.add(deliveryPerson);
+                grid.update(deliveryPerson);
+            } else {
+                available.remove(deliveryPerson);
+                grid.remove(deliveryPerson);
+            }
+        }
+    }
+
+    public DeliveryPerson assign(Delivery delivery) {
+        GeoPoint destination = delivery.getDestination();
+        if (destination != null) {
+            List<DeliveryPerson> nearest;
+            while (!(nearest = grid.nearest(destination, nearestCandidates, maxRadiusKm)).isEmpty()) {
+                for (DeliveryPerson candidate : nearest) {
+                    if (tryAssign(candidate, delivery)) {
+                        return candidate;
+                    }
+                }
+            }
+        }
+        DeliveryPerson deliveryPerson;
+        while ((deliveryPerson = available.pollFirst()) != null) {
+            if (tryAssign(deliveryPerson, delivery)) {
+                return deliveryPerson;
+            }
+        }
+        return null;
+    }
+
+    public boolean assign(Delivery delivery, DeliveryPerson deliveryPerson) {
+        return couriers.get(deliveryPerson.getName()) == deliveryPerson && tryAssign(deliveryPerson, delivery);
+    }
+
+    boolean restoreAssignment(Delivery delivery, DeliveryPerson deliveryPerson) {
+        if (couriers.get(deliveryPerson.getName()) != deliveryPerson) {
+            return false;
+        }
+        synchronized (deliveryPerson) {
+            if (deliveryPerson.getAssignedDelivery() != null) {
+                return false;
+            }
+            available.remove(deliveryPerson);
+            grid.remove(deliveryPerson);
+            deliveryPerson.recordAssignment(delivery, assignmentSequence.incrementAndGet());
+            return true;
+        }
+    }
+
+    private boolean tryAssign(DeliveryPerson deliveryPerson, Delivery delivery) {
+        synchronized (deliveryPerson) {
+            available.remove(deliveryPerson);
+            grid.remove(deliveryPerson);
+            if (!isEligible(deliveryPerson)) {
+                return false;
+            }
+            deliveryPerson.recordAssignment(delivery, assignmentSequence.incrementAndGet());
+            return true;
+        }
+    }
+
+    public void completeDelivery(DeliveryPerson deliveryPerson) {
+        synchronized (deliveryPerson) {
+            available.remove(deliveryPerson);
+            grid.remove(deliveryPerson);
+            deliveryPerson.recordCompletion();
+        }
+        refresh(deliveryPerson);
+    }
+
+    public void cancelDelivery(DeliveryPerson deliveryPerson) {
+        synchronized (deliveryPerson) {
+            available.remove(deliveryPerson);
+            grid.remove(deliveryPerson);
+            deliveryPerson.recordCancellation();
+        }
+        refresh(deliveryPerson);
+    }
+
+    private boolean isEligible(DeliveryPerson deliveryPerson) {
+        return deliveryPerson.isOnline() && deliveryPerson.isAvailable() && deliveryPerson.getAssignedDelivery() == null;
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class CourierGrid {
+    static final long NO_CELL = Long.MIN_VALUE;
+    private static final double KM_PER_DEGREE = 111.32;
+    private static final double MIN_COSINE = 0.01;
+
+    private final double cellDegrees;
+    private final double cellKm;
+    private final int columns;
+    private final double columnDegrees;
+    private final ConcurrentHashMap<Long, Set<DeliveryPerson>> cells = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public CourierGrid(double cellKm) {
+        if (!(cellKm > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive, got " + cellKm);
+        }
+        this.cellKm = cellKm;
+        this.cellDegrees = cellKm / KM_PER_DEGREE;
+        this.columns = Math.max(1, (int) Math.ceil(360 / cellDegrees));
+        this.columnDegrees = 360.0 / columns;
+    }
+
+    void update(DeliveryPerson deliveryPerson) {
+        GeoPoint location = deliveryPerson.getLocation();
+        if (location == null) {
+            remove(deliveryPerson);
+            return;
+        }
+        long cell = cellOf(location);
+        long previous = deliveryPerson.gridCell;
+        if (cell == previous) {
+            return;
+        }
+        if (previous != NO_CELL) {
+            removeFrom(previous, deliveryPerson);
+        } else {
+            size.incrementAndGet();
+        }
+        cells.compute(cell, (key, members) -> {
+            Set<DeliveryPerson> set = members != null ? members : ConcurrentHashMap.newKeySet();
+            set.add(deliveryPerson);
+            return set;
+        });
+        deliveryPerson.gridCell = cell;
+    }
+
+    void remove(DeliveryPerson deliveryPerson) {
+        long previous = deliveryPerson.gridCell;
+        if (previous != NO_CELL) {
+            removeFrom(previous, deliveryPerson);
+            deliveryPerson.gridCell = NO_CELL;
+            size.decrementAndGet();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public List<DeliveryPerson> nearest(GeoPoint point, int k, double maxKm) {
+        int row = row(point.getLatitude());
+        int column = column(point.getLongitude());
+        double cosine = Math.max(MIN_COSINE, Math.cos(Math.toRadians(point.getLatitude())));
+        double columnSpan = columnDegrees * cosine;
+        double maxDegrees = maxKm / KM_PER_DEGREE;
+        double maxSquared = square(maxDegrees);
+        int maxRows = (int) Math.ceil(maxDegrees / cellDegrees);
+        int maxColumns = (int) Math.min(Math.ceil(maxDegrees / columnSpan), columns / 2);
+        PriorityQueue<Candidate> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b.distanceSquared, a.distanceSquared));
+        // Each ring widens the scanned rows and columns so that any courier outside them is at least ring * cellDegrees away
+        int scannedRows = -1;
+        int scannedColumns = -1;
+        for (int ring = 0; ; ring++) {
+            int rows = Math.min(ring, maxRows);
+            int spanColumns = (int) Math.min(Math.ceil(ring * cellDegrees / columnSpan), maxColumns);
+            for (int dy = -rows; dy <= rows; dy++) {
+                if (Math.abs(dy) > scannedRows) {
+                    scanColumns(row + dy, column, -spanColumns, lastColumn(spanColumns), point, cosine, k, maxSquared, best);
+                } else {
+                    scanColumns(row + dy, column, -spanColumns, -scannedColumns - 1, point, cosine, k, maxSquared, best);
+                    scanColumns(row + dy, column, lastColumn(scannedColumns) + 1, lastColumn(spanColumns), point, cosine, k, maxSquared, best);
+                }
+            }
+            scannedRows = rows;
+            scannedColumns = spanColumns;
+            if (rows == maxRows && spanColumns == maxColumns
+                    || best.size() == k && best.peek().distanceSquared <= square(ring * cellDegrees)) {
+                break;
+            }
+        }
+        List<DeliveryPerson> nearest = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            nearest.add(best.poll().deliveryPerson);
+        }
+        Collections.reverse(nearest);
+        return nearest;
+    }
+
+    // The last column offset to scan, so that a span wider than half the globe does not visit a column twice
+    private int lastColumn(int span) {
+        return Math.min(span, columns - 1 - span);
+    }
+
+    private void scanColumns(int row, int column, int from, int to, GeoPoint point, double cosine, int k, double maxSquared, PriorityQueue<Candidate> best) {
+        for (int dx = from; dx <= to; dx++) {
+            scan(cells.get(key(row, Math.floorMod(column + dx, columns))), point, cosine, k, maxSquared, best);
+        }
+    }
+
+    private void scan(Set<DeliveryPerson> members, GeoPoint point, double cosine, int k, double maxSquared, PriorityQueue<Candidate> best) {
+        if (members == null) {
+            return;
+        }
+        for (DeliveryPerson deliveryPerson : members) {
+            GeoPoint location = deliveryPerson.getLocation();
+            if (location == null) {
+                continue;
+            }
+            double longitude = Math.IEEEremainder(location.getLongitude() - point.getLongitude(), 360);
+            double distance = square(longitude * cosine) + square(location.getLatitude() - point.getLatitude());
+            if (distance > maxSquared || (best.size() == k && distance >= best.peek().distanceSquared)) {
+                continue;
+            }
+            best.offer(new Candidate(deliveryPerson, distance));
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+    }
+
+    private void removeFrom(long cell, DeliveryPerson deliveryPerson) {
+        cells.computeIfPresent(cell, (key, members) -> {
+            members.remove(deliveryPerson);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    private long cellOf(GeoPoint location) {
+        return key(row(location.getLatitude()), column(location.getLongitude()));
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor(latitude / cellDegrees);
+    }
+
+    private int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180) / columnDegrees), columns);
+    }
+
+    private static long key(int row, int column) {
+        return (long) row << 32 | (column & 0xFFFFFFFFL);
+    }
+
+    private static final class Candidate {
+        private final DeliveryPerson deliveryPerson;
+        private final double distanceSquared;
+
+        Candidate(DeliveryPerson deliveryPerson, double distanceSquared) {
+            this.deliveryPerson = deliveryPerson;
+            this.distanceSquared = distanceSquared;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class CourierPresence {
+    private static final Logger logger = LoggerFactory.getLogger(CourierPresence.class);
+
+    private static final int ONLINE = 1;
+    private static final int AVAILABLE = 2;
+    private static final int FLAG_BITS = 2;
+    private static final long FLAG_MASK = (1 << FLAG_BITS) - 1;
+    private static final String UPDATE = "UPDATE users SET is_online = ?, is_available = ? WHERE username = ? AND role = 'delivery man'";
+
+    private final UserManager userManager;
+    private final CourierDispatcher dispatcher;
+    private final long ttlMillis;
+    private final int maxBatchSize;
+    private final ConcurrentHashMap<String, AtomicLong> states = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService background;
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public CourierPresence(UserManager userManager, CourierDispatcher dispatcher) {
+        this(userManager, dispatcher,
+                Long.getLong("food.presence.flushIntervalMs", 250L),
+                TimeUnit.SECONDS.toMillis(Long.getLong("food.presence.ttlSeconds", 120L)),
+                Integer.getInteger("food.presence.maxBatch", 500));
+    }
+
+    public CourierPresence(UserManager userManager, CourierDispatcher dispatcher, long flushIntervalMillis, long ttlMillis, int maxBatchSize) {
+        this.userManager = userManager;
+        this.dispatcher = dispatcher;
+        this.ttlMillis = ttlMillis;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "courier-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, flushIntervalMillis);
+        background.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(DeliveryPerson deliveryPerson) {
+        update(deliveryPerson.getName(), deliveryPerson.isOnline(), deliveryPerson.isAvailable());
+    }
+
+    public void update(String username, boolean online, boolean available) {
+        long flags = (online ? ONLINE : 0) | (available ? AVAILABLE : 0);
+        long previous = states.computeIfAbsent(username, key -> new AtomicLong())
+                .getAndSet(System.currentTimeMillis() << FLAG_BITS | flags);
+        if (previous == 0 || (previous & FLAG_MASK) != flags) {
+            dirty.add(username);
+        }
+    }
+
+    public void restore(String username, long state) {
+        states.putIfAbsent(username, new AtomicLong(state));
+    }
+
+    public Map<String, Long> getStates() {
+        Map<String, Long> snapshot = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : states.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    public void heartbeat(String username) {
+        AtomicLong state = states.get(username);
+        if (state != null) {
+            long now = System.currentTimeMillis();
+            state.updateAndGet(current -> now << FLAG_BITS | (current & FLAG_MASK));
+        }
+    }
+
+    public void forget(String username) {
+        states.remove(username);
+        dirty.remove(username);
+    }
+
+    public boolean isTracked(String username) {
+        return states.containsKey(username);
+    }
+
+    public boolean isOnline(String username) {
+        AtomicLong state = states.get(username);
+        return state != null && (state.get() & ONLINE) != 0;
+    }
+
+    public boolean isAvailable(String username) {
+        AtomicLong state = states.get(username);
+        return state != null && (state.get() & AVAILABLE) != 0;
+    }
+
+    public long getLastHeartbeat(String username) {
+        AtomicLong state = states.get(username);
+        return state == null ? 0 : state.get() >>> FLAG_BITS;
+    }
+
+    public DeliveryPerson overlay(DeliveryPerson deliveryPerson) {
+        AtomicLong state = states.get(deliveryPerson.getName());
+        if (state != null) {
+            long current = state.get();
+            deliveryPerson.setOnline((current & ONLINE) != 0);
+            deliveryPerson.setAvailable((current & AVAILABLE) != 0);
+        }
+        return deliveryPerson;
+    }
+
+    public int getPendingWrites() {
+        return dirty.size();
+    }
+
+    public String getStats() {
+        return String.format("tracked=%d, pending=%d, flushes=%d, flushedRows=%d, expired=%d",
+                states.size(), dirty.size(), flushes.get(), flushedRows.get(), expired.get());
+    }
+
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void tick() {
+        expireStale();
+        flush();
+    }
+
+    void expireStale() {
+        long deadline = System.currentTimeMillis() - ttlMillis;
+        for (Map.Entry<String, AtomicLong> entry : states.entrySet()) {
+            AtomicLong state = entry.getValue();
+            long current = state.get();
+            if ((current & ONLINE) == 0 || current >>> FLAG_BITS >= deadline) {
+                continue;
+            }
+            if (state.compareAndSet(current, current & ~FLAG_MASK)) {
+                expired.incrementAndGet();
+                dirty.add(entry.getKey());
+                DeliveryPerson deliveryPerson = dispatcher.getCourier(entry.getKey());
+                if (deliveryPerson != null) {
+                    deliveryPerson.setOnline(false);
+                }
+            }
+        }
+    }
+
+    void flush() {
+        List<String> batch = new ArrayList<>(Math.min(dirty.size(), maxBatchSize));
+        for (Iterator<String> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            batch.add(iterator.next());
+            iterator.remove();
+            if (batch.size() == maxBatchSize || !iterator.hasNext()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<String> batch) {
+        try (Connection connection = userManager.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(UPDATE)) {
+                for (String username : batch) {
+                    AtomicLong state = states.get(username);
+                    if (state == null) {
+                        continue;
+                    }
+                    long current = state.get();
+                    preparedStatement.setBoolean(1, (current & ONLINE) != 0);
+                    preparedStatement.setBoolean(2, (current & AVAILABLE) != 0);
+                    preparedStatement.setString(3, username);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                connection.commit();
+                flushes.incrementAndGet();
+                flushedRows.addAndGet(batch.size());
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            dirty.addAll(batch);
+            logger.error("Error flushing presence for {} couriers", batch.size(), e);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class FoodOrderingServer {
+    private static final Logger logger = LoggerFactory.getLogger(FoodOrderingServer.class);
+
+    private final FoodOrderingService service;
+    private final int port;
+    private final ExecutorService sessions;
+    private volatile ServerSocket serverSocket;
+
+    public FoodOrderingServer(FoodOrderingService service, int port) {
+        this.service = service;
+        this.port = port;
+        this.sessions = newSessionExecutor();
+    }
+
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("Virtual threads are not available, using one platform thread per session");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        logger.info("Listening on {}", serverSocket.getLocalSocketAddress());
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> handle(socket));
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                throw e;
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        ServerSocket current = serverSocket;
+        return current == null ? port : current.getLocalPort();
+    }
+
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Error closing the server socket", e);
+        }
+        sessions.shutdownNow();
+        try {
+            sessions.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(Socket socket) {
+        Session session = new Session();
+        session.address = socket.getInetAddress().getHostAddress();
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(client.getOutputStream(), false, StandardCharsets.UTF_8)) {
+            out.println("OK Food ordering system ready. Type HELP for commands.");
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                session.awaitReply();
+                boolean keepOpen = execute(session, trimmed, out);
+                out.flush();
+                if (!keepOpen) {
+                    break;
+                }
+            }
+            session.awaitReply();
+        } catch (IOException e) {
+            logger.debug("Session closed", e);
+        } finally {
+            session.awaitReply();
+            session.reset();
+        }
+    }
+
+    boolean execute(Session session, String line, PrintWriter out) {
+        String[] parts = line.split("\\s+", 2);
+        String command = parts[0].toUpperCase();
+        String arguments = parts.length > 1 ? parts[1] : "";
+        try {
+            if (session.deliveryPerson != null) {
+                service.heartbeat(session.deliveryPerson);
+            }
+            switch (command) {
+                case "HELP":
+                    help(out);
+                    return true;
+                case "SIGNUP":
+                    signUp(session, arguments, out);
+                    return true;
+                case "LOGIN":
+                    login(session, arguments, out);
+                    return true;
+                case "LOGOUT":
+                    session.reset();
+                    out.println("OK Logged out");
+                    return true;
+                case "MENU":
+                    menu(out);
+                    return true;
+                case "SEARCH":
+                    search(arguments, out);
+                    return true;
+                case "ADD":
+                    addToCart(session, arguments, out);
+                    return true;
+                case "CART":
+                    cart(session, out);
+                    return true;
+                case "ADDRESS":
+                    deliveryAddress(session, arguments, out);
+                    return true;
+                case "CHECKOUT":
+                    checkout(session, arguments, out);
+                    return true;
+                case "ADDITEM":
+                    addFoodItem(session, arguments, out);
+                    return true;
+                case "ORDERS":
+                    pendingOrders(session, out);
+                    return true;
+                case "COURIERS":
+                    couriers(session, arguments, out);
+                    return true;
+                case "DISPATCH":
+                    dispatch(session, arguments, out);
+                    return true;
+                case "ONLINE":
+                case "OFFLINE":
+                    courierStatus(session, "ONLINE".equals(command), out);
+                    return true;
+                case "LOCATE":
+                    locate(session, arguments, out);
+                    return true;
+                case "ACCEPT":
+                    accept(session, arguments, out);
+                    return true;
+                case "DELIVERED":
+                    delivered(session, arguments, out);
+                    return true;
+                case "STATS":
+                    stats(session, out);
+                    return true;
+                case "SUBSCRIBE":
+                    subscribe(session, out);
+                    return true;
+                case "PING":
+                    out.println("OK PONG");
+                    return true;
+                case "QUIT":
+                    out.println("OK Goodbye");
+                    return false;
+                default:
+                    out.println("ERR Unknown command: " + parts[0]);
+                    return true;
+            }
+        } catch (NumberFormatException e) {
+            out.println("ERR Invalid number: " + e.getMessage());
+            return true;
+        } catch (AdmissionControl.RateLimitedException e) {
+            out.println("ERR Too many requests, try again later");
+            return true;
+        } catch (RuntimeException e) {
+            logger.error("Command {} from {} failed", command, session.address, e);
+            out.println("ERR Internal error, please try again");
+            return true;
+        }
+    }
+
+    private void help(PrintWriter out) {
+        String[] commands = {
+                "SIGNUP <username> <password> <user|merchant|delivery man>",
+                "LOGIN <username> <password>",
+                "LOGOUT",
+                "MENU",
+                "SEARCH <text>",
+                "ADD <itemId> <quantity>",
+                "CART",
+                "ADDRESS <latitude> <longitude> [street address]",
+                "CHECKOUT [idempotencyKey]",
+                "ADDITEM <price> <name>",
+                "ORDERS",
+                "COURIERS [orderId]",
+                "DISPATCH <orderId>",
+                "ONLINE | OFFLINE",
+                "LOCATE <latitude> <longitude>",
+                "ACCEPT <orderId>",
+                "DELIVERED <orderId>",
+                "STATS",
+                "SUBSCRIBE",
+                "PING",
+                "QUIT"
+        };
+        out.println("OK " + commands.length);
+        for (String command : commands) {
+            out.println(command);
+        }
+    }
+
+    private void signUp(Session session, String arguments, PrintWriter out) {
+        String[] parts = arguments.split("\\s+", 3);
+        if (parts.length < 3 || !FoodOrderingService.isValidRole(parts[2])) {
+            out.println("ERR Usage: SIGNUP <username> <password> <user|merchant|delivery man>");
+            return;
+        }
+        if (!service.signUp(parts[0], parts[1], parts[2], session.address)) {
+            out.println("ERR Username already exists");
+            return;
+        }
+        session.start(service, parts[0], parts[2]);
+        out.println("OK Signed up as " + parts[2]);
+    }
+
+    private void login(Session session, String arguments, PrintWriter out) {
+        String[] parts = arguments.split("\\s+", 2);
+        if (parts.length < 2) {
+            out.println("ERR Usage: LOGIN <username> <password>");
+            return;
+        }
+        User user = service.login(parts[0], parts[1], session.address);
+        if (user == null) {
+            out.println("ERR Invalid username or password");
+            return;
+        }
+        session.start(service, user.getUsername(), user.getRole());
+        out.println("OK Logged in as " + user.getRole());
+    }
+
+    private void menu(PrintWriter out) {
+        List<FoodItem> items = service.getMenu().getItems();
+        out.println("OK " + items.size());
+        for (FoodItem item : items) {
+            out.println(item.getId() + " " + item.getPrice() + " " + item.getName());
+        }
+    }
+
+    private void search(String arguments, PrintWriter out) {
+        List<FoodItem> items = service.searchMenu(arguments, Integer.getInteger("food.search.limit", 10));
+        out.println("OK " + items.size());
+        for (FoodItem item : items) {
+            out.println(item.getId() + " " + item.getPrice() + " " + item.getName());
+        }
+    }
+
+    private void addToCart(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("user", out)) {
+            return;
+        }
+        String[] parts = arguments.split("\\s+");
+        int itemId = Integer.parseInt(parts[0]);
+        int quantity = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        if (service.addToCart(session.cart, itemId, quantity)) {
+            out.println("OK Total " + session.cart.calculateTotal());
+        } else {
+            out.println("ERR Unknown item, invalid quantity, or item from another merchant");
+        }
+    }
+
+    private void cart(Session session, PrintWriter out) {
+        if (!session.requireRole("user", out)) {
+            return;
+        }
+        Cart cart = session.cart.getCart();
+        out.println("OK " + (cart.size() + 1));
+        for (int line = 0; line < cart.size(); line++) {
+            out.println(cart.getItemId(line) + " " + cart.getItem(line).getName() + " x " + cart.getQuantity(line));
+        }
+        out.println("TOTAL " + session.cart.calculateTotal());
+    }
+
+    private void deliveryAddress(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("user", out)) {
+            return;
+        }
+        String[] parts = arguments.split("\\s+", 3);
+        GeoPoint location = parts.length < 2 ? null : GeoPoint.parse(parts[0], parts[1]);
+        if (location == null) {
+            out.println("ERR Usage: ADDRESS <latitude> <longitude> [street address]");
+            return;
+        }
+        session.deliveryAddress = parts.length > 2 ? parts[2] : null;
+        session.deliveryLocation = location;
+        out.println("OK Delivering to " + (session.deliveryAddress != null ? session.deliveryAddress : location.toString()));
+    }
+
+    private void checkout(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("user", out)) {
+            return;
+        }
+        String idempotencyKey = arguments.trim().isEmpty() ? null : arguments.trim();
+        if (idempotencyKey != null && (idempotencyKey.length() > IdempotencyCache.MAX_KEY_LENGTH || idempotencyKey.contains(" "))) {
+            out.println("ERR Idempotency key must be a single word of at most " + IdempotencyCache.MAX_KEY_LENGTH + " characters");
+            return;
+        }
+        if (session.deliveryLocation != null) {
+            session.cart.setDeliveryAddress(session.deliveryAddress, session.deliveryLocation);
+        }
+        session.cart.setCustomer(session.username);
+        session.pendingReply = service.checkoutAsync(session.cart, idempotencyKey, session.address).handleAsync((result, error) -> {
+            if (error != null) {
+                logger.error("Checkout for {} failed", session.username, error);
+                out.println("ERR Checkout failed");
+            } else {
+                checkoutReply(session, result, out);
+            }
+            out.flush();
+            return null;
+        }, sessions);
+    }
+
+    private void checkoutReply(Session session, FoodOrderingService.CheckoutResult result, PrintWriter out) {
+        switch (result.getStatus()) {
+            case PLACED:
+                out.println("OK Order " + result.getOrder().getId() + " total " + result.getOrder().calculateTotal());
+                session.cart = service.newOrder();
+                break;
+            case EMPTY_CART:
+                out.println("ERR Cart is empty");
+                break;
+            case ALREADY_PLACED:
+                out.println("ERR Order already placed");
+                session.cart = service.newOrder();
+                break;
+            case MENU_CHANGED:
+                out.println("ERR Menu changed for " + result.getChangedItems().size() + " item(s); start a new cart");
+                session.cart = service.newOrder();
+                break;
+            case BUSY:
+                out.println("ERR Busy, try CHECKOUT again shortly");
+                break;
+            default:
+                out.println("ERR Checkout failed");
+        }
+    }
+
+    private void addFoodItem(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("merchant", out)) {
+            return;
+        }
+        String[] parts = arguments.split("\\s+", 2);
+        if (parts.length < 2) {
+            out.println("ERR Usage: ADDITEM <price> <name>");
+            return;
+        }
+        if (session.merchant == null) {
+            out.println("ERR Merchant account unavailable");
+            return;
+        }
+        try {
+            FoodItem item = service.saveFoodItemToDatabase(new FoodItem(0, session.merchant.getId(), parts[1], Double.parseDouble(parts[0])));
+            out.println("OK Item " + item.getId());
+        } catch (SQLException e) {
+            out.println("ERR Could not save item: " + e.getMessage());
+        }
+    }
+
+    private void pendingOrders(Session session, PrintWriter out) {
+        if (!session.requireLogin(out)) {
+            return;
+        }
+        List<Order> orders = session.merchant != null ? service.getPendingOrders(session.merchant) : service.getPendingOrders();
+        out.println("OK " + orders.size());
+        for (Order order : orders) {
+            out.println(order.getId() + " " + order.calculateTotal());
+        }
+    }
+
+    private void couriers(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("merchant", out)) {
+            return;
+        }
+        List<DeliveryPerson> couriers;
+        if (arguments.isEmpty()) {
+            couriers = service.getAvailableCouriers();
+        } else {
+            Order order = OrderManager.getOrder(Integer.parseInt(arguments.trim()));
+            if (order == null || order.getDeliveryLocation() == null) {
+                out.println("ERR Unknown order or order without a delivery address");
+                return;
+            }
+            couriers = service.getNearestCouriers(order.getDeliveryLocation(), Integer.getInteger("food.dispatch.listLimit", 10));
+        }
+        out.println("OK " + couriers.size());
+        for (DeliveryPerson courier : couriers) {
+            GeoPoint location = courier.getLocation();
+            out.println(courier.getName() + " active=" + courier.getActiveDeliveries() + (location != null ? " at " + location : ""));
+        }
+    }
+
+    private void dispatch(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("merchant", out)) {
+            return;
+        }
+        Order order = OrderManager.getOrder(Integer.parseInt(arguments.trim()));
+        if (order == null || session.merchant == null || order.getMerchantId() != session.merchant.getId()) {
+            out.println("ERR Unknown order");
+            return;
+        }
+        switch (service.acceptOrder(order, null, session.username, session.address)) {
+            case ACCEPTED:
+                out.println("OK Order " + order.getId() + " assigned to " + order.getDeliveryPerson().getName());
+                break;
+            case ALREADY_TAKEN:
+                out.println("ERR Order already accepted");
+                break;
+            case BUSY:
+                out.println("ERR Busy, try DISPATCH again shortly");
+                break;
+            default:
+                out.println("ERR No courier is available");
+        }
+    }
+
+    private void stats(Session session, PrintWriter out) {
+        if (!session.requireLogin(out)) {
+            return;
+        }
+        SalesAnalytics analytics = service.getSalesAnalytics();
+        int hours = Integer.getInteger("food.analytics.reportHours", 24);
+        List<String> lines = new ArrayList<>();
+        if (session.merchant != null) {
+            int merchantId = session.merchant.getId();
+            lines.add(String.format("orders %d revenue %.2f average %.2f", analytics.getOrderCount(merchantId),
+                    analytics.getRevenueCents(merchantId) / 100.0, analytics.getAverageOrderCents(merchantId) / 100.0));
+            StringBuilder series = new StringBuilder("hourly");
+            for (long cents : analytics.getHourlyRevenueCents(merchantId, hours)) {
+                series.append(' ').append(String.format("%.2f", cents / 100.0));
+            }
+            lines.add(series.toString());
+            for (SalesAnalytics.ItemRank rank : analytics.getTopItems(merchantId, Integer.getInteger("food.analytics.topItems", 5))) {
+                FoodItem item = service.getFoodItem(rank.getItemId());
+                lines.add(String.format("item %d %d %.2f %s", rank.getItemId(), rank.getQuantity(), rank.getRevenueCents() / 100.0,
+                        item != null ? item.getName() : ""));
+            }
+        } else if (session.deliveryPerson != null) {
+            lines.add("deliveries " + analytics.getDeliveryCount(session.username));
+            StringBuilder series = new StringBuilder("hourly");
+            for (long count : analytics.getHourlyDeliveries(session.username, hours)) {
+                series.append(' ').append(count);
+            }
+            lines.add(series.toString());
+        } else {
+            out.println("ERR No statistics for the " + session.role + " role");
+            return;
+        }
+        out.println("OK " + lines.size());
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    private void subscribe(Session session, PrintWriter out) {
+        if (!session.requireLogin(out)) {
+            return;
+        }
+        OrderEvents events = OrderEvents.getInstance();
+        if (!events.isEnabled()) {
+            out.println("ERR Order events are disabled; start the server with -Dfood.events.port");
+            return;
+        }
+        List<String> topics = new ArrayList<>();
+        if (session.merchant != null) {
+            topics.add(OrderEvents.merchantTopic(session.merchant.getId()));
+        } else if (session.deliveryPerson != null) {
+            topics.add(OrderEvents.courierTopic(session.username));
+            topics.add(OrderEvents.COURIERS);
+        } else if ("user".equals(session.role)) {
+            topics.add(OrderEvents.customerTopic(session.username));
+        } else {
+            out.println("ERR No order events for the " + session.role + " role");
+            return;
+        }
+        events.revoke(session.eventToken);
+        session.eventToken = events.issueToken(topics);
+        out.println("OK " + events.streamUrl(session.eventToken));
+    }
+
+    private void locate(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("delivery man", out)) {
+            return;
+        }
+        String[] parts = arguments.split("\\s+");
+        GeoPoint location = parts.length < 2 ? null : GeoPoint.parse(parts[0], parts[1]);
+        if (location == null) {
+            out.println("ERR Usage: LOCATE <latitude> <longitude>");
+            return;
+        }
+        service.updateLocation(session.deliveryPerson, location);
+        out.println("OK Location " + location);
+    }
+
+    private void courierStatus(Session session, boolean online, PrintWriter out) {
+        if (!session.requireRole("delivery man", out)) {
+            return;
+        }
+        service.updateDeliveryPersonStatus(session.deliveryPerson, online);
+        out.println(online ? "OK You are now online" : "OK You are now offline");
+    }
+
+    private void accept(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("delivery man", out)) {
+            return;
+        }
+        Order order = OrderManager.getOrder(Integer.parseInt(arguments.trim()));
+        if (order == null) {
+            out.println("ERR Unknown order");
+            return;
+        }
+        switch (service.acceptOrder(order, session.deliveryPerson, session.username, session.address)) {
+            case ACCEPTED:
+                out.println("OK Accepted order " + order.getId());
+                break;
+            case ALREADY_TAKEN:
+                out.println("ERR Order already accepted");
+                break;
+            case BUSY:
+                out.println("ERR Busy, try ACCEPT again shortly");
+                break;
+            default:
+                out.println("ERR You must be online and free to accept orders");
+        }
+    }
+
+    private void delivered(Session session, String arguments, PrintWriter out) {
+        if (!session.requireRole("delivery man", out)) {
+            return;
+        }
+        Order order = OrderManager.getOrder(Integer.parseInt(arguments.trim()));
+        if (order == null || !service.completeDelivery(order, session.deliveryPerson)) {
+            out.println("ERR Order is not assigned to you");
+            return;
+        }
+        out.println("OK Delivered order " + order.getId());
+    }
+
+    static class Session {
+        private String username;
+        private String role;
+        private Order cart;
+        private DeliveryPerson deliveryPerson;
+        private Merchant merchant;
+        private String deliveryAddress;
+        private GeoPoint deliveryLocation;
+        private String eventToken;
+        private String address;
+        private CompletableFuture<?> pendingReply;
+
+        void awaitReply() {
+            if (pendingReply != null) {
+                pendingReply.exceptionally(error -> null).join();
+                pendingReply = null;
+            }
+        }
+
+        void start(FoodOrderingService service, String username, String role) {
+            OrderEvents.getInstance().revoke(eventToken);
+            eventToken = null;
+            this.username = username;
+            this.role = role;
+            this.cart = service.newOrder();
+            this.deliveryPerson = "delivery man".equals(role) ? service.registerCourier(username) : null;
+            this.merchant = "merchant".equals(role) ? service.getMerchant(username) : null;
+        }
+
+        void reset() {
+            username = null;
+            role = null;
+            cart = null;
+            deliveryPerson = null;
+            merchant = null;
+            deliveryAddress = null;
+            deliveryLocation = null;
+            OrderEvents.getInstance().revoke(eventToken);
+            eventToken = null;
+        }
+
+        boolean requireLogin(PrintWriter out) {
+            if (username == null) {
+                out.println("ERR Please log in first");
+                return false;
+            }
+            return true;
+        }
+
+        boolean requireRole(String requiredRole, PrintWriter out) {
+            if (!requireLogin(out)) {
+                return false;
+            }
+            if (!requiredRole.equals(role)) {
+                out.println("ERR This command requires the " + requiredRole + " role");
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class FoodOrderingService {
+    private static final Logger logger = LoggerFactory.getLogger(FoodOrderingService.class);
+    private static final Metrics.Histogram CHECKOUT_LATENCY = Metrics.getInstance().histogram("food_checkout_seconds", "Time spent checking out an order.");
+    private static final Metrics.Histogram ORDER_SAVE_LATENCY = Metrics.getInstance().histogram("food_order_save_seconds", "Time spent persisting a placed order.");
+    private static final Metrics.Histogram ITEM_SAVE_LATENCY = Metrics.getInstance().histogram("food_item_save_seconds", "Time spent adding a food item to the menu.");
+    private static final Metrics.Histogram ACCEPT_LATENCY = Metrics.getInstance().histogram("food_order_accept_seconds", "Time spent assigning a courier to an order.");
+
+    enum CheckoutStatus {
+        PLACED, EMPTY_CART, ALREADY_PLACED, MENU_CHANGED, BUSY, FAILED;
+
+        private final Metrics.Counter counter = Metrics.getInstance().counter("food_checkouts_total", "Checkouts by outcome.", "status", name().toLowerCase());
+    }
+
+    enum AcceptStatus {
+        ACCEPTED, NO_COURIER, ALREADY_TAKEN, BUSY;
+
+        private final Metrics.Counter counter = Metrics.getInstance().counter("food_order_accepts_total", "Order acceptances by outcome.", "status", name().toLowerCase());
+    }
+
+    static class CheckoutResult {
+        private final CheckoutStatus status;
+        private final Order order;
+        private final List<FoodItem> changedItems;
+
+        CheckoutResult(CheckoutStatus status, Order order, List<FoodItem> changedItems) {
+            this.status = status;
+            this.order = order;
+            this.changedItems = changedItems;
+        }
+
+        public CheckoutStatus getStatus() {
+            return status;
+        }
+
+        public Order getOrder() {
+            return order;
+        }
+
+        public List<FoodItem> getChangedItems() {
+            return changedItems;
+        }
+    }
+
+    private final UserManager userManager;
+    private final OrderRepository orderRepository;
+    private final MenuCatalog menuCatalog;
+    private final CourierDispatcher courierDispatcher;
+    private final OrderJournal orderJournal;
+    private final CourierPresence courierPresence;
+    private final CheckoutPipeline checkoutPipeline;
+    private final SalesAnalytics salesAnalytics;
+    private final IdempotencyCache idempotencyCache;
+    private final AdmissionControl admissionControl;
+    private final BatchDispatcher batchDispatcher;
+
+    public FoodOrderingService(UserManager userManager, OrderRepository orderRepository,
+                               MenuCatalog menuCatalog, CourierDispatcher courierDispatcher) {
+        this(userManager, orderRepository, menuCatalog, courierDispatcher, null);
+    }
+
+    public FoodOrderingService(UserManager userManager, OrderRepository orderRepository,
+                               MenuCatalog menuCatalog, CourierDispatcher courierDispatcher, OrderJournal orderJournal) {
+        this.userManager = userManager;
+        this.orderRepository = orderRepository;
+        this.menuCatalog = menuCatalog;
+        this.courierDispatcher = courierDispatcher;
+        this.orderJournal = orderJournal;
+        this.courierPresence = new CourierPresence(userManager, courierDispatcher);
+        this.checkoutPipeline = new CheckoutPipeline(menuCatalog, this::persistOrders);
+        this.salesAnalytics = new SalesAnalytics(menuCatalog.getShardRouter());
+        this.admissionControl = new AdmissionControl();
+        this.idempotencyCache = new IdempotencyCache(this::findOrder);
+        warmIdempotencyCache();
+        if (orderJournal != null) {
+            Metrics.getInstance().gauge("food_journal_uncheckpointed_orders", "Journal order changes not yet written to the database.", orderJournal::getUncheckpointedCount);
+        }
+        this.batchDispatcher = Boolean.getBoolean("food.dispatch.batch.enabled")
+                ? new BatchDispatcher(courierDispatcher, (order, courier) -> assign(order, courier) == AcceptStatus.ACCEPTED)
+                : null;
+        Metrics.getInstance().gauge("food_courier_presence_pending_writes", "Courier presence changes waiting to be flushed.", courierPresence::getPendingWrites);
+        Metrics.getInstance().gauge("food_couriers_located", "Available couriers in the dispatch spatial index.", courierDispatcher::getLocatedCount);
+    }
+
+    public static boolean isValidRole(String role) {
+        return "user".equals(role) || "merchant".equals(role) || "delivery man".equals(role);
+    }
+
+    public UserManager getUserManager() {
+        return userManager;
+    }
+
+    public boolean signUp(String username, String password, String role) {
+        return signUp(username, password, role, null);
+    }
+
+    public boolean signUp(String username, String password, String role, String address) {
+        admissionControl.check(AdmissionControl.Operation.SIGNUP, null, address);
+        if (!userManager.signUp(username, password, role)) {
+            return false;
+        }
+        if ("merchant".equals(role)) {
+            getMerchant(username);
+        }
+        return true;
+    }
+
+    public Merchant getMerchant(String username) {
+        try {
+            return menuCatalog.getShardRouter().merchant(username);
+        } catch (SQLException e) {
+            logger.error("Error registering merchant {}", username, e);
+            return null;
+        }
+    }
+
+    public User login(String username, String password) {
+        return login(username, password, null);
+    }
+
+    public User login(String username, String password, String address) {
+        admissionControl.check(AdmissionControl.Operation.LOGIN, username, address);
+        return userManager.login(username, password) ? userManager.getUser(username) : null;
+    }
+
+    public Menu getMenu() {
+        return menuCatalog.getMenu();
+    }
+
+    public List<FoodItem> searchMenu(String query, int limit) {
+        return menuCatalog.search(query, limit);
+    }
+
+    public FoodItem getFoodItem(int itemId) {
+        return menuCatalog.snapshot().getById(itemId);
+    }
+
+    public Order newOrder() {
+        Order order = new Order();
+        order.setCatalogVersion(menuCatalog.getVersion());
+        return order;
+    }
+
+    public boolean addToCart(Order order, int itemId, int quantity) {
+        FoodItem item = menuCatalog.snapshot().getById(itemId);
+        if (item == null || quantity <= 0 || order.getStatus() != OrderStatus.NEW
+                || !order.getCart().isEmpty() && item.getMerchantId() != order.getMerchantId()) {
+            return false;
+        }
+        order.addItem(item, quantity);
+        return true;
+    }
+
+    public CheckoutResult checkout(Order order) {
+        return checkoutAsync(order).join();
+    }
+
+    public CheckoutResult checkout(Order order, String idempotencyKey) {
+        return checkoutAsync(order, idempotencyKey).join();
+    }
+
+    public CompletableFuture<CheckoutResult> checkoutAsync(Order order) {
+        return checkoutAsync(order, null, null);
+    }
+
+    public CompletableFuture<CheckoutResult> checkoutAsync(Order order, String idempotencyKey) {
+        return checkoutAsync(order, idempotencyKey, null);
+    }
+
+    public CompletableFuture<CheckoutResult> checkoutAsync(Order order, String idempotencyKey, String address) {
+        if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > IdempotencyCache.MAX_KEY_LENGTH)) {
+            throw new IllegalArgumentException("Idempotency keys must be 1 to " + IdempotencyCache.MAX_KEY_LENGTH + " characters");
+        }
+        admissionControl.check(AdmissionControl.Operation.CHECKOUT, order.getCustomer(), address);
+        if (idempotencyKey == null) {
+            return place(order);
+        }
+        String customer = order.getCustomer() != null ? order.getCustomer() : "";
+        return idempotencyCache.checkout(customer + "/" + idempotencyKey, order, this::place);
+    }
+
+    private CompletableFuture<CheckoutResult> place(Order order) {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        if (!limiter.tryAcquire()) {
+            CheckoutStatus.BUSY.counter.increment();
+            return CompletableFuture.completedFuture(new CheckoutResult(CheckoutStatus.BUSY, order, Collections.emptyList()));
+        }
+        long start = CHECKOUT_LATENCY.start();
+        return checkoutPipeline.submit(order).whenComplete((result, error) -> {
+            limiter.release();
+            CHECKOUT_LATENCY.stop(start);
+            if (result != null) {
+                result.getStatus().counter.increment();
+                if (result.getStatus() == CheckoutStatus.PLACED && result.getOrder() == order) {
+                    salesAnalytics.recordOrder(result.getOrder());
+                }
+            }
+        });
+    }
+
+    // Keys from before a restart are loaded once here; checkouts never go to the database on a cache miss
+    private void warmIdempotencyCache() {
+        if (orderJournal != null && !orderJournal.checkpoint()) {
+            logger.warn("Journal checkpoint failed, idempotency keys of unsaved journal orders are restored from memory only");
+        }
+        try {
+            long since = System.currentTimeMillis() - idempotencyCache.getTtlMillis();
+            for (OrderRepository.CheckoutRequest request : orderRepository.recentCheckoutRequests(since, idempotencyCache.getMaxEntries())) {
+                idempotencyCache.remember(request.getKey(), request.getOrderId(), request.getCreatedAt());
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading recent checkout requests", e);
+        }
+        if (orderJournal != null) {
+            for (Order order : OrderManager.getOpenOrders()) {
+                idempotencyCache.remember(order);
+            }
+        }
+    }
+
+    private Order findOrder(int orderId) throws SQLException {
+        Order order = OrderManager.getOrder(orderId);
+        return order != null ? order : orderRepository.findOrder(orderId);
+    }
+
+    public SalesAnalytics getSalesAnalytics() {
+        return salesAnalytics;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public CheckoutPipeline getCheckoutPipeline() {
+        return checkoutPipeline;
+    }
+
+    private void persistOrders(List<Order> orders) throws SQLException, IOException {
+        long start = ORDER_SAVE_LATENCY.start();
+        try {
+            if (orderJournal != null) {
+                for (Order order : orders) {
+                    orderJournal.orderPlaced(order);
+                }
+            } else {
+                orderRepository.saveAll(orders);
+            }
+        } finally {
+            ORDER_SAVE_LATENCY.stop(start);
+            admissionControl.getLimiter().onLatency(start, System.nanoTime() - start);
+        }
+    }
+
+    public void saveOrderToDatabase(Order order) throws SQLException {
+        long start = ORDER_SAVE_LATENCY.start();
+        try {
+            orderRepository.save(order);
+        } finally {
+            ORDER_SAVE_LATENCY.stop(start);
+        }
+    }
+
+    public FoodItem saveFoodItemToDatabase(FoodItem foodItem) throws SQLException {
+        long start = ITEM_SAVE_LATENCY.start();
+        try {
+            return menuCatalog.addItem(foodItem);
+        } finally {
+            ITEM_SAVE_LATENCY.stop(start);
+        }
+    }
+
+    public DeliveryPerson registerCourier(String username) {
+        return courierDispatcher.register(new DeliveryPerson(username));
+    }
+
+    public List<DeliveryPerson> getAvailableCouriers() {
+        return courierDispatcher.getAvailableCouriers();
+    }
+
+    public void updateDeliveryPersonStatus(DeliveryPerson deliveryPerson, boolean online) {
+        deliveryPerson.setOnline(online);
+        deliveryPerson.setAvailable(online);
+        courierPresence.record(deliveryPerson);
+    }
+
+    public void heartbeat(DeliveryPerson deliveryPerson) {
+        courierPresence.heartbeat(deliveryPerson.getName());
+    }
+
+    public void updateLocation(DeliveryPerson deliveryPerson, GeoPoint location) {
+        deliveryPerson.setLocation(location);
+        courierPresence.heartbeat(deliveryPerson.getName());
+    }
+
+    public List<DeliveryPerson> getNearestCouriers(GeoPoint location, int limit) {
+        return courierDispatcher.nearestAvailable(location, limit);
+    }
+
+    public void deleteAccount(String username) {
+        userManager.deleteAccount(username);
+        courierPresence.forget(username);
+        DeliveryPerson deliveryPerson = courierDispatcher.getCourier(username);
+        if (deliveryPerson != null) {
+            courierDispatcher.unregister(deliveryPerson);
+        }
+    }
+
+    public CourierPresence getCourierPresence() {
+        return courierPresence;
+    }
+
+    public BatchDispatcher getBatchDispatcher() {
+        return batchDispatcher;
+    }
+
+    public Stream<DeliveryPerson> streamCouriers(Boolean online) {
+        return userManager.streamCouriers(online).map(courierPresence::overlay);
+    }
+
+    public Stream<Order> streamOrders(OrderStatus status, long fromMillis, long toMillis) {
+        return orderRepository.streamOrders(status, fromMillis, toMillis);
+    }
+
+    public Stream<Order> streamOrders(Merchant merchant, OrderStatus status, long fromMillis, long toMillis) {
+        return orderRepository.streamOrders(merchant, status, fromMillis, toMillis);
+    }
+
+    public List<Order> getPendingOrders() {
+        return OrderManager.getPendingOrders();
+    }
+
+    public List<Order> getPendingOrders(Merchant merchant) {
+        List<Order> orders = OrderManager.getPendingOrders();
+        orders.removeIf(order -> order.getMerchantId() != merchant.getId());
+        return orders;
+    }
+
+    public AcceptStatus acceptOrder(Order order, DeliveryPerson deliveryPerson) {
+        return acceptOrder(order, deliveryPerson, deliveryPerson != null ? deliveryPerson.getName() : null, null);
+    }
+
+    public AcceptStatus acceptOrder(Order order, DeliveryPerson deliveryPerson, String username, String address) {
+        admissionControl.check(AdmissionControl.Operation.ACCEPT, username, address);
+        return assign(order, deliveryPerson);
+    }
+
+    private AcceptStatus assign(Order order, DeliveryPerson deliveryPerson) {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        if (!limiter.tryAcquire()) {
+            AcceptStatus.BUSY.counter.increment();
+            return AcceptStatus.BUSY;
+        }
+        long start = ACCEPT_LATENCY.start();
+        AcceptStatus status;
+        try {
+            status = assignCourier(order, deliveryPerson);
+        } finally {
+            limiter.release();
+        }
+        ACCEPT_LATENCY.stop(start);
+        status.counter.increment();
+        return status;
+    }
+
+    private AcceptStatus assignCourier(Order order, DeliveryPerson deliveryPerson) {
+        Delivery delivery = new Delivery("Order #" + order.getId() + ", total $" + order.calculateTotal(), order.getDeliveryLocation(), courierDispatcher);
+        boolean assigned = deliveryPerson != null
+                ? delivery.assignTo(deliveryPerson)
+                : delivery.assignToAvailableDeliveryPerson();
+        if (!assigned) {
+            return AcceptStatus.NO_COURIER;
+        }
+        if (!OrderManager.acceptOrder(order, delivery.getAssignedDeliveryPerson())) {
+            delivery.cancel();
+            return AcceptStatus.ALREADY_TAKEN;
+        }
+        courierPresence.record(delivery.getAssignedDeliveryPerson());
+        long start = System.nanoTime();
+        try {
+            if (orderJournal != null) {
+                orderJournal.orderAccepted(order, order.getDeliveryPerson());
+            } else {
+                orderRepository.updateStatus(order);
+            }
+        } catch (SQLException | IOException e) {
+            logger.error("Error recording acceptance of order {}", order.getId(), e);
+        }
+        admissionControl.getLimiter().onLatency(start, System.nanoTime() - start);
+        return AcceptStatus.ACCEPTED;
+    }
+
+    public boolean completeDelivery(Order order, DeliveryPerson deliveryPerson) {
+        if (order.getDeliveryPerson() != deliveryPerson || !OrderManager.markDelivered(order)) {
+            return false;
+        }
+        Delivery delivery = deliveryPerson.getAssignedDelivery();
+        if (delivery != null) {
+            delivery.complete();
+        }
+        courierPresence.record(deliveryPerson);
+        salesAnalytics.recordDelivery(deliveryPerson, System.currentTimeMillis());
+        try {
+            if (orderJournal != null) {
+                orderJournal.orderDelivered(order);
+            } else {
+                orderRepository.updateStatus(order);
+            }
+        } catch (SQLException | IOException e) {
+            logger.error("Error recording delivery of order {}", order.getId(), e);
+        }
+        return true;
+    }
+
+    public void close() {
+        if (batchDispatcher != null) {
+            batchDispatcher.close();
+        }
+        checkoutPipeline.close();
+        admissionControl.close();
+        salesAnalytics.close();
+        courierPresence.close();
+        if (orderJournal != null) {
+            orderJournal.close();
+        }
+    }
+}
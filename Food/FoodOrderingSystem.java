@@ -1,15 +1,32 @@
-import java.util.logging.Logger;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.UUID;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class User {
     private String username;
     private String password;
     private String role;
+    private volatile PasswordHasher.Verified verified;
     
     public User(String username, String password, String role) {
         this.username = username;
@@ -35,6 +52,14 @@ class User {
         return role;
     }
 
+    PasswordHasher.Verified getVerified() {
+        return verified;
+    }
+
+    void setVerified(PasswordHasher.Verified verified) {
+        this.verified = verified;
+    }
+
     public PreparedStatement toPreparedStatement(Connection connection) throws SQLException {
         PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO users (username, password, role) VALUES (?, ?, ?)");
         preparedStatement.setString(1, this.username);
@@ -64,125 +89,356 @@ class Admin {
 
 
 class UserManager {
-    private Connection connection;
+    private static final Logger logger = LoggerFactory.getLogger(UserManager.class);
+    private static final Metrics.Histogram LOGIN_LATENCY = Metrics.getInstance().histogram("food_login_seconds", "Time spent verifying a login.");
+    private static final Metrics.Histogram SIGN_UP_LATENCY = Metrics.getInstance().histogram("food_sign_up_seconds", "Time spent registering a new user.");
+    private static final Metrics.Counter LOGIN_SUCCESS = Metrics.getInstance().counter("food_logins_total", "Login attempts by result.", "result", "success");
+    private static final Metrics.Counter LOGIN_FAILURE = Metrics.getInstance().counter("food_logins_total", "Login attempts by result.", "result", "failure");
+    private static final Metrics.Counter SIGN_UPS = Metrics.getInstance().counter("food_sign_ups_total", "Users registered.");
+
+    private ConnectionPool connectionPool;
     private Map<String, User> users;
+    private UserCache userCache;
+    private PasswordHasher passwordHasher;
+    private final Map<String, User> restoredUsers = new ConcurrentHashMap<>();
+    private final Set<String> deletedWhileWarming = ConcurrentHashMap.newKeySet();
+    private volatile StartupSnapshot startupSnapshot;
+    private volatile boolean warming;
 
     public UserManager() {
-        connectToDatabase();
-        createTableIfNotExists();
-        users = new HashMap<>();
+        this(ConnectionPool.getInstance());
+    }
+
+    public UserManager(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        SchemaMigrations.apply(connectionPool);
+        users = new ConcurrentHashMap<>();
+        passwordHasher = new PasswordHasher();
+        if (Boolean.getBoolean("food.users.lazy")) {
+            userCache = new UserCache(Integer.getInteger("food.users.cacheSize", 10_000),
+                    Long.getLong("food.users.cacheTtlSeconds", 600L),
+                    Long.getLong("food.users.negativeTtlSeconds", 30L));
+        }
     }
 
     public Connection getConnection() throws SQLException {
-        return DriverManager.getConnection("jdbc:sqlite:database.db");
+        return connectionPool.getConnection();
+    }
+
+    public boolean signUp(String username, String password, String role ) {
+        long start = SIGN_UP_LATENCY.start();
+        try {
+            if (findUser(username) != null) {
+                return false;
+            }
+            User user = new User(username, passwordHasher.hash(password), role);
+            if (!saveUserToDatabase(user)) {
+                return false;
+            }
+            cacheUser(user);
+            SIGN_UPS.increment();
+            return true;
+        } finally {
+            SIGN_UP_LATENCY.stop(start);
+        }
     }
 
-    private void connectToDatabase() {
+    public boolean login(String username, String password) {
+        long start = LOGIN_LATENCY.start();
         try {
-            Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection("jdbc:sqlite:database.db");
-        } catch (ClassNotFoundException | SQLException e) {
-            e.printStackTrace();
+            User user = findUser(username);
+            if (user == null || !passwordHasher.verify(user, password)) {
+                LOGIN_FAILURE.increment();
+                return false;
+            }
+            if (passwordHasher.needsRehash(user.getPassword())) {
+                upgradePassword(user, password);
+            }
+            LOGIN_SUCCESS.increment();
+            return true;
+        } finally {
+            LOGIN_LATENCY.stop(start);
         }
     }
 
-    private void createTableIfNotExists() {
-        try (Statement statement = connection.createStatement()) {
-            String createUserTableQuery = "CREATE TABLE IF NOT EXISTS users (username TEXT UNIQUE PRIMARY KEY, password TEXT, role TEXT, is_online INTEGER, is_available INTEGER)";
-            statement.executeUpdate(createUserTableQuery);
-            System.out.println("Table created or already exists.");
+    public User getUser(String username) {
+        return findUser(username);
+    }
+
+    private User findUser(String username) {
+        if (userCache == null) {
+            User user = users.get(username);
+            return user != null || !warming ? user : findWarmingUser(username);
+        }
+        try {
+            return userCache.get(username, this::loadUser);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Error loading user {}", username, e);
+            return null;
         }
     }
 
-    public boolean signUp(String username, String password, String role ) {
-        if (!users.containsKey(username)) {
-            users.put(username, new User(username, password,role));
-            saveUserToDatabase(users.get(username));
-            return true;
+    private User findWarmingUser(String username) {
+        if (deletedWhileWarming.contains(username)) {
+            return null;
+        }
+        User user = restoredUsers.get(username);
+        if (user != null) {
+            return user;
         }
-        return false;
+        StartupSnapshot snapshot = startupSnapshot;
+        user = snapshot == null ? null : snapshot.findUser(username);
+        if (user != null) {
+            User existing = restoredUsers.putIfAbsent(username, user);
+            return existing != null ? existing : user;
+        }
+        try {
+            user = loadUser(username);
+        } catch (SQLException e) {
+            logger.error("Error loading user {}", username, e);
+            return null;
+        }
+        if (user == null) {
+            return null;
+        }
+        User existing = users.putIfAbsent(username, user);
+        return existing != null ? existing : user;
     }
 
-    public boolean login(String username, String password) {
-        User user = users.get(username);
-        return user != null && user.getPassword().equals(password);
+    private void cacheUser(User user) {
+        if (userCache == null) {
+            users.put(user.getUsername(), user);
+        } else {
+            userCache.put(user);
+        }
+    }
+
+    private User loadUser(String username) throws SQLException {
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement("SELECT username, password, role FROM users WHERE username = ?")) {
+            preparedStatement.setString(1, username);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? new User(resultSet) : null;
+            }
+        }
+    }
+
+    private void upgradePassword(User user, String password) {
+        User upgraded = new User(user.getUsername(), passwordHasher.hash(password), user.getRole());
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement("UPDATE users SET password = ? WHERE username = ?")) {
+            preparedStatement.setString(1, upgraded.getPassword());
+            preparedStatement.setString(2, upgraded.getUsername());
+            preparedStatement.executeUpdate();
+            cacheUser(upgraded);
+        } catch (SQLException e) {
+            logger.error("Error upgrading the password hash of {}", upgraded.getUsername(), e);
+        }
     }
 
     public void loadUsersFromDatabase() {
-        try (Statement statement = connection.createStatement();
+        if (userCache != null) {
+            return;
+        }
+        try (Connection connection = getConnection();
+             Statement statement = connection.createStatement();
              ResultSet resultSet = statement.executeQuery("SELECT * FROM users")) {
             while (resultSet.next()) {
                 User user = new User(resultSet);
                 users.put(user.getUsername(), user);
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Error loading users", e);
+        }
+    }
+
+    public void warmFrom(StartupSnapshot snapshot) {
+        if (userCache != null) {
+            return;
         }
+        startupSnapshot = snapshot;
+        warming = true;
     }
 
-    public void saveUserToDatabase(User user) {
-        try (PreparedStatement preparedStatement = user.toPreparedStatement(connection)) {
+    public boolean isWarming() {
+        return warming;
+    }
+
+    public int reconcileUsers() {
+        if (!warming) {
+            return 0;
+        }
+        Map<String, User> loaded = new HashMap<>();
+        try (Connection connection = getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT username, password, role FROM users")) {
+            while (resultSet.next()) {
+                User user = new User(resultSet);
+                loaded.put(user.getUsername(), user);
+            }
+        } catch (SQLException e) {
+            logger.error("Error reconciling users", e);
+            return 0;
+        }
+        for (User user : loaded.values()) {
+            if (!deletedWhileWarming.contains(user.getUsername())) {
+                users.putIfAbsent(user.getUsername(), user);
+            }
+        }
+        for (String username : deletedWhileWarming) {
+            users.remove(username, loaded.get(username));
+        }
+        warming = false;
+        startupSnapshot = null;
+        restoredUsers.clear();
+        deletedWhileWarming.clear();
+        return loaded.size();
+    }
+
+    public Collection<User> getLoadedUsers() {
+        return warming ? null : users.values();
+    }
+
+    public boolean saveUserToDatabase(User user) {
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = user.toPreparedStatement(connection)) {
             preparedStatement.executeUpdate();
+            return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Error saving user {}", user.getUsername(), e);
+            return false;
         }
     }
 
-    public void viewAllUsers() {
-        try (Statement statement = connection.createStatement();
-             ResultSet resultSet = statement.executeQuery("SELECT * FROM users")) {
-            System.out.println("All Users:");
+    public Stream<User> streamUsers(String role, Boolean online) {
+        return KeysetPager.stream((after, limit) -> listUsers(role, online, after == null ? null : after.getUsername(), limit),
+                KeysetPager.defaultPageSize());
+    }
+
+    public Stream<DeliveryPerson> streamCouriers(Boolean online) {
+        return KeysetPager.stream((after, limit) -> listCouriers(online, after == null ? null : after.getName(), limit),
+                KeysetPager.defaultPageSize());
+    }
+
+    public List<User> listUsers(String role, Boolean online, String afterUsername, int limit) throws SQLException {
+        List<User> page = new ArrayList<>(limit);
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = prepareUserPage(connection, role, online, afterUsername, limit);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
             while (resultSet.next()) {
-                System.out.println("Username: " + resultSet.getString("username") +
-                        ", Role: " + resultSet.getString("role"));
+                page.add(new User(resultSet));
+            }
+        }
+        return page;
+    }
+
+    public List<DeliveryPerson> listCouriers(Boolean online, String afterUsername, int limit) throws SQLException {
+        List<DeliveryPerson> page = new ArrayList<>(limit);
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = prepareUserPage(connection, "delivery man", online, afterUsername, limit);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                DeliveryPerson deliveryPerson = new DeliveryPerson(resultSet.getString("username"));
+                deliveryPerson.setOnline(resultSet.getBoolean("is_online"));
+                deliveryPerson.setAvailable(resultSet.getBoolean("is_available"));
+                page.add(deliveryPerson);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        return page;
+    }
+
+    private PreparedStatement prepareUserPage(Connection connection, String role, Boolean online, String afterUsername, int limit) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT username, password, role, is_online, is_available FROM users WHERE 1 = 1");
+        if (role != null) {
+            sql.append(" AND role = ?");
+        }
+        if (online != null) {
+            sql.append(" AND COALESCE(is_online, 0) = ?");
+        }
+        if (afterUsername != null) {
+            sql.append(" AND username > ?");
+        }
+        sql.append(" ORDER BY username LIMIT ?");
+        PreparedStatement preparedStatement = connection.prepareStatement(sql.toString());
+        int parameter = 1;
+        if (role != null) {
+            preparedStatement.setString(parameter++, role);
+        }
+        if (online != null) {
+            preparedStatement.setBoolean(parameter++, online);
+        }
+        if (afterUsername != null) {
+            preparedStatement.setString(parameter++, afterUsername);
+        }
+        preparedStatement.setInt(parameter, limit);
+        preparedStatement.setFetchSize(limit);
+        return preparedStatement;
     }
 
     public void addAdmin(String username, String password) {
-        if (!users.containsKey(username)) {
-            users.put(username, new User(username, password, "admin"));
-            saveUserToDatabase(users.get(username));
+        if (findUser(username) == null) {
+            User admin = new User(username, passwordHasher.hash(password), "admin");
+            if (saveUserToDatabase(admin)) {
+                cacheUser(admin);
+            }
         } else {
             System.out.println("Admin account already exists.");
         }
     }
 
     public void deleteAccount(String username) {
-        try (PreparedStatement preparedStatementUser = connection.prepareStatement("DELETE FROM users WHERE username = ?")) {
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatementUser = connection.prepareStatement("DELETE FROM users WHERE username = ?")) {
             preparedStatementUser.setString(1, username);
             preparedStatementUser.executeUpdate();
+            if (warming) {
+                deletedWhileWarming.add(username);
+                restoredUsers.remove(username);
+            }
+            users.remove(username);
+            if (userCache != null) {
+                userCache.invalidate(username);
+            }
             System.out.println("User account deleted: " + username);
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Error deleting user {}", username, e);
         }
     }
 }
 
 class FoodItem {
     private int id;
+    private int merchantId;
     private String name;
     private double price;
+    private long priceCents;
 
     public FoodItem(String name, double price) {
         this.name = name;
         this.price = price;
+        this.priceCents = Math.round(price * 100);
     }
 
     public FoodItem(int id,String name, double price) {
-        this.id=id;
+        this(id, Merchant.HOUSE, name, price);
+    }
+
+    public FoodItem(int id, int merchantId, String name, double price) {
+        this.id = id;
+        this.merchantId = merchantId;
         this.name = name;
         this.price = price;
+        this.priceCents = Math.round(price * 100);
     }
 
     public int getId() {
         return id;
     }
 
+    public int getMerchantId() {
+        return merchantId;
+    }
+
     public String getName() {
         return name;
     }
@@ -191,48 +447,111 @@ class FoodItem {
         return price;
     }
 
-    public PreparedStatement toPreparedStatement(Connection connection) throws SQLException {
-        PreparedStatement preparedStatement;
+    public long getPriceCents() {
+        return priceCents;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof FoodItem)) {
+            return false;
+        }
+        FoodItem item = (FoodItem) other;
+        return id == item.id && priceCents == item.priceCents && Objects.equals(name, item.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, name, priceCents);
+    }
+
+    public PreparedStatement toPreparedStatement(Connection connection, int shard) throws SQLException {
         if (id == 0) {
-            preparedStatement = connection.prepareStatement("INSERT INTO items (name, price) VALUES (?, ?)");
-        } else {
-            preparedStatement = connection.prepareStatement("INSERT INTO items (id, name, price) VALUES (?, ?, ?)");
-            preparedStatement.setInt(1, id);
+            PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO items (id, merchant_id, name, price) "
+                    + "SELECT next_id, ?, ?, ? FROM (SELECT COALESCE(MAX(id), ?) + 1 AS next_id FROM items) WHERE next_id <= ?", Statement.RETURN_GENERATED_KEYS);
+            preparedStatement.setInt(1, this.merchantId);
+            preparedStatement.setString(2, this.name);
+            preparedStatement.setDouble(3, this.price);
+            preparedStatement.setInt(4, ShardRouter.idBase(shard));
+            preparedStatement.setInt(5, ShardRouter.lastId(shard));
+            return preparedStatement;
         }
-        preparedStatement.setString(id == 0 ? 1 : 2, this.name);
-        preparedStatement.setDouble(id == 0 ? 2 : 3, this.price);
+        PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO items (id, merchant_id, name, price) VALUES (?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+        preparedStatement.setInt(1, id);
+        preparedStatement.setInt(2, this.merchantId);
+        preparedStatement.setString(3, this.name);
+        preparedStatement.setDouble(4, this.price);
         return preparedStatement;
     }
     
 }
 
+enum OrderStatus {
+    NEW, PLACED, ACCEPTED, DELIVERED
+}
+
 class Order {
-    private int id;
-    private Map<FoodItem, Integer> items;
-    private DeliveryPerson deliveryPerson;
+    private volatile int id;
+    private volatile int merchantId;
+    private final Cart cart;
+    private volatile DeliveryPerson deliveryPerson;
+    private final AtomicReference<OrderStatus> status = new AtomicReference<>(OrderStatus.NEW);
+    private volatile long catalogVersion;
+    private volatile long createdAt;
+    private volatile String deliveryAddress;
+    private volatile GeoPoint deliveryLocation;
+    private volatile String customer;
+    private volatile String idempotencyKey;
+    private volatile Order duplicateOf;
 
     public int getId() {
         return id;
     }
 
+    void setId(int id) {
+        this.id = id;
+    }
+
     public Order() {
-        items = new HashMap<>();
+        cart = new Cart();
     }
 
     public void addItem(FoodItem item, int quantity) {
-        items.put(item, items.getOrDefault(item, 0) + quantity);
+        if (cart.isEmpty()) {
+            merchantId = item.getMerchantId();
+        }
+        cart.add(item, quantity);
+    }
+
+    public int getMerchantId() {
+        return merchantId;
+    }
+
+    void setMerchantId(int merchantId) {
+        this.merchantId = merchantId;
+    }
+
+    public Cart getCart() {
+        return cart;
     }
 
     public Map<FoodItem, Integer> getItems() {
+        Map<FoodItem, Integer> items = new LinkedHashMap<>();
+        for (int line = 0; line < cart.size(); line++) {
+            items.put(cart.getItem(line), cart.getQuantity(line));
+        }
         return items;
     }
 
+    public long getTotalCents() {
+        return cart.getTotalCents();
+    }
+
     public double calculateTotal() {
-        double total = 0.0;
-        for (Map.Entry<FoodItem, Integer> entry : items.entrySet()) {
-            total += entry.getKey().getPrice() * entry.getValue();
-        }
-        return total;
+        return cart.getTotalCents() / 100.0;
     }
     public void setDeliveryPerson(DeliveryPerson deliveryPerson) {
         this.deliveryPerson = deliveryPerson;
@@ -241,29 +560,184 @@ class Order {
     public DeliveryPerson getDeliveryPerson() {
         return deliveryPerson;
     }
+
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public void setCatalogVersion(long catalogVersion) {
+        this.catalogVersion = catalogVersion;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getDeliveryAddress() {
+        return deliveryAddress;
+    }
+
+    public GeoPoint getDeliveryLocation() {
+        return deliveryLocation;
+    }
+
+    public void setDeliveryAddress(String deliveryAddress, GeoPoint deliveryLocation) {
+        this.deliveryAddress = deliveryAddress;
+        this.deliveryLocation = deliveryLocation;
+    }
+
+    public String getCustomer() {
+        return customer;
+    }
+
+    public void setCustomer(String customer) {
+        this.customer = customer;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    Order getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    void setDuplicateOf(Order duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+
+    public OrderStatus getStatus() {
+        return status.get();
+    }
+
+    void restoreStatus(OrderStatus restored) {
+        status.set(restored);
+    }
+
+    boolean transition(OrderStatus from, OrderStatus to) {
+        return status.compareAndSet(from, to);
+    }
+}
+
+class Merchant {
+    public static final int HOUSE = 0;
+
+    private final int id;
+    private final String username;
+    private final int shard;
+
+    public Merchant(int id, String username, int shard) {
+        this.id = id;
+        this.username = username;
+        this.shard = shard;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+}
+
+final class GeoPoint {
+    private static final double KM_PER_DEGREE = 111.32;
+
+    private final double latitude;
+    private final double longitude;
+
+    public GeoPoint(double latitude, double longitude) {
+        if (!isValid(latitude, longitude)) {
+            throw new IllegalArgumentException("Invalid coordinates " + latitude + ", " + longitude);
+        }
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public static boolean isValid(double latitude, double longitude) {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+    public static GeoPoint parse(String latitude, String longitude) {
+        try {
+            double lat = Double.parseDouble(latitude);
+            double lon = Double.parseDouble(longitude);
+            return isValid(lat, lon) ? new GeoPoint(lat, lon) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double distanceKm(GeoPoint other) {
+        double x = Math.IEEEremainder(other.longitude - longitude, 360) * Math.cos(Math.toRadians(latitude));
+        double y = other.latitude - latitude;
+        return Math.sqrt(x * x + y * y) * KM_PER_DEGREE;
+    }
+
+    @Override
+    public String toString() {
+        return latitude + "," + longitude;
+    }
 }
 
 class Menu {
-    private ArrayList<FoodItem> items;
+    private List<FoodItem> items;
+    private long version;
 
     public Menu() {
         items = new ArrayList<>();
     }
 
+    public Menu(List<FoodItem> items, long version) {
+        this.items = items;
+        this.version = version;
+    }
+
     public void addItem(FoodItem item) {
         items.add(item);
     }
 
-    public ArrayList<FoodItem> getItems() {
+    public List<FoodItem> getItems() {
         return items;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
 
 class DeliveryPerson {
     private String username;
-    private boolean isOnline;
-    private Delivery assignedDelivery;
-    private boolean isAvailable;
+    private volatile boolean isOnline;
+    private volatile Delivery assignedDelivery;
+    private volatile boolean isAvailable;
+    private volatile CourierDispatcher dispatcher;
+    private volatile GeoPoint location;
+    private long lastAssignedSequence;
+    private int activeDeliveries;
+    private int completedDeliveries;
+    long gridCell = CourierGrid.NO_CELL;
 
     public DeliveryPerson(String username) {
         this.username = username;
@@ -285,127 +759,288 @@ class DeliveryPerson {
 
     public void setAvailable(boolean available) {
         isAvailable = available;
+        notifyDispatcher();
     }
 
     public void setOnline(boolean online) {
         isOnline = online;
+        notifyDispatcher();
     }
     public Delivery getAssignedDelivery() {
         return assignedDelivery;
     }
     public void setAssignedDelivery(Delivery assignedDelivery) {
         this.assignedDelivery = assignedDelivery;
+        notifyDispatcher();
+    }
+
+    public GeoPoint getLocation() {
+        return location;
+    }
+
+    public void setLocation(GeoPoint location) {
+        this.location = location;
+        notifyDispatcher();
+    }
+
+    public long getLastAssignedSequence() {
+        return lastAssignedSequence;
+    }
+
+    public int getActiveDeliveries() {
+        return activeDeliveries;
+    }
+
+    public int getCompletedDeliveries() {
+        return completedDeliveries;
+    }
+
+    void setDispatcher(CourierDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    void recordAssignment(Delivery delivery, long sequence) {
+        assignedDelivery = delivery;
+        isAvailable = false;
+        lastAssignedSequence = sequence;
+        activeDeliveries++;
+    }
+
+    void recordCompletion() {
+        assignedDelivery = null;
+        isAvailable = true;
+        if (activeDeliveries > 0) {
+            activeDeliveries--;
+            completedDeliveries++;
+        }
+    }
+
+    void recordCancellation() {
+        assignedDelivery = null;
+        isAvailable = true;
+        if (activeDeliveries > 0) {
+            activeDeliveries--;
+        }
+    }
+
+    private void notifyDispatcher() {
+        CourierDispatcher current = dispatcher;
+        if (current != null) {
+            current.refresh(this);
+        }
     }
 }
 
 class Delivery {
+    private static final Logger logger = LoggerFactory.getLogger(Delivery.class);
+
     private String details;
-    private List<DeliveryPerson> deliveryPersons;
+    private GeoPoint destination;
+    private CourierDispatcher dispatcher;
+    private volatile DeliveryPerson assignedDeliveryPerson;
     
     public Delivery(String details) {
+        this(details, CourierDispatcher.getInstance());
+    }
+
+    public Delivery(String details, CourierDispatcher dispatcher) {
+        this(details, null, dispatcher);
+    }
+
+    public Delivery(String details, GeoPoint destination, CourierDispatcher dispatcher) {
         this.details = details;
-        this.deliveryPersons = new ArrayList<>();
+        this.destination = destination;
+        this.dispatcher = dispatcher;
     }
 
     public String getDetails() {
         return details;
     }
 
+    public GeoPoint getDestination() {
+        return destination;
+    }
+
     public void addDeliveryPerson(DeliveryPerson deliveryPerson) {
-        this.deliveryPersons.add(deliveryPerson);
+        dispatcher.register(deliveryPerson);
     }
 
     public List<DeliveryPerson> getDeliveryPersons() {
-        return deliveryPersons;
+        return new ArrayList<>(dispatcher.getCouriers());
+    }
+
+    public DeliveryPerson getAssignedDeliveryPerson() {
+        return assignedDeliveryPerson;
     }
 
     public boolean assignToAvailableDeliveryPerson() {
-        for (DeliveryPerson deliveryPerson : deliveryPersons) {
-            if (deliveryPerson.isOnline() && deliveryPerson.getAssignedDelivery() == null) {
-                deliveryPerson.setAssignedDelivery(this);
-                System.out.println("Delivery assigned to: " + deliveryPerson.getName());
-                System.out.println("Delivery details: " + getDetails());
-                return true;
-            }
+        DeliveryPerson deliveryPerson = dispatcher.assign(this);
+        if (deliveryPerson == null) {
+            return false;
         }
-        return false;
+        onAssigned(deliveryPerson);
+        return true;
     }
 
-    public List<DeliveryPerson> getAvailableDeliveryPersons() {
-        List<DeliveryPerson> availableDeliveryPersons = new ArrayList<>();
-        for (DeliveryPerson deliveryPerson : deliveryPersons) {
-            if (deliveryPerson.isOnline()) {
-                availableDeliveryPersons.add(deliveryPerson);
-            }
+    public boolean assignTo(DeliveryPerson deliveryPerson) {
+        if (!dispatcher.assign(this, deliveryPerson)) {
+            return false;
+        }
+        onAssigned(deliveryPerson);
+        return true;
+    }
+
+    boolean restoreTo(DeliveryPerson deliveryPerson) {
+        if (!dispatcher.restoreAssignment(this, deliveryPerson)) {
+            return false;
         }
-        return availableDeliveryPersons;
+        assignedDeliveryPerson = deliveryPerson;
+        return true;
+    }
+
+    public void complete() {
+        DeliveryPerson deliveryPerson = assignedDeliveryPerson;
+        if (deliveryPerson != null) {
+            dispatcher.completeDelivery(deliveryPerson);
+        }
+    }
+
+    public void cancel() {
+        DeliveryPerson deliveryPerson = assignedDeliveryPerson;
+        if (deliveryPerson != null) {
+            dispatcher.cancelDelivery(deliveryPerson);
+        }
+    }
+
+    private void onAssigned(DeliveryPerson deliveryPerson) {
+        assignedDeliveryPerson = deliveryPerson;
+        logger.debug("Delivery assigned to {}: {}", deliveryPerson.getName(), getDetails());
+    }
+
+    public List<DeliveryPerson> getAvailableDeliveryPersons() {
+        return dispatcher.getAvailableCouriers();
     }
 }
 
 class OrderManager {
-    private static ArrayList<Order> orders = new ArrayList<>();
+    private static final ConcurrentHashMap<Integer, Order> ordersById = new ConcurrentHashMap<>();
+    private static final ConcurrentLinkedQueue<Order> pendingOrders = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger provisionalIds = new AtomicInteger();
+
+    public static boolean placeOrder(Order order) {
+        if (!order.transition(OrderStatus.NEW, OrderStatus.PLACED)) {
+            return false;
+        }
+        if (order.getId() == 0) {
+            order.setId(provisionalIds.decrementAndGet());
+        }
+        ordersById.put(order.getId(), order);
+        pendingOrders.offer(order);
+        OrderEvents.getInstance().publish(order);
+        return true;
+    }
+
+    static void restoreOrder(Order order) {
+        ordersById.put(order.getId(), order);
+        if (order.getStatus() == OrderStatus.PLACED) {
+            pendingOrders.offer(order);
+        }
+    }
 
-    public static void placeOrder(Order order) {
-        orders.add(order);
+    public static Order getOrder(int id) {
+        return ordersById.get(id);
     }
-    public static ArrayList<Order> getOrders() {
-        return orders;
+
+    public static List<Order> getOpenOrders() {
+        return new ArrayList<>(ordersById.values());
+    }
+
+    public static List<Order> getPendingOrders() {
+        List<Order> snapshot = new ArrayList<>();
+        for (Iterator<Order> iterator = pendingOrders.iterator(); iterator.hasNext(); ) {
+            Order order = iterator.next();
+            if (order.getStatus() == OrderStatus.PLACED) {
+                snapshot.add(order);
+            } else {
+                iterator.remove();
+            }
+        }
+        return snapshot;
+    }
+
+    public static boolean hasPendingOrders() {
+        Order head;
+        while ((head = pendingOrders.peek()) != null && head.getStatus() != OrderStatus.PLACED) {
+            pendingOrders.remove(head);
+        }
+        return head != null;
+    }
+
+    public static boolean acceptOrder(Order order, DeliveryPerson deliveryPerson) {
+        if (!order.transition(OrderStatus.PLACED, OrderStatus.ACCEPTED)) {
+            return false;
+        }
+        order.setDeliveryPerson(deliveryPerson);
+        OrderEvents.getInstance().publish(order);
+        return true;
+    }
+
+    public static Order claimNextOrder(DeliveryPerson deliveryPerson) {
+        Order order;
+        while ((order = pendingOrders.poll()) != null) {
+            if (order.transition(OrderStatus.PLACED, OrderStatus.ACCEPTED)) {
+                order.setDeliveryPerson(deliveryPerson);
+                OrderEvents.getInstance().publish(order);
+                return order;
+            }
+        }
+        return null;
+    }
+
+    public static boolean markDelivered(Order order) {
+        if (!order.transition(OrderStatus.ACCEPTED, OrderStatus.DELIVERED)) {
+            return false;
+        }
+        ordersById.remove(order.getId(), order);
+        OrderEvents.getInstance().publish(order);
+        return true;
     }
 }
 
 public class FoodOrderingSystem {
+    private static FoodOrderingService service;
     private static UserManager userManager;
     private static Scanner scanner;
-    private static final Logger logger = Logger.getLogger(FoodOrderingSystem.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(FoodOrderingSystem.class);
 
-    private static void saveFoodItemToDatabase(FoodItem foodItem) {
-        try (Connection connection = getConnection()) {
-            try (PreparedStatement preparedStatement = foodItem.toPreparedStatement(connection)) {
-                preparedStatement.executeUpdate();
-                System.out.println("Food item added to the database!");
-            }
+    private static FoodItem saveFoodItemToDatabase(FoodItem foodItem) {
+        try {
+            FoodItem savedItem = service.saveFoodItemToDatabase(foodItem);
+            System.out.println("Food item added to the database!");
+            return savedItem;
         } catch (SQLException e) {
             System.err.println("Error saving food item to the database: " + e.getMessage());
-            e.printStackTrace();
-        }
-    }
-
-    private static void saveDeliveryPersonToDatabase(DeliveryPerson deliveryPerson) {
-        try (Connection connection = userManager.getConnection();
-            PreparedStatement checkStatement = connection.prepareStatement("SELECT COUNT(*) FROM users WHERE username = ?");
-            PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO users (username, password, role, is_online, is_available) VALUES (?, ?, ?, ?, ?)")) {
-            checkStatement.setString(1, deliveryPerson.getName());
-            ResultSet resultSet = checkStatement.executeQuery();
-            resultSet.next();
-            int count = resultSet.getInt(1);
-            resultSet.close();
-            if(count == 0){
-                preparedStatement.setString(1, deliveryPerson.getName());
-                preparedStatement.setString(2, "");
-                preparedStatement.setString(3, "delivery man");
-                preparedStatement.setBoolean(4, deliveryPerson.isOnline());
-                preparedStatement.setBoolean(5, deliveryPerson.isAvailable());
-                preparedStatement.executeUpdate();
-                System.out.println("Delivery person added to the database!");
-            }
-        } catch (SQLException e) {
-                e.printStackTrace();
+            logger.error("Error saving food item", e);
+            return null;
         }
     }
-    
 
     private static void updateDeliveryPersonStatus(DeliveryPerson deliveryPerson) {
         System.out.println("Do you want to set yourself online? (1 for Yes, 0 for No): ");
         int setOnlineChoice = scanner.nextInt();
         if (setOnlineChoice == 1) {
-            deliveryPerson.setOnline(true);
-            deliveryPerson.setAvailable(true);
-            saveDeliveryPersonToDatabase(deliveryPerson);
+            service.updateDeliveryPersonStatus(deliveryPerson, true);
             System.out.println("You are now online.");
+            scanner.nextLine();
+            System.out.print("Enter your current location as <latitude> <longitude> (leave blank to skip): ");
+            String[] parts = scanner.nextLine().trim().split("\\s+");
+            GeoPoint location = parts.length < 2 ? null : GeoPoint.parse(parts[0], parts[1]);
+            if (location != null) {
+                service.updateLocation(deliveryPerson, location);
+                System.out.println("Location updated to " + location + ".");
+            }
         } else if (setOnlineChoice == 0) {
-            deliveryPerson.setOnline(false);
-            deliveryPerson.setAvailable(false);
-            saveDeliveryPersonToDatabase(deliveryPerson);
+            service.updateDeliveryPersonStatus(deliveryPerson, false);
             System.out.println("You are now offline.");
         } else {
             System.out.println("Invalid choice. Please try again.");
@@ -416,8 +1051,65 @@ public class FoodOrderingSystem {
     public static void main(String[] args) {
 
         logger.info("Application started");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (service != null) {
+                service.close();
+                if (StartupSnapshot.isEnabled()) {
+                    saveStartupSnapshot();
+                }
+            }
+            ShardRouter.getInstance().close();
+            logger.info("Connection pool: {}", ConnectionPool.getInstance().getStats());
+            ConnectionPool.getInstance().close();
+            OrderEvents.getInstance().close();
+            Metrics.getInstance().close();
+        }));
+        Metrics.getInstance().startExporters();
+        OrderEvents.getInstance().start();
         userManager = new UserManager();
-        userManager.loadUsersFromDatabase();
+        StartupSnapshot startupSnapshot = null;
+        if (StartupSnapshot.isEnabled()) {
+            startupSnapshot = StartupSnapshot.open(StartupSnapshot.defaultPath(), StartupSnapshot.describeSource(ShardRouter.getInstance()));
+            userManager.warmFrom(startupSnapshot);
+            MenuCatalog.restore(startupSnapshot);
+        } else {
+            userManager.loadUsersFromDatabase();
+        }
+        OrderRepository orderRepository = new OrderRepository(ShardRouter.getInstance());
+        service = new FoodOrderingService(userManager, orderRepository,
+                MenuCatalog.getInstance(), CourierDispatcher.getInstance(), openOrderJournal(orderRepository));
+        Thread warmup = null;
+        if (StartupSnapshot.isEnabled()) {
+            if (startupSnapshot != null) {
+                logger.info("Restored {} users and {} couriers from startup snapshot {} written at {}", startupSnapshot.getUserCount(),
+                        startupSnapshot.restorePresence(service.getCourierPresence()), startupSnapshot.getPath(),
+                        new Timestamp(startupSnapshot.getCreatedAt()));
+            }
+            warmup = startWarmup(startupSnapshot != null);
+        }
+        logger.info("Ready {} ms after JVM start{}", ManagementFactory.getRuntimeMXBean().getUptime(),
+                userManager.isWarming() ? ", still reconciling with the database" : "");
+        if (args.length > 0 && "--warmup".equals(args[0])) {
+            if (warmup != null) {
+                try {
+                    warmup.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            service.searchMenu("warmup", 1);
+            System.exit(0);
+        }
+        if (args.length > 0 && "--server".equals(args[0])) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("food.server.port", 8081);
+            try {
+                new FoodOrderingServer(service, port).run();
+            } catch (IOException e) {
+                logger.error("Server stopped", e);
+                System.exit(1);
+            }
+            return;
+        }
         scanner = new Scanner(System.in);
         while (true) {
             clearConsole();
@@ -447,6 +1139,61 @@ public class FoodOrderingSystem {
         }
     }
 
+    private static Thread startWarmup(boolean menuRestored) {
+        long started = System.nanoTime();
+        Thread warmup = new Thread(() -> {
+            int changedItems = menuRestored ? MenuCatalog.getInstance().reconcile() : 0;
+            int users = userManager.reconcileUsers();
+            logger.info("Reconciled {} users and {} changed menu items with the database in {} ms", users, changedItems,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        }, "startup-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+        long budgetMillis = Long.getLong("food.startup.budgetMs", 2000L);
+        try {
+            if (budgetMillis > 0) {
+                warmup.join(budgetMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return warmup;
+    }
+
+    private static void saveStartupSnapshot() {
+        Collection<User> users = userManager.getLoadedUsers();
+        if (users == null) {
+            logger.warn("Keeping the previous startup snapshot because warm-up had not finished");
+            return;
+        }
+        try {
+            long started = System.nanoTime();
+            StartupSnapshot.write(StartupSnapshot.defaultPath(), StartupSnapshot.describeSource(ShardRouter.getInstance()),
+                    users, MenuCatalog.getInstance(), service.getCourierPresence());
+            logger.info("Wrote startup snapshot {} with {} users in {} ms", StartupSnapshot.defaultPath(), users.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (IOException e) {
+            logger.error("Error writing the startup snapshot", e);
+        }
+    }
+
+    private static OrderJournal openOrderJournal(OrderRepository orderRepository) {
+        if (!Boolean.getBoolean("food.journal.enabled")) {
+            return null;
+        }
+        try {
+            long started = System.nanoTime();
+            OrderJournal journal = OrderJournal.open(orderRepository);
+            int restored = journal.restore(MenuCatalog.getInstance(), CourierDispatcher.getInstance());
+            logger.info("Restored {} open orders from the journal ({} events replayed) in {} ms", restored,
+                    journal.getReplayedEvents(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            return journal;
+        } catch (IOException e) {
+            logger.error("Error opening the order journal", e);
+            return null;
+        }
+    }
+
     private static void clearConsole() {
         System.out.print("\033[H\033[2J");
         System.out.flush();
@@ -460,19 +1207,30 @@ public class FoodOrderingSystem {
         String signUpPassword = scanner.nextLine();
         System.out.print("Enter your role (user, merchant, delivery man): ");
         String signUpRole = scanner.nextLine();
-        if (userManager.signUp(signUpUsername, signUpPassword,signUpRole)) {
+        if (!FoodOrderingService.isValidRole(signUpRole)) {
+            System.out.println("Invalid role. Please try again.");
+            return;
+        }
+        boolean signedUp;
+        try {
+            signedUp = service.signUp(signUpUsername, signUpPassword, signUpRole);
+        } catch (AdmissionControl.RateLimitedException e) {
+            System.out.println("Too many sign ups. Please try again later.");
+            return;
+        }
+        if (signedUp) {
             System.out.println("Sign up successful!");
             if ("user".equals(signUpRole)) {
-                performFoodOrdering();
+                performFoodOrdering(signUpUsername);
             } else if ("delivery man".equals(signUpRole)) {
-                DeliveryPerson deliveryPerson = new DeliveryPerson(signUpUsername);
+                DeliveryPerson deliveryPerson = service.registerCourier(signUpUsername);
                 updateDeliveryPersonStatus(deliveryPerson);
-                performDeliveryFunctionality();
+                performDeliveryFunctionality(deliveryPerson);
             } else if ("merchant".equals(signUpRole)) {
                 System.out.println("Welcome to Merchant Panel! You can manage your restaurant by using the following functionalities:\n" +
                         "1. Manage Food Items\n" +
                         "2. View Orders");
-                performMerchantFunctionality();
+                performMerchantFunctionality(service.getMerchant(signUpUsername));
             } else {
                 System.out.println("Invalid role. Please try again.");
             }
@@ -490,20 +1248,26 @@ public class FoodOrderingSystem {
         System.out.print("Enter your role (user, merchant, delivery man): ");
         String loginRole = scanner.nextLine();
         clearConsole();
-        if (userManager.login(loginUsername, loginPassword)) {
+        User user;
+        try {
+            user = service.login(loginUsername, loginPassword);
+        } catch (AdmissionControl.RateLimitedException e) {
+            System.out.println("Too many login attempts. Please try again later.");
+            return;
+        }
+        if (user != null) {
             System.out.println("Login successful!");
             if ("user".equals(loginRole)) {
-                performRoleSpecificFunctionality(loginRole,loginUsername);
-                performFoodOrdering();
+                performFoodOrdering(loginUsername);
             } else if ("delivery man".equals(loginRole)) {
-                DeliveryPerson deliveryPerson = new DeliveryPerson(loginUsername);
+                DeliveryPerson deliveryPerson = service.registerCourier(loginUsername);
                 updateDeliveryPersonStatus(deliveryPerson);
-                performDeliveryFunctionality();
+                performDeliveryFunctionality(deliveryPerson);
             } else if ("merchant".equals(loginRole)) {
                 System.out.println("Welcome to Merchant Panel! You can manage your restaurant by using the following functionalities:\n" +
                         "1. Manage Food Items\n" +
                         "2. View Orders");
-                performMerchantFunctionality();
+                performMerchantFunctionality(service.getMerchant(loginUsername));
             } else {
                 System.out.println("Invalid role. Please try again.");
             }
@@ -531,21 +1295,29 @@ public class FoodOrderingSystem {
         System.out.println("Admin functionalities:");
         System.out.println("1. View All Users");
         System.out.println("2. Delete User Account");
-        System.out.println("3. Logout");
+        System.out.println("3. View All Orders");
+        System.out.println("4. Sales Report");
+        System.out.println("5. Logout");
         System.out.print("Choose an option: ");
         int adminChoice = scanner.nextInt();
         scanner.nextLine();
         clearConsole();
         switch (adminChoice) {
             case 1:
-                userManager.viewAllUsers();
+                viewAllUsers();
                 break;
             case 2:
                 System.out.print("Enter the username to delete: ");
                 String usernameToDelete = scanner.nextLine();
-                userManager.deleteAccount(usernameToDelete);
+                service.deleteAccount(usernameToDelete);
                 break;
             case 3:
+                viewOrders(null);
+                break;
+            case 4:
+                viewSalesReport(null);
+                break;
+            case 5:
                 System.out.println("Logging out as admin.");
                 return;
             default:
@@ -557,15 +1329,15 @@ public class FoodOrderingSystem {
     private static void performRoleSpecificFunctionality(String role,String username) {
         switch (role) {
             case "user":
-                performFoodOrdering();
+                performFoodOrdering(username);
                 break;
             case "merchant":
-                performMerchantFunctionality();
+                performMerchantFunctionality(service.getMerchant(username));
                 break;
             case "delivery man":
-                DeliveryPerson deliveryPerson = new DeliveryPerson(username);
+                DeliveryPerson deliveryPerson = service.registerCourier(username);
                 updateDeliveryPersonStatus(deliveryPerson);
-                performDeliveryFunctionality();
+                performDeliveryFunctionality(deliveryPerson);
                 break;
             default:
                 System.out.println("Invalid role.");
@@ -573,75 +1345,79 @@ public class FoodOrderingSystem {
         }
     }
 
-    private static void performFoodOrdering() {
+    private static void performFoodOrdering(String username) {
         clearConsole();
-        Menu menu = new Menu();
-        menu.addItem(new FoodItem("Burger", 5.99));
-        menu.addItem(new FoodItem("Pizza", 8.99));
-        menu.addItem(new FoodItem("Salad", 3.99));
-        Order order = new Order();
+        Order order = service.newOrder();
+        order.setCustomer(username);
+        String checkoutKey = UUID.randomUUID().toString();
 
         while (true) {
             System.out.println("1. Order Food");
-            System.out.println("2. View Cart");
-            System.out.println("3. Checkout");
-            System.out.println("4. Exit");
+            System.out.println("2. Search Food");
+            System.out.println("3. View Cart");
+            System.out.println("4. Checkout");
+            System.out.println("5. Set Delivery Address");
+            System.out.println("6. Exit");
             System.out.print("Choose an option: ");
             int choice = scanner.nextInt();
             switch (choice) {
                 case 1:
+                    Menu menu = service.getMenu();
                     displayMenu(menu);
                     placeOrder(menu, order);
                     break;
                 case 2:
-                    displayCart(order);
+                    searchFood(order);
                     break;
                 case 3:
-                    checkout(order);
-                    sendOrderToMerchant(order);
+                    displayCart(order);
                     break;
                 case 4:
+                    checkout(order, checkoutKey);
+                    break;
+                case 5:
+                    setDeliveryAddress(order);
+                    break;
+                case 6:
                     System.out.println("Exiting the food ordering system. Goodbye!");
-                    System.exit(0);
+                    return;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
         }
     }
 
-    private static void saveOrderToDatabase(Order order) {
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:database.db")) {
-            for (Map.Entry<FoodItem, Integer> entry : order.getItems().entrySet()) {
-                FoodItem item = entry.getKey();
-                int quantity = entry.getValue();
-                try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO orders (item_name, quantity) VALUES (?, ?)")) {
-                    preparedStatement.setString(1, item.getName());
-                    preparedStatement.setInt(2, quantity);
-                    preparedStatement.executeUpdate();
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static void setDeliveryAddress(Order order) {
+        scanner.nextLine();
+        System.out.print("Enter the delivery location as <latitude> <longitude> [street address]: ");
+        String[] parts = scanner.nextLine().trim().split("\\s+", 3);
+        GeoPoint location = parts.length < 2 ? null : GeoPoint.parse(parts[0], parts[1]);
+        if (location == null) {
+            System.out.println("Invalid location. Please try again.");
+            return;
         }
+        order.setDeliveryAddress(parts.length > 2 ? parts[2] : null, location);
+        System.out.println("Your order will be delivered to " + (parts.length > 2 ? parts[2] : location.toString()) + ".");
     }
-    
+
     private static void sendOrderToMerchant(Order order) {
         System.out.println("Sending order to the merchant...");
         System.out.println("Order details:");
-        for (Map.Entry<FoodItem, Integer> entry : order.getItems().entrySet()) {
-            FoodItem item = entry.getKey();
-            int quantity = entry.getValue();
-            System.out.println("Item: " + item.getName() + ", Quantity: " + quantity);
+        Cart cart = order.getCart();
+        for (int line = 0; line < cart.size(); line++) {
+            System.out.println("Item: " + cart.getItem(line).getName() + ", Quantity: " + cart.getQuantity(line));
         }
         System.out.println("Total: $" + order.calculateTotal());
-        saveOrderToDatabase(order);
-        System.out.println("Order sent to the merchant successfully!");
+        System.out.println("Order #" + order.getId() + " sent to the merchant successfully!");
     }
     
 
-    private static void performMerchantFunctionality() {
+    private static void performMerchantFunctionality(Merchant merchant) {
+        if (merchant == null) {
+            System.out.println("Your merchant account could not be loaded. Please try again later.");
+            return;
+        }
         clearConsole();
-        Menu menu = new Menu();
         scanner.nextLine();
         while (true) {
             System.out.println("==================merchant panal=====================\n=====================================================");
@@ -649,25 +1425,29 @@ public class FoodOrderingSystem {
             System.out.println("2. View Menu");
             System.out.println("3. Choose delivery man");
             System.out.println("4. View orders");
-            System.out.println("5. Exit");
+            System.out.println("5. Sales Report");
+            System.out.println("6. Exit");
             System.out.print("Choose an option: ");
             int choice = scanner.nextInt();
             switch (choice) {
                 case 1:
-                    addFoodItem(menu);
+                    addFoodItem(merchant);
                     break;
                 case 2:
-                    displayMenu(menu);
+                    displayMenu(service.getMenu());
                     break;
                 case 3:
                     viewDeliveryMen();
                     break;
                 case 4:
-                    viewOrders();
+                    viewOrders(merchant);
                     break;
                 case 5:
+                    viewSalesReport(merchant);
+                    break;
+                case 6:
                     System.out.println("Exiting the merchant functionality. Goodbye!");
-                    System.exit(0);
+                    return;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
@@ -675,77 +1455,141 @@ public class FoodOrderingSystem {
     }
     private static String viewDeliveryMen() {
         System.out.println("Available Delivery Men:");
+        int pageSize = KeysetPager.defaultPageSize();
+        Iterator<DeliveryPerson> couriers = service.streamCouriers(null).iterator();
         List<String> usernames = new ArrayList<>();
-        try (Statement statement = userManager.getConnection().createStatement();
-             ResultSet resultSet = statement.executeQuery("SELECT * FROM users WHERE role='delivery man'")) {
-            int index = 1;
-            while (resultSet.next()) {
-                String username = resultSet.getString("username");
-                boolean isOnline = resultSet.getBoolean("is_online");
-                boolean isAvailable = resultSet.getBoolean("is_available");
-                System.out.println(index + ". Name: " + username);
-                System.out.println("   Online: " + (isOnline ? "Offline" : "Online"));
-                System.out.println("   Availability: " + (isAvailable ? "No" : "Yes"));
-                System.out.println("----------");
-                usernames.add(username);
-                index++;
+        while (true) {
+            usernames.clear();
+            boolean more;
+            try {
+                while (usernames.size() < pageSize && couriers.hasNext()) {
+                    DeliveryPerson deliveryPerson = couriers.next();
+                    usernames.add(deliveryPerson.getName());
+                    System.out.println(usernames.size() + ". Name: " + deliveryPerson.getName());
+                    System.out.println("   Online: " + (deliveryPerson.isOnline() ? "Online" : "Offline"));
+                    System.out.println("   Availability: " + (deliveryPerson.isAvailable() ? "Yes" : "No"));
+                    System.out.println("----------");
+                }
+                more = couriers.hasNext();
+            } catch (IllegalStateException e) {
+                logger.error("Error listing delivery men", e);
+                return null;
+            }
+            System.out.print("Choose a delivery person by entering the number" + (more ? ", n for the next page" : "") + " (or 0 to cancel): ");
+            while (true) {
+                String answer = scanner.next();
+                if (more && "n".equalsIgnoreCase(answer)) {
+                    break;
+                }
+                int choice;
+                try {
+                    choice = Integer.parseInt(answer);
+                } catch (NumberFormatException e) {
+                    choice = -1;
+                }
+                if (choice >= 1 && choice <= usernames.size()) {
+                    String chosenUsername = usernames.get(choice - 1);
+                    System.out.println("The order is sent to " + chosenUsername);
+                    return chosenUsername;
+                } else if (choice == 0) {
+                    return null;
+                }
+                System.out.print("Invalid choice. Please try again: ");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-    
-        System.out.print("Choose a delivery person by entering the number (or 0 to cancel): ");
-        int choice = scanner.nextInt();
-        scanner.nextLine();
-    
-        if (choice >= 1 && choice <= usernames.size()) {
-            String chosenUsername = usernames.get(choice - 1);
-            System.out.println("The order is sent to " + chosenUsername);
-            return chosenUsername;
-        } else if (choice == 0) {
-            return null;
-        } else {
-            System.out.println("Invalid choice. Returning to the main menu...");
-            return viewDeliveryMen();
+    }
+
+    private static void viewSalesReport(Merchant merchant) {
+        SalesAnalytics analytics = service.getSalesAnalytics();
+        int hours = Integer.getInteger("food.analytics.reportHours", 24);
+        System.out.println("Sales Report:");
+        if (merchant == null) {
+            System.out.println("Orders: " + analytics.getOrderCount());
+            System.out.printf("Revenue: $%.2f%n", analytics.getRevenueCents() / 100.0);
+            System.out.printf("Average order value: $%.2f%n", analytics.getAverageOrderCents() / 100.0);
+            System.out.println("Deliveries per hour (last " + hours + " hours):");
+            long[] deliveries = analytics.getHourlyDeliveries(null, hours);
+            for (int i = 0; i < deliveries.length; i++) {
+                if (deliveries[i] > 0) {
+                    System.out.println("   " + (i - deliveries.length + 1) + "h: " + deliveries[i]);
+                }
+            }
+            return;
+        }
+        System.out.println("Orders: " + analytics.getOrderCount(merchant.getId()));
+        System.out.printf("Revenue: $%.2f%n", analytics.getRevenueCents(merchant.getId()) / 100.0);
+        System.out.printf("Average order value: $%.2f%n", analytics.getAverageOrderCents(merchant.getId()) / 100.0);
+        System.out.println("Revenue per hour (last " + hours + " hours):");
+        long[] revenue = analytics.getHourlyRevenueCents(merchant.getId(), hours);
+        for (int i = 0; i < revenue.length; i++) {
+            if (revenue[i] > 0) {
+                System.out.printf("   %dh: $%.2f%n", i - revenue.length + 1, revenue[i] / 100.0);
+            }
+        }
+        System.out.println("Top items:");
+        for (SalesAnalytics.ItemRank rank : analytics.getTopItems(merchant.getId(), Integer.getInteger("food.analytics.topItems", 5))) {
+            FoodItem item = service.getFoodItem(rank.getItemId());
+            System.out.printf("   %s: %d sold, $%.2f%n", item != null ? item.getName() : "Item " + rank.getItemId(),
+                    rank.getQuantity(), rank.getRevenueCents() / 100.0);
         }
     }
 
-    private static void viewOrders() {
+    private static void viewOrders(Merchant merchant) {
         System.out.println("View Orders:");
-        try (Connection connection = userManager.getConnection();
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery("SELECT * FROM orders")) {
-            while (resultSet.next()) {
-                int orderId = resultSet.getInt("id");
-                int itemName = resultSet.getInt("item_name");
-                int quantity = resultSet.getInt("quantity");
-                System.out.println("Order ID: " + orderId);
-                System.out.println("Item Name: " + itemName);
-                System.out.println("Quantity: " + quantity);
+        printPages(service.streamOrders(merchant, null, 0, Long.MAX_VALUE).iterator(), order -> {
+            StringBuilder text = new StringBuilder("Order ID: " + order.getId() + "\nStatus: " + order.getStatus());
+            Cart cart = order.getCart();
+            for (int line = 0; line < cart.size(); line++) {
+                text.append("\nItem Name: ").append(cart.getItem(line).getName())
+                        .append("\nQuantity: ").append(cart.getQuantity(line));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return text.toString();
+        });
+    }
+
+    private static void viewAllUsers() {
+        System.out.print("Filter by role (user, merchant, delivery man, admin; leave blank for all): ");
+        String role = scanner.nextLine().trim();
+        System.out.println("All Users:");
+        printPages(userManager.streamUsers(role.isEmpty() ? null : role, null).iterator(),
+                user -> "Username: " + user.getUsername() + ", Role: " + user.getRole());
+    }
+
+    private static <T> void printPages(Iterator<T> rows, Function<T, String> format) {
+        int pageSize = KeysetPager.defaultPageSize();
+        int shown = 0;
+        try {
+            while (rows.hasNext()) {
+                System.out.println(format.apply(rows.next()));
+                if (++shown % pageSize == 0 && rows.hasNext()) {
+                    System.out.print("Enter n for the next page or anything else to stop: ");
+                    if (!"n".equalsIgnoreCase(scanner.next())) {
+                        return;
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            logger.error("Error listing rows", e);
         }
     }
     
-    private static void addFoodItem(Menu menu) {
+    private static void addFoodItem(Merchant merchant) {
         scanner.nextLine();
         System.out.print("Enter the name of the food item: ");
         String itemName = scanner.nextLine();
         System.out.print("Enter the price of the food item: ");
         double itemPrice = scanner.nextDouble();
-        FoodItem foodItem = new FoodItem(itemName, itemPrice);
-        saveFoodItemToDatabase(foodItem);
-        menu.addItem(foodItem);
-        System.out.println("Food item added to the menu!");
-    }
-
-    private static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection("jdbc:sqlite:database.db");
+        FoodItem foodItem = new FoodItem(0, merchant.getId(), itemName, itemPrice);
+        if (saveFoodItemToDatabase(foodItem) != null) {
+            System.out.println("Food item added to the menu!");
+        }
     }
 
-    private static void performDeliveryFunctionality() {
+    private static void performDeliveryFunctionality(DeliveryPerson currentDeliveryPerson) {
         clearConsole();
+        if (currentDeliveryPerson != null) {
+            service.heartbeat(currentDeliveryPerson);
+        }
         List<DeliveryPerson> availableDeliveryPersons = getAvailableDeliveryPersons();
         if (!availableDeliveryPersons.isEmpty()) {
             System.out.println("Available Delivery Persons:");
@@ -753,10 +1597,13 @@ public class FoodOrderingSystem {
                 System.out.println("Name: " + deliveryPerson.getName());
                 System.out.println("Online: " + (deliveryPerson.isOnline() ? "Online" : "Offline"));
                 System.out.println("Available: " + (deliveryPerson.isAvailable() ? "Online" : "Offline"));
+                if (deliveryPerson.getLocation() != null) {
+                    System.out.println("Location: " + deliveryPerson.getLocation());
+                }
                 System.out.println("----------");
             }
     
-            ArrayList<Order> orders = OrderManager.getOrders();
+            List<Order> orders = service.getPendingOrders();
             if (!orders.isEmpty()) {
                 System.out.println("Orders waiting for acceptance:");
                 for (int i = 0; i < orders.size(); i++) {
@@ -766,12 +1613,7 @@ public class FoodOrderingSystem {
                 System.out.print("Enter the order number you want to accept (0 to exit): ");
                 int orderNumber = scanner.nextInt();
                 if (orderNumber >= 1 && orderNumber <= orders.size()) {
-                    Delivery delivery = new Delivery("Delivery Details");
-                    if (delivery.assignToAvailableDeliveryPerson()) {
-                        Order acceptedOrder = orders.get(orderNumber - 1);
-                        System.out.println("Delivery man accepted the order with total amount: $" + acceptedOrder.calculateTotal());
-                        orders.remove(acceptedOrder);
-                    }
+                    acceptOrder(orders.get(orderNumber - 1), currentDeliveryPerson);
                 } else if (orderNumber != 0) {
                     System.out.println("Invalid order number. Please try again.");
                 }
@@ -780,13 +1622,29 @@ public class FoodOrderingSystem {
             }
         }
         System.out.println("Exiting the delivery portal. Goodbye!");
-        System.exit(0);
     }
 
     private static void acceptOrder(Order order,  DeliveryPerson deliveryPerson) {
-        System.out.println("Delivery man " + deliveryPerson.getName() +"accepted the order with total amount: $" + order.calculateTotal());
-        deliveryPerson.setAvailable(true);
-        OrderManager.getOrders().remove(order);
+        FoodOrderingService.AcceptStatus status;
+        try {
+            status = service.acceptOrder(order, deliveryPerson);
+        } catch (AdmissionControl.RateLimitedException e) {
+            System.out.println("You are accepting orders too quickly. Please try again in a moment.");
+            return;
+        }
+        switch (status) {
+            case ACCEPTED:
+                System.out.println("Delivery man " + order.getDeliveryPerson().getName() + " accepted the order with total amount: $" + order.calculateTotal());
+                break;
+            case ALREADY_TAKEN:
+                System.out.println("This order has already been accepted by another delivery man.");
+                break;
+            case BUSY:
+                System.out.println("The system is busy. Please try again in a moment.");
+                break;
+            default:
+                System.out.println("No delivery man is available to take this order.");
+        }
     }
     private static void displayMenu(Menu menu) {
         System.out.println("Menu:");
@@ -801,15 +1659,22 @@ public class FoodOrderingSystem {
             }
         }
     }
-    private static List<DeliveryPerson> deliveryPersons = new ArrayList<>();
     private static List<DeliveryPerson> getAvailableDeliveryPersons() {
-        List<DeliveryPerson> availableDeliveryPersons = new ArrayList<>();
-        for (DeliveryPerson deliveryPerson : deliveryPersons) {
-            if (deliveryPerson.isOnline() && deliveryPerson.isAvailable()) {
-                availableDeliveryPersons.add(deliveryPerson);
-            }
+        return service.getAvailableCouriers();
+    }
+
+    private static void searchFood(Order order) {
+        scanner.nextLine();
+        System.out.print("Search for: ");
+        String query = scanner.nextLine();
+        List<FoodItem> results = service.searchMenu(query, Integer.getInteger("food.search.limit", 10));
+        if (results.isEmpty()) {
+            System.out.println("No items match \"" + query + "\".");
+            return;
         }
-        return availableDeliveryPersons;
+        Menu matches = new Menu(results, service.getMenu().getVersion());
+        displayMenu(matches);
+        placeOrder(matches, order);
     }
 
     private static void placeOrder(Menu menu, Order order) {
@@ -822,7 +1687,9 @@ public class FoodOrderingSystem {
         if (choice >= 1 && choice <= menu.getItems().size()) {
             System.out.println("Enter the quantity: ");
             int quantity = scanner.nextInt();
-            order.addItem(menu.getItems().get(choice - 1), quantity);
+            if (!service.addToCart(order, menu.getItems().get(choice - 1).getId(), quantity)) {
+                System.out.println("That item could not be added. An order can only contain items from one merchant.");
+            }
         } else {
             System.out.println("Invalid choice. Please try again.");
         }
@@ -830,15 +1697,45 @@ public class FoodOrderingSystem {
 
     private static void displayCart(Order order) {
         System.out.println("Cart Contents:");
-        for (Map.Entry<FoodItem, Integer> entry : order.getItems().entrySet()) {
-            System.out.println(entry.getKey().getName() + " x " + entry.getValue());
+        Cart cart = order.getCart();
+        for (int line = 0; line < cart.size(); line++) {
+            System.out.println(cart.getItem(line).getName() + " x " + cart.getQuantity(line));
         }
         System.out.println("Total: $" + order.calculateTotal());
     }
 
-    private static void checkout(Order order) {
-        System.out.println("Order placed successfully!");
-        OrderManager.placeOrder(order);
+    private static void checkout(Order order, String checkoutKey) {
+        FoodOrderingService.CheckoutResult result;
+        try {
+            result = service.checkout(order, checkoutKey);
+        } catch (AdmissionControl.RateLimitedException e) {
+            System.out.println("Too many checkouts. Please try again in a moment.");
+            return;
+        }
+        switch (result.getStatus()) {
+            case PLACED:
+                sendOrderToMerchant(order);
+                System.out.println("Order placed successfully!");
+                break;
+            case EMPTY_CART:
+                System.out.println("Your cart is empty.");
+                break;
+            case ALREADY_PLACED:
+                System.out.println("This order has already been placed.");
+                break;
+            case MENU_CHANGED:
+                System.out.println("The menu has changed since these items were added to your cart:");
+                for (FoodItem item : result.getChangedItems()) {
+                    System.out.println("- " + item.getName());
+                }
+                System.out.println("Please start a new order from the current menu.");
+                break;
+            case BUSY:
+                System.out.println("We are receiving a lot of orders right now. Please try checking out again in a moment.");
+                break;
+            default:
+                System.out.println("The order could not be saved. Please try again.");
+        }
     }
 
     private static void performMerchantOrDeliveryFunctionality() {
@@ -853,14 +1750,14 @@ public class FoodOrderingSystem {
         clearConsole();
         switch (choice) {
             case 1:
-                performMerchantFunctionality();
+                performMerchantFunctionality(null);
                 break;
             case 2:
-                performDeliveryFunctionality();
+                performDeliveryFunctionality(deliveryPerson);
                 break;
             case 3:
                 System.out.println("Exiting the system. Goodbye!");
-                System.exit(0);
+                return;
             default:
                 System.out.println("Invalid choice. Please try again.");
                 performMerchantOrDeliveryFunctionality();
@@ -870,7 +1767,7 @@ public class FoodOrderingSystem {
         }
     }
     private static void displayOrdersForAcceptance(DeliveryPerson deliveryPerson) {
-        ArrayList<Order> orders = OrderManager.getOrders();
+        List<Order> orders = service.getPendingOrders();
         if (orders.isEmpty()) {
             System.out.println("No orders waiting for acceptance.");
             return;
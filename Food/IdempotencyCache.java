@@ -0,0 +1,166 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class IdempotencyCache {
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyCache.class);
+    private static final Metrics.Counter CACHE_HITS = Metrics.getInstance().counter("food_checkout_deduplicated_total", "Checkout retries answered with an earlier result.", "source", "cache");
+    private static final Metrics.Counter DATABASE_HITS = Metrics.getInstance().counter("food_checkout_deduplicated_total", "Checkout retries answered with an earlier result.", "source", "database");
+    static final int MAX_KEY_LENGTH = 128;
+
+    interface Loader {
+        Order load(int orderId) throws SQLException;
+    }
+
+    private final Loader loader;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    public IdempotencyCache(Loader loader) {
+        this(loader, Integer.getInteger("food.checkout.idempotency.maxEntries", 100_000),
+                Long.getLong("food.checkout.idempotency.ttlSeconds", 86_400L));
+    }
+
+    public IdempotencyCache(Loader loader, int maxEntries, long ttlSeconds) {
+        this.loader = loader;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, ttlSeconds));
+        Metrics.getInstance().gauge("food_checkout_idempotency_keys", "Idempotency keys held in memory.", this::size);
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public CompletableFuture<FoodOrderingService.CheckoutResult> checkout(String key, Order order,
+            Function<Order, CompletableFuture<FoodOrderingService.CheckoutResult>> submit) {
+        CompletableFuture<FoodOrderingService.CheckoutResult> result = new CompletableFuture<>();
+        CompletableFuture<FoodOrderingService.CheckoutResult> existing = null;
+        int warmedOrderId = 0;
+        long now = System.nanoTime();
+        synchronized (this) {
+            expire(now);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.result != null) {
+                existing = entry.result;
+            } else if (entry != null) {
+                // Keys warmed from the database are resolved by the first retry that hits them
+                warmedOrderId = entry.orderId;
+                entry.result = result;
+            } else {
+                put(key, new Entry(result, 0, now + ttlNanos));
+            }
+        }
+        if (existing != null) {
+            CACHE_HITS.increment();
+            return existing;
+        }
+        if (warmedOrderId != 0) {
+            Order original;
+            try {
+                original = loader.load(warmedOrderId);
+            } catch (SQLException e) {
+                logger.error("Error loading order {} for checkout request {}", warmedOrderId, key, e);
+                unresolve(key, result);
+                result.complete(new FoodOrderingService.CheckoutResult(FoodOrderingService.CheckoutStatus.FAILED, order, Collections.emptyList()));
+                return result;
+            }
+            if (original != null) {
+                DATABASE_HITS.increment();
+                result.complete(new FoodOrderingService.CheckoutResult(FoodOrderingService.CheckoutStatus.PLACED, original, Collections.emptyList()));
+                return result;
+            }
+        }
+        order.setIdempotencyKey(key);
+        submit.apply(order).whenComplete((checkout, error) -> {
+            if (checkout == null || checkout.getStatus() != FoodOrderingService.CheckoutStatus.PLACED) {
+                forget(key, result);
+            } else if (checkout.getOrder() != order) {
+                DATABASE_HITS.increment();
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(checkout);
+            }
+        });
+        return result;
+    }
+
+    public synchronized void remember(Order order) {
+        String key = order.getIdempotencyKey();
+        if (key != null) {
+            entries.remove(key);
+            put(key, new Entry(CompletableFuture.completedFuture(new FoodOrderingService.CheckoutResult(
+                    FoodOrderingService.CheckoutStatus.PLACED, order, Collections.emptyList())), 0, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    // Call in ascending createdAt order so that expiry and eviction stay oldest first
+    public synchronized void remember(String key, int orderId, long createdAtMillis) {
+        long age = Math.max(0, System.currentTimeMillis() - createdAtMillis);
+        long remaining = ttlNanos - TimeUnit.MILLISECONDS.toNanos(age);
+        if (remaining > 0 && !entries.containsKey(key)) {
+            put(key, new Entry(null, orderId, System.nanoTime() + remaining));
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxEntries) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void unresolve(String key, CompletableFuture<FoodOrderingService.CheckoutResult> result) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.result == result) {
+            entry.result = null;
+        }
+    }
+
+    private synchronized void forget(String key, CompletableFuture<FoodOrderingService.CheckoutResult> result) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.result == result) {
+            entries.remove(key);
+        }
+    }
+
+    private void expire(long now) {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().expiresAt - now > 0) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry {
+        private CompletableFuture<FoodOrderingService.CheckoutResult> result;
+        private final int orderId;
+        private final long expiresAt;
+
+        Entry(CompletableFuture<FoodOrderingService.CheckoutResult> result, int orderId, long expiresAt) {
+            this.result = result;
+            this.orderId = orderId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+class KeysetPager<T> implements Iterator<T> {
+    interface PageLoader<T> {
+        List<T> load(T after, int limit) throws SQLException;
+    }
+
+    private final PageLoader<T> loader;
+    private final int pageSize;
+    private List<T> page;
+    private int index;
+    private T last;
+    private boolean exhausted;
+
+    public KeysetPager(PageLoader<T> loader, int pageSize) {
+        this.loader = loader;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public static int defaultPageSize() {
+        return Integer.getInteger("food.listing.pageSize", 50);
+    }
+
+    public static <T> Stream<T> stream(PageLoader<T> loader, int pageSize) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new KeysetPager<>(loader, pageSize),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return (page != null && index < page.size()) || fetch();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+
+    private boolean fetch() {
+        if (exhausted) {
+            return false;
+        }
+        try {
+            page = loader.load(last, pageSize);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error loading the next page: " + e.getMessage(), e);
+        }
+        index = 0;
+        if (page.size() < pageSize) {
+            exhausted = true;
+        }
+        if (page.isEmpty()) {
+            return false;
+        }
+        last = page.get(page.size() - 1);
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final String PASSWORD = "load-test";
+    private static final GeoPoint CITY_CENTER = new GeoPoint(51.5074, -0.1278);
+
+    private final int customers = Integer.getInteger("food.load.customers", 100);
+    private final int merchants = Integer.getInteger("food.load.merchants", 5);
+    private final int couriers = Integer.getInteger("food.load.couriers", 20);
+    private final int itemsPerMerchant = Integer.getInteger("food.load.itemsPerMerchant", 10);
+    private final int cartSize = Integer.getInteger("food.load.cartSize", 3);
+    private final double ratePerSecond = Double.parseDouble(System.getProperty("food.load.ratePerSecond", "50"));
+    private final long durationSeconds = Long.getLong("food.load.durationSeconds", 60L);
+    private final long reportIntervalSeconds = Long.getLong("food.load.reportIntervalSeconds", 10L);
+    private final int maxInFlight = Integer.getInteger("food.load.maxInFlight", 1000);
+    private final long acceptTimeoutMillis = Long.getLong("food.load.acceptTimeoutMs", 2000L);
+    private final double cityRadiusKm = Double.parseDouble(System.getProperty("food.load.cityRadiusKm", "10"));
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final Map<String, Metrics.Histogram> stages = new LinkedHashMap<>();
+    private final Metrics.Histogram signUpLatency = stage("sign up");
+    private final Metrics.Histogram loginLatency = stage("login");
+    private final Metrics.Histogram checkoutLatency = stage("checkout");
+    private final Metrics.Histogram acceptLatency = stage("accept");
+    private final Metrics.Histogram deliverLatency = stage("deliver");
+    private final Metrics.Histogram lifecycleLatency = stage("lifecycle");
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong loginFailures = new AtomicLong();
+    private final AtomicLong checkoutFailures = new AtomicLong();
+    private final AtomicLong unassigned = new AtomicLong();
+    private final AtomicLong pickupMeters = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ConnectionPool connectionPool;
+    private final ShardRouter shardRouter;
+    private final FoodOrderingService service;
+    private final ExecutorService workers = FoodOrderingServer.newSessionExecutor();
+    private final List<List<Integer>> menus = new ArrayList<>();
+
+    public LoadGenerator(ConnectionPool connectionPool, ShardRouter shardRouter) {
+        this.connectionPool = connectionPool;
+        this.shardRouter = shardRouter;
+        this.service = new FoodOrderingService(new UserManager(connectionPool), new OrderRepository(shardRouter),
+                new MenuCatalog(shardRouter), new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int poolSize = Integer.getInteger("food.db.poolSize", 8);
+        int minIdle = Integer.getInteger("food.db.minIdle", 2);
+        ConnectionPool connectionPool = new ConnectionPool(System.getProperty("food.load.dbUrl", "jdbc:sqlite:loadtest.db"), poolSize, minIdle);
+        ShardRouter shardRouter = new ShardRouter(connectionPool, Integer.getInteger("food.load.shards", 1),
+                System.getProperty("food.load.shardUrlPattern", "jdbc:sqlite:loadtest-shard%d.db"), poolSize, minIdle);
+        Metrics.getInstance().startExporters();
+        LoadGenerator generator = new LoadGenerator(connectionPool, shardRouter);
+        try {
+            generator.setUp();
+            generator.run();
+        } finally {
+            generator.close();
+            shardRouter.close();
+            connectionPool.close();
+            Metrics.getInstance().close();
+        }
+    }
+
+    public void setUp() throws InterruptedException {
+        System.out.printf("Signing up %d customers, %d merchants and %d couriers across %d shard(s) (run %s)%n",
+                customers, merchants, couriers, shardRouter.getShardCount(), runId);
+        inParallel(merchants, i -> {
+            String username = username("merchant", i);
+            Merchant merchant = signUp(username, "merchant") ? service.getMerchant(username) : null;
+            if (merchant == null) {
+                return;
+            }
+            List<Integer> menu = new ArrayList<>();
+            for (int item = 0; item < itemsPerMerchant; item++) {
+                try {
+                    menu.add(service.saveFoodItemToDatabase(new FoodItem(0, merchant.getId(), username + " dish " + item, 5 + item % 20 * 0.5)).getId());
+                } catch (SQLException e) {
+                    logger.error("Error adding a menu item for {}", username, e);
+                }
+            }
+            if (!menu.isEmpty()) {
+                synchronized (menus) {
+                    menus.add(menu);
+                }
+            }
+        });
+        inParallel(couriers, i -> {
+            String username = username("courier", i);
+            if (signUp(username, "delivery man") && login(username) != null) {
+                DeliveryPerson deliveryPerson = service.registerCourier(username);
+                service.updateLocation(deliveryPerson, randomPoint());
+                service.updateDeliveryPersonStatus(deliveryPerson, true);
+            }
+        });
+        inParallel(customers, i -> signUp(username("customer", i), "user"));
+        if (menus.isEmpty()) {
+            throw new IllegalStateException("No menu items could be created");
+        }
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("Running order lifecycles at %.1f/s for %ds%n", ratePerSecond, durationSeconds);
+        long heapBefore = retainedHeap();
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, reportIntervalSeconds));
+        long nextReport = startNanos + reportNanos;
+        long lastCompleted = 0;
+        long intended = startNanos;
+        while (intended < endNanos) {
+            long now = System.nanoTime();
+            if (now < intended) {
+                LockSupport.parkNanos(intended - now);
+                continue;
+            }
+            if (inFlight.get() >= maxInFlight) {
+                dropped.incrementAndGet();
+            } else {
+                long scheduled = intended;
+                inFlight.incrementAndGet();
+                started.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        lifecycle(scheduled);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            }
+            intended += intervalNanos;
+            if (now >= nextReport) {
+                long done = completed.get();
+                System.out.printf(Locale.ROOT, "[%4ds] %.1f orders/s, in flight %d, dropped %d, busy %d, heap %d MB (after GC %d MB)%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - startNanos),
+                        (done - lastCompleted) * 1e9 / (now - nextReport + reportNanos),
+                        inFlight.get(), dropped.get(), shardRouter.getBusyCount(), usedHeap() >> 20, retainedHeap() >> 20);
+                lastCompleted = done;
+                nextReport = now + reportNanos;
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(acceptTimeoutMillis + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+        report(System.nanoTime() - startNanos, heapBefore);
+    }
+
+    public void close() {
+        workers.shutdownNow();
+        service.close();
+    }
+
+    private void lifecycle(long scheduledNanos) {
+        String username = username("customer", ThreadLocalRandom.current().nextInt(customers));
+        if (login(username) == null) {
+            loginFailures.incrementAndGet();
+            return;
+        }
+        Order order = service.newOrder();
+        List<Integer> menu = menus.get(ThreadLocalRandom.current().nextInt(menus.size()));
+        for (int i = 0; i < cartSize; i++) {
+            service.addToCart(order, menu.get(ThreadLocalRandom.current().nextInt(menu.size())), 1 + ThreadLocalRandom.current().nextInt(3));
+        }
+        order.setDeliveryAddress(null, randomPoint());
+        long start = System.nanoTime();
+        FoodOrderingService.CheckoutResult result = service.checkout(order);
+        checkoutLatency.stop(start);
+        if (result.getStatus() != FoodOrderingService.CheckoutStatus.PLACED) {
+            checkoutFailures.incrementAndGet();
+            return;
+        }
+        start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acceptTimeoutMillis);
+        boolean accepted;
+        if (service.getBatchDispatcher() != null) {
+            deadline += TimeUnit.MILLISECONDS.toNanos(service.getBatchDispatcher().getWindowMillis());
+            while (!(accepted = order.getDeliveryPerson() != null) && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        } else {
+            FoodOrderingService.AcceptStatus status;
+            while (((status = service.acceptOrder(order, null)) == FoodOrderingService.AcceptStatus.NO_COURIER
+                    || status == FoodOrderingService.AcceptStatus.BUSY) && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            accepted = status == FoodOrderingService.AcceptStatus.ACCEPTED;
+        }
+        acceptLatency.stop(start);
+        if (!accepted) {
+            unassigned.incrementAndGet();
+            return;
+        }
+        DeliveryPerson deliveryPerson = order.getDeliveryPerson();
+        GeoPoint pickup = deliveryPerson.getLocation();
+        if (pickup != null) {
+            pickupMeters.addAndGet(Math.round(pickup.distanceKm(order.getDeliveryLocation()) * 1000));
+        }
+        start = System.nanoTime();
+        service.completeDelivery(order, deliveryPerson);
+        deliverLatency.stop(start);
+        service.updateLocation(deliveryPerson, order.getDeliveryLocation());
+        lifecycleLatency.stop(scheduledNanos);
+        completed.incrementAndGet();
+    }
+
+    private boolean signUp(String username, String role) {
+        long start = System.nanoTime();
+        boolean signedUp = service.signUp(username, PASSWORD, role);
+        signUpLatency.stop(start);
+        if (!signedUp) {
+            logger.warn("Could not sign up {}", username);
+        }
+        return signedUp;
+    }
+
+    private User login(String username) {
+        long start = System.nanoTime();
+        User user = service.login(username, PASSWORD);
+        loginLatency.stop(start);
+        return user;
+    }
+
+    private void report(long elapsedNanos, long heapBefore) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Started %d, completed %d (%.1f orders/s), dropped %d, login failures %d, checkout failures %d, no courier %d%n",
+                started.get(), completed.get(), completed.get() / seconds, dropped.get(),
+                loginFailures.get(), checkoutFailures.get(), unassigned.get());
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "stage", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Metrics.Histogram> entry : stages.entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            System.out.printf(Locale.ROOT, "%-10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), histogram.getCount(),
+                    millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMax()));
+        }
+        System.out.println("SQLITE_BUSY/LOCKED errors: " + shardRouter.getBusyCount());
+        System.out.println("Connection pools: " + shardRouter.getStats());
+        System.out.println("Courier presence: " + service.getCourierPresence().getStats());
+        if (service.getBatchDispatcher() != null) {
+            System.out.println("Batch dispatch: " + service.getBatchDispatcher().getStats());
+        }
+        System.out.printf(Locale.ROOT, "Mean courier distance to drop-off at assignment: %.2f km%n",
+                completed.get() == 0 ? 0 : pickupMeters.get() / 1000.0 / completed.get());
+        System.out.printf("Heap after GC: %d MB before, %d MB after (%+d KB)%n",
+                heapBefore >> 20, retainedHeap() >> 20, (retainedHeap() - heapBefore) >> 10);
+    }
+
+    private void inParallel(int count, IntConsumer task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            workers.execute(() -> {
+                try {
+                    task.accept(index);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    private Metrics.Histogram stage(String name) {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        stages.put(name, histogram);
+        return histogram;
+    }
+
+    private GeoPoint randomPoint() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double distance = cityRadiusKm * Math.sqrt(random.nextDouble());
+        double bearing = random.nextDouble() * 2 * Math.PI;
+        double latitude = CITY_CENTER.getLatitude() + distance * Math.cos(bearing) / 111.32;
+        double longitude = CITY_CENTER.getLongitude()
+                + distance * Math.sin(bearing) / (111.32 * Math.cos(Math.toRadians(CITY_CENTER.getLatitude())));
+        return new GeoPoint(latitude, longitude);
+    }
+
+    private String username(String role, int index) {
+        return "load-" + runId + "-" + role + "-" + index;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long retainedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterCollection = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterCollection != null) {
+                used += afterCollection.getUsed();
+            }
+        }
+        return used;
+    }
+}
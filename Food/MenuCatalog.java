@@ -0,0 +1,518 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class MenuCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(MenuCatalog.class);
+    private static final Metrics.Histogram SEARCH_LATENCY = Metrics.getInstance().histogram("food_menu_search_seconds", "Time spent searching the menu.");
+    private static final String FTS_SEARCH = "SELECT i.id, i.merchant_id, i.name, i.price, "
+            + "(SELECT COALESCE(SUM(l.quantity), 0) FROM order_lines l WHERE l.item_id = i.id) AS sold "
+            + "FROM items_fts JOIN items i ON i.id = items_fts.rowid WHERE items_fts MATCH ? ORDER BY sold DESC, i.id LIMIT ?";
+
+    private static final FoodItem[] DEFAULT_ITEMS = {
+            new FoodItem("Burger", 5.99),
+            new FoodItem("Pizza", 8.99),
+            new FoodItem("Salad", 3.99)
+    };
+
+    private static MenuCatalog instance;
+
+    private final ShardRouter shardRouter;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(0, new ArrayList<>()));
+    private final boolean fullTextSearch = "fts5".equalsIgnoreCase(System.getProperty("food.search.backend", "memory"));
+    private final MenuSearchIndex searchIndex = new MenuSearchIndex();
+
+    public static synchronized MenuCatalog getInstance() {
+        if (instance == null) {
+            instance = new MenuCatalog(ShardRouter.getInstance());
+        }
+        return instance;
+    }
+
+    public static synchronized MenuCatalog restore(StartupSnapshot startupSnapshot) {
+        if (instance == null) {
+            instance = new MenuCatalog(ShardRouter.getInstance(), startupSnapshot);
+        }
+        return instance;
+    }
+
+    public MenuCatalog(ConnectionPool connectionPool) {
+        this(new ShardRouter(connectionPool));
+    }
+
+    public MenuCatalog(ShardRouter shardRouter) {
+        this(shardRouter, null);
+    }
+
+    public MenuCatalog(ShardRouter shardRouter, StartupSnapshot startupSnapshot) {
+        this.shardRouter = shardRouter;
+        List<FoodItem> items = startupSnapshot == null ? null : startupSnapshot.getItems();
+        if (items == null || items.isEmpty()) {
+            load();
+            return;
+        }
+        items.sort(Comparator.comparingInt(FoodItem::getId));
+        current.set(new Snapshot(1, items));
+        if (fullTextSearch) {
+            createFullTextIndex();
+        } else {
+            searchIndex.addAll(items, startupSnapshot.getSales());
+        }
+    }
+
+    public ShardRouter getShardRouter() {
+        return shardRouter;
+    }
+
+    private void load() {
+        List<FoodItem> items = new ArrayList<>();
+        try {
+            for (List<FoodItem> shardItems : shardRouter.fanOut(MenuCatalog::loadItems)) {
+                items.addAll(shardItems);
+            }
+            items.sort(Comparator.comparingInt(FoodItem::getId));
+            if (items.isEmpty()) {
+                try (Connection connection = shardRouter.getShard(0).getConnection()) {
+                    for (FoodItem item : DEFAULT_ITEMS) {
+                        items.add(insert(connection, item, 0));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading the menu catalog", e);
+        }
+        current.set(new Snapshot(1, items));
+        if (fullTextSearch) {
+            createFullTextIndex();
+        } else {
+            searchIndex.addAll(items, loadSales());
+        }
+    }
+
+    public int reconcile() {
+        List<FoodItem> items = new ArrayList<>();
+        try {
+            for (List<FoodItem> shardItems : shardRouter.fanOut(MenuCatalog::loadItems)) {
+                items.addAll(shardItems);
+            }
+        } catch (SQLException e) {
+            logger.error("Error reconciling the menu catalog", e);
+            return 0;
+        }
+        Snapshot snapshot = current.get();
+        int changed = 0;
+        for (FoodItem item : items) {
+            FoodItem known = snapshot.getById(item.getId());
+            if (known == null || known.getMerchantId() != item.getMerchantId() || known.getPriceCents() != item.getPriceCents()
+                    || !Objects.equals(known.getName(), item.getName())) {
+                publish(item);
+                changed++;
+            }
+        }
+        if (!fullTextSearch) {
+            for (Map.Entry<Integer, Long> sold : loadSales().entrySet()) {
+                searchIndex.recordSale(sold.getKey(), sold.getValue() - searchIndex.getPopularity(sold.getKey()));
+            }
+        }
+        return changed;
+    }
+
+    private static List<FoodItem> loadItems(int shard, ConnectionPool pool) throws SQLException {
+        List<FoodItem> items = new ArrayList<>();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, merchant_id, name, price FROM items ORDER BY id")) {
+            while (resultSet.next()) {
+                items.add(new FoodItem(resultSet.getInt("id"), resultSet.getInt("merchant_id"), resultSet.getString("name"), resultSet.getDouble("price")));
+            }
+        }
+        return items;
+    }
+
+    private Map<Integer, Long> loadSales() {
+        Map<Integer, Long> sales = new HashMap<>();
+        try {
+            shardRouter.fanOut((shard, pool) -> {
+                try (Connection connection = pool.getConnection();
+                     Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("SELECT item_id, SUM(quantity) FROM order_lines WHERE item_id IS NOT NULL GROUP BY item_id")) {
+                    synchronized (sales) {
+                        while (resultSet.next()) {
+                            sales.merge(resultSet.getInt(1), resultSet.getLong(2), Long::sum);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Error loading item popularity", e);
+        }
+        return sales;
+    }
+
+    private void createFullTextIndex() {
+        try {
+            shardRouter.fanOut((shard, pool) -> {
+                createFullTextIndex(pool);
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Error creating the full-text menu index", e);
+        }
+    }
+
+    private static void createFullTextIndex(ConnectionPool pool) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            boolean exists;
+            try (ResultSet resultSet = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'items_fts'")) {
+                exists = resultSet.next();
+            }
+            statement.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS items_fts USING fts5(name, content='items', content_rowid='id')");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS items_fts_insert AFTER INSERT ON items BEGIN "
+                    + "INSERT INTO items_fts (rowid, name) VALUES (new.id, new.name); END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS items_fts_delete AFTER DELETE ON items BEGIN "
+                    + "INSERT INTO items_fts (items_fts, rowid, name) VALUES ('delete', old.id, old.name); END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS items_fts_update AFTER UPDATE ON items BEGIN "
+                    + "INSERT INTO items_fts (items_fts, rowid, name) VALUES ('delete', old.id, old.name); "
+                    + "INSERT INTO items_fts (rowid, name) VALUES (new.id, new.name); END");
+            if (!exists) {
+                statement.executeUpdate("INSERT INTO items_fts (items_fts) VALUES ('rebuild')");
+            }
+        }
+    }
+
+    private FoodItem insert(Connection connection, FoodItem item, int shard) throws SQLException {
+        try (PreparedStatement preparedStatement = item.toPreparedStatement(connection, shard)) {
+            if (preparedStatement.executeUpdate() == 0) {
+                throw new SQLException("Shard " + shard + " has run out of item ids");
+            }
+            try (ResultSet keys = preparedStatement.getGeneratedKeys()) {
+                if (keys.next()) {
+                    return new FoodItem(keys.getInt(1), item.getMerchantId(), item.getName(), item.getPrice());
+                }
+            }
+        }
+        return item;
+    }
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+
+    public Menu getMenu() {
+        return current.get().getMenu();
+    }
+
+    public FoodItem addItem(FoodItem item) throws SQLException {
+        FoodItem saved;
+        int shard = shardRouter.shardOf(item.getMerchantId());
+        try (Connection connection = shardRouter.getShard(shard).getConnection()) {
+            saved = insert(connection, item, shard);
+        }
+        publish(saved);
+        return saved;
+    }
+
+    public void publish(FoodItem item) {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = previous.with(item);
+        } while (!current.compareAndSet(previous, next));
+        if (!fullTextSearch) {
+            searchIndex.add(item, 0);
+        }
+    }
+
+    public long getPopularity(int itemId) {
+        return fullTextSearch ? 0 : searchIndex.getPopularity(itemId);
+    }
+
+    public List<FoodItem> search(String query, int limit) {
+        long start = SEARCH_LATENCY.start();
+        try {
+            return fullTextSearch ? searchDatabase(query, limit) : searchIndex.search(query, limit);
+        } finally {
+            SEARCH_LATENCY.stop(start);
+        }
+    }
+
+    private List<FoodItem> searchDatabase(String query, int limit) {
+        List<FoodItem> results = new ArrayList<>();
+        String[] terms = MenuSearchIndex.tokenize(query);
+        if (terms.length == 0 || limit <= 0) {
+            return results;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            match.append(match.length() == 0 ? "" : " ").append('"').append(term).append("\"*");
+        }
+        List<RankedItem> ranked = new ArrayList<>();
+        try {
+            for (List<RankedItem> shardResults : shardRouter.fanOut((shard, pool) -> searchShard(pool, match.toString(), limit))) {
+                ranked.addAll(shardResults);
+            }
+        } catch (SQLException e) {
+            logger.error("Error searching the menu for {}", query, e);
+        }
+        ranked.sort((a, b) -> a.sold != b.sold ? Long.compare(b.sold, a.sold) : Integer.compare(a.item.getId(), b.item.getId()));
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            results.add(ranked.get(i).item);
+        }
+        return results;
+    }
+
+    private static List<RankedItem> searchShard(ConnectionPool pool, String match, int limit) throws SQLException {
+        List<RankedItem> results = new ArrayList<>();
+        try (Connection connection = pool.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(FTS_SEARCH)) {
+            preparedStatement.setString(1, match);
+            preparedStatement.setInt(2, limit);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    results.add(new RankedItem(new FoodItem(resultSet.getInt("id"), resultSet.getInt("merchant_id"),
+                            resultSet.getString("name"), resultSet.getDouble("price")), resultSet.getLong("sold")));
+                }
+            }
+        }
+        return results;
+    }
+
+    public void recordSales(Cart cart) {
+        if (fullTextSearch) {
+            return;
+        }
+        for (int line = 0; line < cart.size(); line++) {
+            searchIndex.recordSale(cart.getItemId(line), cart.getQuantity(line));
+        }
+    }
+
+    public List<FoodItem> findChangedItems(Order order) {
+        Snapshot snapshot = current.get();
+        List<FoodItem> changed = new ArrayList<>();
+        if (order.getCatalogVersion() == snapshot.getVersion()) {
+            return changed;
+        }
+        Cart cart = order.getCart();
+        for (int line = 0; line < cart.size(); line++) {
+            FoodItem latest = snapshot.getById(cart.getItemId(line));
+            if (latest == null || latest.getPriceCents() != cart.getUnitPriceCents(line)) {
+                changed.add(cart.getItem(line));
+            }
+        }
+        if (changed.isEmpty()) {
+            order.setCatalogVersion(snapshot.getVersion());
+        }
+        return changed;
+    }
+
+    private static final class RankedItem {
+        private final FoodItem item;
+        private final long sold;
+
+        RankedItem(FoodItem item, long sold) {
+            this.item = item;
+            this.sold = sold;
+        }
+    }
+
+    static final class Snapshot {
+        private final long version;
+        private final ItemList items;
+        private final BucketIndex<Integer, Integer> positionsById;
+        private final BucketIndex<String, FoodItem> itemsByName;
+        private final Menu menu;
+
+        Snapshot(long version, List<FoodItem> items) {
+            this.version = version;
+            this.items = ItemList.of(items);
+            Map<Integer, Integer> byId = new HashMap<>();
+            Map<String, FoodItem> byName = new HashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                FoodItem item = items.get(i);
+                byId.put(item.getId(), i);
+                if (item.getName() != null) {
+                    byName.putIfAbsent(item.getName().toLowerCase(), item);
+                }
+            }
+            this.positionsById = BucketIndex.of(byId);
+            this.itemsByName = BucketIndex.of(byName);
+            this.menu = new Menu(this.items, version);
+        }
+
+        private Snapshot(long version, ItemList items, BucketIndex<Integer, Integer> positionsById,
+                         BucketIndex<String, FoodItem> itemsByName) {
+            this.version = version;
+            this.items = items;
+            this.positionsById = positionsById;
+            this.itemsByName = itemsByName;
+            this.menu = new Menu(items, version);
+        }
+
+        Snapshot with(FoodItem item) {
+            Integer position = item.getId() == 0 ? null : positionsById.get(item.getId());
+            ItemList nextItems;
+            BucketIndex<Integer, Integer> nextPositions = positionsById;
+            BucketIndex<String, FoodItem> nextNames = itemsByName;
+            if (position == null) {
+                nextItems = items.append(item);
+                nextPositions = positionsById.with(item.getId(), items.size());
+            } else {
+                FoodItem replaced = items.get(position);
+                nextItems = items.replace(position, item);
+                if (replaced.getName() != null && itemsByName.get(replaced.getName().toLowerCase()) == replaced) {
+                    nextNames = nextNames.without(replaced.getName().toLowerCase());
+                }
+            }
+            if (item.getName() != null && nextNames.get(item.getName().toLowerCase()) == null) {
+                nextNames = nextNames.with(item.getName().toLowerCase(), item);
+            }
+            return new Snapshot(version + 1, nextItems, nextPositions, nextNames);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<FoodItem> getItems() {
+            return items;
+        }
+
+        public FoodItem getById(int id) {
+            Integer position = positionsById.get(id);
+            return position == null ? null : items.get(position);
+        }
+
+        public FoodItem getByName(String name) {
+            return name == null ? null : itemsByName.get(name.toLowerCase());
+        }
+
+        public Menu getMenu() {
+            return menu;
+        }
+    }
+
+    static final class ItemList extends AbstractList<FoodItem> implements RandomAccess {
+        private static final int CHUNK_BITS = 10;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private final FoodItem[][] chunks;
+        private final int size;
+
+        private ItemList(FoodItem[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        static ItemList of(List<FoodItem> items) {
+            FoodItem[][] chunks = new FoodItem[(items.size() + CHUNK_SIZE - 1) >>> CHUNK_BITS][];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                int from = chunk << CHUNK_BITS;
+                chunks[chunk] = items.subList(from, Math.min(items.size(), from + CHUNK_SIZE)).toArray(new FoodItem[0]);
+            }
+            return new ItemList(chunks, items.size());
+        }
+
+        @Override
+        public FoodItem get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        ItemList append(FoodItem item) {
+            int chunk = size >>> CHUNK_BITS;
+            FoodItem[][] next = Arrays.copyOf(chunks, chunk + 1);
+            next[chunk] = chunk < chunks.length ? Arrays.copyOf(chunks[chunk], chunks[chunk].length + 1) : new FoodItem[1];
+            next[chunk][size & (CHUNK_SIZE - 1)] = item;
+            return new ItemList(next, size + 1);
+        }
+
+        ItemList replace(int index, FoodItem item) {
+            int chunk = index >>> CHUNK_BITS;
+            FoodItem[][] next = chunks.clone();
+            next[chunk] = chunks[chunk].clone();
+            next[chunk][index & (CHUNK_SIZE - 1)] = item;
+            return new ItemList(next, size);
+        }
+    }
+
+    static final class BucketIndex<K, V> {
+        private static final int BUCKET_BITS = 12;
+
+        private final List<Map<K, V>> buckets;
+
+        private BucketIndex(List<Map<K, V>> buckets) {
+            this.buckets = buckets;
+        }
+
+        static <K, V> BucketIndex<K, V> of(Map<K, V> entries) {
+            List<Map<K, V>> buckets = new ArrayList<>(Collections.nCopies(1 << BUCKET_BITS, null));
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                int bucket = bucketOf(entry.getKey());
+                if (buckets.get(bucket) == null) {
+                    buckets.set(bucket, new HashMap<>());
+                }
+                buckets.get(bucket).put(entry.getKey(), entry.getValue());
+            }
+            return new BucketIndex<>(buckets);
+        }
+
+        private static int bucketOf(Object key) {
+            return (key.hashCode() * 0x9E3779B9) >>> (32 - BUCKET_BITS);
+        }
+
+        V get(K key) {
+            Map<K, V> bucket = buckets.get(bucketOf(key));
+            return bucket == null ? null : bucket.get(key);
+        }
+
+        BucketIndex<K, V> with(K key, V value) {
+            int index = bucketOf(key);
+            Map<K, V> bucket = buckets.get(index) == null ? new HashMap<>() : new HashMap<>(buckets.get(index));
+            bucket.put(key, value);
+            List<Map<K, V>> next = new ArrayList<>(buckets);
+            next.set(index, bucket);
+            return new BucketIndex<>(next);
+        }
+
+        BucketIndex<K, V> without(K key) {
+            int index = bucketOf(key);
+            if (buckets.get(index) == null || !buckets.get(index).containsKey(key)) {
+                return this;
+            }
+            Map<K, V> bucket = new HashMap<>(buckets.get(index));
+            bucket.remove(key);
+            List<Map<K, V>> next = new ArrayList<>(buckets);
+            next.set(index, bucket.isEmpty() ? null : bucket);
+            return new BucketIndex<>(next);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class MenuSearchIndex {
+    private final int topK;
+    private final Node root = new Node();
+    private final Map<Integer, Integer> docsByItemId = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FoodItem[] items = new FoodItem[64];
+    private String[][] tokens = new String[64][];
+    private long[] popularity = new long[64];
+    private int docCount;
+    private int liveCount;
+
+    public MenuSearchIndex() {
+        this(Integer.getInteger("food.search.topK", 20));
+    }
+
+    public MenuSearchIndex(int topK) {
+        this.topK = Math.max(1, topK);
+    }
+
+    public static String[] tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text != null) {
+            String lower = text.toLowerCase(Locale.ROOT);
+            int start = -1;
+            for (int i = 0; i <= lower.length(); i++) {
+                boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+                if (wordChar && start < 0) {
+                    start = i;
+                } else if (!wordChar && start >= 0) {
+                    tokens.add(lower.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addAll(Collection<FoodItem> catalog, Map<Integer, Long> sales) {
+        lock.writeLock().lock();
+        try {
+            Integer[] ranked = new Integer[catalog.size()];
+            int added = 0;
+            for (FoodItem item : catalog) {
+                ranked[added++] = append(item, sales.getOrDefault(item.getId(), 0L));
+            }
+            Arrays.sort(ranked, (a, b) -> ranksBefore(a, b) ? -1 : 1);
+            for (int doc : ranked) {
+                if (items[doc] == null) {
+                    continue;
+                }
+                for (String token : tokens[doc]) {
+                    Node node = root;
+                    node.count++;
+                    for (int i = 0; i < token.length(); i++) {
+                        node = node.child(token.charAt(i), true);
+                        node.count++;
+                    }
+                    node.insertDoc(doc, node.docCount == 0 || ranksBefore(node.docs[node.docCount - 1], doc)
+                            ? node.docCount : rankOf(node, doc));
+                }
+            }
+            rebuildTops(root);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(FoodItem item, long sold) {
+        lock.writeLock().lock();
+        try {
+            int doc = append(item, sold);
+            for (String token : tokens[doc]) {
+                Node node = root;
+                node.count++;
+                offer(node, doc);
+                for (int i = 0; i < token.length(); i++) {
+                    node = node.child(token.charAt(i), true);
+                    node.count++;
+                    offer(node, doc);
+                }
+                node.insertDoc(doc, rankOf(node, doc));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void recordSale(int itemId, long quantity) {
+        if (quantity <= 0) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer doc = docsByItemId.get(itemId);
+            if (doc == null) {
+                return;
+            }
+            String[] docTokens = tokens[doc];
+            Node[] terminals = new Node[docTokens.length];
+            int[] positions = new int[docTokens.length];
+            for (int t = 0; t < docTokens.length; t++) {
+                terminals[t] = find(docTokens[t]);
+                positions[t] = rankOf(terminals[t], doc);
+            }
+            popularity[doc] += quantity;
+            for (int t = 0; t < docTokens.length; t++) {
+                promote(terminals[t], positions[t]);
+                Node node = root;
+                offer(node, doc);
+                for (int i = 0; i < docTokens[t].length(); i++) {
+                    node = node.child(docTokens[t].charAt(i), false);
+                    offer(node, doc);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getPopularity(int itemId) {
+        lock.readLock().lock();
+        try {
+            Integer doc = docsByItemId.get(itemId);
+            return doc == null ? 0 : popularity[doc];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<FoodItem> search(String query, int limit) {
+        String[] terms = tokenize(query);
+        List<FoodItem> results = new ArrayList<>();
+        if (terms.length == 0 || limit <= 0) {
+            return results;
+        }
+        lock.readLock().lock();
+        try {
+            Node rarest = null;
+            for (String term : terms) {
+                Node node = find(term);
+                if (node == null) {
+                    return results;
+                }
+                if (rarest == null || node.count < rarest.count) {
+                    rarest = node;
+                }
+            }
+            for (int i = 0; i < rarest.topSize && results.size() < limit; i++) {
+                if (matches(rarest.top[i], terms)) {
+                    results.add(items[rarest.top[i]]);
+                }
+            }
+            if (results.size() < limit && rarest.topSize == topK) {
+                results.clear();
+                merge(rarest, terms, limit, results);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void merge(Node node, String[] terms, int limit, List<FoodItem> results) {
+        List<Node> terminals = new ArrayList<>();
+        collectTerminals(node, terminals);
+        int[] cursors = new int[terminals.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, terminals.size()), (a, b) ->
+                ranksBefore(terminals.get(a).docs[cursors[a]], terminals.get(b).docs[cursors[b]]) ? -1 : 1);
+        for (int i = 0; i < terminals.size(); i++) {
+            heap.add(i);
+        }
+        int previous = -1;
+        while (!heap.isEmpty() && results.size() < limit) {
+            int next = heap.poll();
+            int doc = terminals.get(next).docs[cursors[next]];
+            if (++cursors[next] < terminals.get(next).docCount) {
+                heap.add(next);
+            }
+            if (doc != previous && matches(doc, terms)) {
+                results.add(items[doc]);
+            }
+            previous = doc;
+        }
+    }
+
+    private void collectTerminals(Node node, List<Node> terminals) {
+        if (node.docCount > 0) {
+            terminals.add(node);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collectTerminals(node.children[i], terminals);
+        }
+    }
+
+    private boolean matches(int doc, String[] terms) {
+        for (String term : terms) {
+            boolean matched = false;
+            for (String token : tokens[doc]) {
+                if (token.startsWith(term)) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i), false);
+        }
+        return node;
+    }
+
+    private int append(FoodItem item, long sold) {
+        Integer existing = docsByItemId.get(item.getId());
+        if (existing != null) {
+            sold = Math.max(sold, popularity[existing]);
+            remove(existing);
+        }
+        int doc = docCount++;
+        if (doc == items.length) {
+            int capacity = items.length * 2;
+            items = Arrays.copyOf(items, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+            popularity = Arrays.copyOf(popularity, capacity);
+        }
+        items[doc] = item;
+        tokens[doc] = tokenize(item.getName());
+        popularity[doc] = sold;
+        docsByItemId.put(item.getId(), doc);
+        liveCount++;
+        return doc;
+    }
+
+    private void remove(int doc) {
+        docsByItemId.remove(items[doc].getId());
+        items[doc] = null;
+        liveCount--;
+        for (String token : tokens[doc]) {
+            Node[] path = new Node[token.length() + 1];
+            path[0] = root;
+            for (int i = 0; i < token.length(); i++) {
+                path[i + 1] = path[i].child(token.charAt(i), false);
+            }
+            Node terminal = path[token.length()];
+            int position = rankOf(terminal, doc);
+            if (position >= terminal.docCount || terminal.docs[position] != doc) {
+                position = 0;
+                while (terminal.docs[position] != doc) {
+                    position++;
+                }
+            }
+            terminal.removeDoc(position);
+            for (int i = path.length - 1; i >= 0; i--) {
+                path[i].count--;
+                rebuildTop(path[i]);
+            }
+        }
+    }
+
+    private void rebuildTops(Node node) {
+        for (int i = 0; i < node.childCount; i++) {
+            rebuildTops(node.children[i]);
+        }
+        rebuildTop(node);
+    }
+
+    private void rebuildTop(Node node) {
+        if (node.top == null) {
+            node.top = new int[topK];
+        }
+        node.topSize = 0;
+        for (int i = 0; i < Math.min(node.docCount, topK); i++) {
+            node.topSize = insert(node.top, node.topSize, node.docs[i]);
+        }
+        for (int c = 0; c < node.childCount; c++) {
+            Node child = node.children[c];
+            for (int i = 0; i < child.topSize; i++) {
+                if (items[child.top[i]] != null) {
+                    node.topSize = insert(node.top, node.topSize, child.top[i]);
+                }
+            }
+        }
+    }
+
+    private void offer(Node node, int doc) {
+        if (node.top == null) {
+            node.top = new int[topK];
+        }
+        node.topSize = insert(node.top, node.topSize, doc);
+    }
+
+    private int insert(int[] ranked, int size, int doc) {
+        int position = -1;
+        for (int i = 0; i < size; i++) {
+            if (ranked[i] == doc) {
+                position = i;
+                break;
+            }
+        }
+        if (position < 0) {
+            if (size == ranked.length) {
+                if (!ranksBefore(doc, ranked[size - 1])) {
+                    return size;
+                }
+                position = size - 1;
+            } else {
+                position = size++;
+            }
+        }
+        while (position > 0 && ranksBefore(doc, ranked[position - 1])) {
+            ranked[position] = ranked[position - 1];
+            position--;
+        }
+        ranked[position] = doc;
+        return size;
+    }
+
+    private int rankOf(Node node, int doc) {
+        int low = 0;
+        int high = node.docCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int other = node.docs[middle];
+            if (other == doc) {
+                return middle;
+            } else if (ranksBefore(other, doc)) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void promote(Node node, int position) {
+        int doc = node.docs[position];
+        while (position > 0 && ranksBefore(doc, node.docs[position - 1])) {
+            node.docs[position] = node.docs[position - 1];
+            position--;
+        }
+        node.docs[position] = doc;
+    }
+
+    private boolean ranksBefore(int doc, int other) {
+        return popularity[doc] != popularity[other] ? popularity[doc] > popularity[other] : doc < other;
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int childCount;
+        private int[] docs;
+        private int docCount;
+        private int[] top;
+        private int topSize;
+        private int count;
+
+        Node child(char key, boolean create) {
+            int low = 0;
+            int high = childCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < key) {
+                    low = middle + 1;
+                } else if (keys[middle] > key) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            if (childCount == keys.length) {
+                int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, low, keys, low + 1, childCount - low);
+            System.arraycopy(children, low, children, low + 1, childCount - low);
+            Node node = new Node();
+            keys[low] = key;
+            children[low] = node;
+            childCount++;
+            return node;
+        }
+
+        void insertDoc(int doc, int position) {
+            if (docs == null) {
+                docs = new int[2];
+            } else if (docCount == docs.length) {
+                docs = Arrays.copyOf(docs, docCount * 2);
+            }
+            System.arraycopy(docs, position, docs, position + 1, docCount - position);
+            docs[position] = doc;
+            docCount++;
+        }
+
+        void removeDoc(int position) {
+            System.arraycopy(docs, position + 1, docs, position, docCount - position - 1);
+            docCount--;
+        }
+    }
+}
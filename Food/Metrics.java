@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final Metrics instance = new Metrics();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private HttpServer server;
+    private ScheduledExecutorService dumper;
+    private Path dumpFile;
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    public Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labels(label, value), key -> new Counter());
+    }
+
+    public Histogram histogram(String name, String help) {
+        return (Histogram) family(name, help, "summary").metrics.computeIfAbsent("", key -> new Histogram());
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, null, null, value);
+    }
+
+    public void gauge(String name, String help, String label, String labelValue, LongSupplier value) {
+        family(name, help, "gauge").metrics.put(labels(label, labelValue), new Gauge(value));
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+                Object value = metric.getValue();
+                if (value instanceof Histogram) {
+                    ((Histogram) value).appendTo(out, name);
+                } else {
+                    out.append(name).append(metric.getKey()).append(' ')
+                            .append(value instanceof Counter ? ((Counter) value).get() : ((Gauge) value).value.getAsLong())
+                            .append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    public synchronized void startExporters() {
+        Integer port = Integer.getInteger("food.metrics.port");
+        if (port != null && server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                logger.info("Serving metrics on http://{}:{}/metrics", server.getAddress().getHostString(), server.getAddress().getPort());
+            } catch (IOException e) {
+                logger.error("Could not start the metrics endpoint on port {}", port, e);
+            }
+        }
+        String file = System.getProperty("food.metrics.file");
+        if (file != null && dumper == null) {
+            dumpFile = Paths.get(file);
+            long interval = Long.getLong("food.metrics.dumpIntervalSeconds", 60L);
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleWithFixedDelay(this::dump, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public void writeTo(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+            dump();
+        }
+    }
+
+    private void dump() {
+        try {
+            writeTo(dumpFile);
+        } catch (IOException e) {
+            logger.warn("Could not write metrics to {}", dumpFile, e);
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String label, String value) {
+        return label == null ? "" : "{" + label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Gauge {
+        private final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+    }
+
+    static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long delta) {
+            count.add(delta);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void stop(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long total = count.sum();
+            return total == 0 ? 0 : (double) sum.sum() / total;
+        }
+
+        public long getValueAtPercentile(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            return valueAt(snapshot, total, percentile / 100.0);
+        }
+
+        void appendTo(StringBuilder out, String name) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(valueAt(snapshot, total, quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(sum.sum())).append('\n');
+            out.append(name).append("_count ").append(count.sum()).append('\n');
+            out.append(name).append("_max ").append(seconds(max.get())).append('\n');
+        }
+
+        private static long valueAt(long[] snapshot, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return highestEquivalentValue(i);
+                }
+            }
+            return highestEquivalentValue(snapshot.length - 1);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        static long highestEquivalentValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        private static String seconds(long nanos) {
+            return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class OrderEvents {
+    private static final Logger logger = LoggerFactory.getLogger(OrderEvents.class);
+    private static final Metrics.Counter PUBLISHED = Metrics.getInstance().counter("food_events_published_total", "Order status events published to at least one subscriber.");
+    private static final Metrics.Counter DELIVERED = Metrics.getInstance().counter("food_events_delivered_total", "Order status events written to subscriber streams.");
+    private static final Metrics.Counter COALESCED = Metrics.getInstance().counter("food_events_coalesced_total", "Buffered events replaced by a newer event for the same order.");
+    private static final Metrics.Counter DROPPED = Metrics.getInstance().counter("food_event_subscribers_dropped_total", "Subscribers disconnected because their buffer overflowed.");
+    private static final OrderEvents instance = new OrderEvents(Integer.getInteger("food.events.bufferSize", 64),
+            Long.getLong("food.events.keepAliveSeconds", 15L));
+
+    static final String COURIERS = "couriers";
+
+    private final int bufferSize;
+    private final long keepAliveMillis;
+    private final ConcurrentHashMap<String, Set<Subscription>> topics = new ConcurrentHashMap<>();
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<String>> tokens = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+    private volatile HttpServer server;
+    private ExecutorService streams;
+
+    public static OrderEvents getInstance() {
+        return instance;
+    }
+
+    OrderEvents(int bufferSize, long keepAliveSeconds) {
+        this.bufferSize = Math.max(1, bufferSize);
+        this.keepAliveMillis = TimeUnit.SECONDS.toMillis(Math.max(1, keepAliveSeconds));
+        Metrics.getInstance().gauge("food_event_subscribers", "Open order event streams.", subscriptions::size);
+    }
+
+    static String merchantTopic(int merchantId) {
+        return "merchant:" + merchantId;
+    }
+
+    static String courierTopic(String username) {
+        return "courier:" + username;
+    }
+
+    static String customerTopic(String username) {
+        return "customer:" + username;
+    }
+
+    public void publish(Order order) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        DeliveryPerson courier = order.getDeliveryPerson();
+        OrderStatus status = order.getStatus();
+        Event event = new Event(sequence.incrementAndGet(), order.getId(), status, order.getMerchantId(),
+                courier != null ? courier.getName() : null, order.getTotalCents(), order.getDeliveryLocation(),
+                System.currentTimeMillis());
+        boolean sent = deliver(merchantTopic(order.getMerchantId()), event);
+        if (order.getCustomer() != null) {
+            sent |= deliver(customerTopic(order.getCustomer()), event);
+        }
+        if (courier != null) {
+            sent |= deliver(courierTopic(courier.getName()), event);
+        }
+        if (status == OrderStatus.PLACED) {
+            sent |= deliver(COURIERS, event);
+        }
+        if (sent) {
+            PUBLISHED.increment();
+        }
+    }
+
+    private boolean deliver(String topic, Event event) {
+        Set<Subscription> subscribers = topics.get(topic);
+        if (subscribers == null) {
+            return false;
+        }
+        for (Subscription subscription : subscribers) {
+            if (!subscription.offer(event)) {
+                DROPPED.increment();
+                logger.info("Dropping slow event subscriber on {} after {} buffered events", subscription.topics, bufferSize);
+                unsubscribe(subscription);
+            }
+        }
+        return !subscribers.isEmpty();
+    }
+
+    Subscription subscribe(List<String> topicNames, String token) {
+        Subscription subscription = new Subscription(topicNames, token, bufferSize);
+        subscriptions.add(subscription);
+        for (String topic : topicNames) {
+            topics.computeIfAbsent(topic, key -> ConcurrentHashMap.newKeySet()).add(subscription);
+        }
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        subscription.close();
+        if (!subscriptions.remove(subscription)) {
+            return;
+        }
+        for (String topic : subscription.topics) {
+            topics.computeIfPresent(topic, (key, members) -> {
+                members.remove(subscription);
+                return members.isEmpty() ? null : members;
+            });
+        }
+    }
+
+    public boolean isEnabled() {
+        return server != null;
+    }
+
+    public String issueToken(List<String> topicNames) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new ArrayList<>(topicNames));
+        return token;
+    }
+
+    public void revoke(String token) {
+        if (token == null || tokens.remove(token) == null) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (token.equals(subscription.token)) {
+                unsubscribe(subscription);
+            }
+        }
+    }
+
+    public String streamUrl(String token) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/events?token=" + token;
+    }
+
+    public synchronized void start() {
+        Integer port = Integer.getInteger("food.events.port");
+        if (port == null || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            streams = FoodOrderingServer.newSessionExecutor();
+            server.setExecutor(streams);
+            server.createContext("/events", this::stream);
+            server.start();
+            logger.info("Serving order events on http://{}:{}/events", server.getAddress().getHostString(), server.getAddress().getPort());
+        } catch (IOException e) {
+            server = null;
+            logger.error("Could not start the order event endpoint on port {}", port, e);
+        }
+    }
+
+    public synchronized void close() {
+        for (Subscription subscription : subscriptions) {
+            unsubscribe(subscription);
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            streams.shutdownNow();
+        }
+    }
+
+    private void stream(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        String token = query != null && query.startsWith("token=") ? query.substring("token=".length()) : null;
+        List<String> topicNames = token != null ? tokens.get(token) : null;
+        if (topicNames == null) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        Subscription subscription = subscribe(topicNames, token);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(("retry: " + keepAliveMillis + "\n: subscribed to " + String.join(" ", topicNames) + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            List<Event> batch = new ArrayList<>(bufferSize);
+            while (subscription.take(batch, keepAliveMillis)) {
+                StringBuilder frames = new StringBuilder(128 * Math.max(1, batch.size()));
+                if (batch.isEmpty()) {
+                    frames.append(": keepalive\n\n");
+                }
+                for (Event event : batch) {
+                    frames.append("id: ").append(event.sequence).append('\n')
+                            .append("event: order\n")
+                            .append("data: ").append(event.toJson()).append("\n\n");
+                }
+                out.write(frames.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                DELIVERED.add(batch.size());
+                batch.clear();
+            }
+            if (subscription.overflowed) {
+                out.write("event: overflow\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.debug("Event stream closed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            unsubscribe(subscription);
+            exchange.close();
+        }
+    }
+
+    static final class Event {
+        private final long sequence;
+        private final int orderId;
+        private final OrderStatus status;
+        private final int merchantId;
+        private final String courier;
+        private final long totalCents;
+        private final GeoPoint destination;
+        private final long timestamp;
+
+        Event(long sequence, int orderId, OrderStatus status, int merchantId, String courier, long totalCents,
+              GeoPoint destination, long timestamp) {
+            this.sequence = sequence;
+            this.orderId = orderId;
+            this.status = status;
+            this.merchantId = merchantId;
+            this.courier = courier;
+            this.totalCents = totalCents;
+            this.destination = destination;
+            this.timestamp = timestamp;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder(128);
+            json.append("{\"order\":").append(orderId)
+                    .append(",\"status\":\"").append(status).append('"')
+                    .append(",\"merchant\":").append(merchantId)
+                    .append(",\"total\":").append(String.format(Locale.ROOT, "%.2f", totalCents / 100.0));
+            if (courier != null) {
+                json.append(",\"courier\":\"");
+                for (int i = 0; i < courier.length(); i++) {
+                    char c = courier.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        json.append('\\').append(c);
+                    } else if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+                json.append('"');
+            }
+            if (destination != null) {
+                json.append(",\"lat\":").append(destination.getLatitude())
+                        .append(",\"lon\":").append(destination.getLongitude());
+            }
+            return json.append(",\"at\":").append(timestamp).append('}').toString();
+        }
+    }
+
+    static final class Subscription {
+        private final List<String> topics;
+        private final Event[] ring;
+        private int head;
+        private int size;
+        private boolean closed;
+        private volatile boolean overflowed;
+        private final String token;
+
+        Subscription(List<String> topics, String token, int capacity) {
+            this.topics = topics;
+            this.token = token;
+            this.ring = new Event[capacity];
+        }
+
+        synchronized boolean offer(Event event) {
+            if (closed) {
+                return true;
+            }
+            for (int i = 0; i < size; i++) {
+                int slot = (head + i) % ring.length;
+                if (ring[slot].orderId == event.orderId) {
+                    if (ring[slot].sequence < event.sequence) {
+                        ring[slot] = event;
+                        COALESCED.increment();
+                    }
+                    return true;
+                }
+            }
+            if (size == ring.length) {
+                overflowed = true;
+                return false;
+            }
+            ring[(head + size) % ring.length] = event;
+            size++;
+            notifyAll();
+            return true;
+        }
+
+        synchronized boolean take(List<Event> batch, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (size == 0 && !closed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            while (size > 0) {
+                batch.add(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+            return !closed || !batch.isEmpty();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
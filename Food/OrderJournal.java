@@ -0,0 +1,590 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class OrderJournal {
+    enum EventType {
+        ORDER_PLACED, ORDER_ACCEPTED, COURIER_ASSIGNED, ORDER_DELIVERED
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderJournal.class);
+
+    private static final int MAGIC = 0x464F4A31;
+    private static final int SNAPSHOT_MAGIC_V1 = 0x464F5331;
+    private static final int SNAPSHOT_MAGIC = 0x464F5332;
+    private static final int HEADER_BYTES = 8;
+    private static final int EVENT_HEADER_BYTES = 1 + 8 + 8 + 4;
+    private static final int PADDING = -1;
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final Path snapshotPath;
+    private final FileChannel channel;
+    private final long regionBytes;
+    private final boolean syncEveryAppend;
+    private final int snapshotInterval;
+    private final Map<Integer, LiveOrder> liveOrders = new HashMap<>();
+    private final Map<Integer, Integer> lastOrderIds = new HashMap<>();
+    private final Map<Integer, LiveOrder> uncheckpointed = new LinkedHashMap<>();
+    private final OrderRepository orderRepository;
+    private final Object checkpointLock = new Object();
+    private final ScheduledExecutorService background;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long position = HEADER_BYTES;
+    private long sequence;
+    private long eventsSinceSnapshot;
+    private boolean snapshotPending;
+    private int replayedEvents;
+
+    public static OrderJournal open(OrderRepository orderRepository) throws IOException {
+        return new OrderJournal(Paths.get(System.getProperty("food.journal.path", "orders.journal")),
+                Integer.getInteger("food.journal.regionMb", 8) * 1024L * 1024L,
+                Boolean.getBoolean("food.journal.fsync"),
+                Integer.getInteger("food.journal.snapshotInterval", 10_000),
+                Long.getLong("food.journal.flushIntervalMs", 1000L),
+                orderRepository,
+                Long.getLong("food.journal.checkpointMs", 5000L));
+    }
+
+    public OrderJournal(Path path, long regionBytes, boolean syncEveryAppend, int snapshotInterval, long flushIntervalMillis) throws IOException {
+        this(path, regionBytes, syncEveryAppend, snapshotInterval, flushIntervalMillis, null, 0);
+    }
+
+    public OrderJournal(Path path, long regionBytes, boolean syncEveryAppend, int snapshotInterval, long flushIntervalMillis,
+                        OrderRepository orderRepository, long checkpointIntervalMillis) throws IOException {
+        this.orderRepository = orderRepository;
+        this.snapshotPath = path.resolveSibling(path.getFileName() + ".snapshot");
+        this.regionBytes = regionBytes;
+        this.syncEveryAppend = syncEveryAppend;
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        mapRegion(0);
+        if (fresh) {
+            region.putInt(0, MAGIC);
+        } else if (region.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not an order journal");
+        }
+        recover();
+        if (orderRepository != null) {
+            for (int shard = 0; shard < orderRepository.getShardCount(); shard++) {
+                try {
+                    lastOrderIds.merge(shard, orderRepository.lastOrderId(shard), Math::max);
+                } catch (SQLException e) {
+                    channel.close();
+                    throw new IOException("Cannot read the last order id of shard " + shard, e);
+                }
+            }
+        }
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "order-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalMillis > 0 && !syncEveryAppend) {
+            background.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (orderRepository != null && checkpointIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(this::checkpointInBackground, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void orderPlaced(Order order) throws IOException {
+        Cart cart = order.getCart();
+        String address = order.getDeliveryAddress() == null ? "" : order.getDeliveryAddress();
+        GeoPoint location = order.getDeliveryLocation();
+        String idempotencyKey = order.getIdempotencyKey() == null ? "" : order.getIdempotencyKey();
+        String customer = order.getCustomer() == null ? "" : order.getCustomer();
+        int size = EVENT_HEADER_BYTES + 4 + 1 + 8 + 8 + 2 + address.length() * 3 + 2 + idempotencyKey.length() * 3
+                + 4 + 2 + customer.length() * 3;
+        for (int line = 0; line < cart.size(); line++) {
+            size += 4 + 4 + 8 + 2 + cart.getItem(line).getName().length() * 3;
+        }
+        int shard = orderRepository != null ? orderRepository.shardOf(order.getMerchantId()) : 0;
+        synchronized (this) {
+            int id = lastOrderIds.getOrDefault(shard, ShardRouter.idBase(shard)) + 1;
+            if (ShardRouter.shardOfOrder(id) != shard) {
+                throw new IOException("Shard " + shard + " has run out of order ids");
+            }
+            ByteBuffer payload = begin(EventType.ORDER_PLACED, id, size);
+            payload.putInt(cart.size());
+            for (int line = 0; line < cart.size(); line++) {
+                payload.putInt(cart.getItemId(line));
+                payload.putInt(cart.getQuantity(line));
+                payload.putLong(cart.getUnitPriceCents(line));
+                putString(payload, cart.getItem(line).getName());
+            }
+            payload.put((byte) (location == null ? 0 : 1));
+            payload.putDouble(location == null ? 0 : location.getLatitude());
+            payload.putDouble(location == null ? 0 : location.getLongitude());
+            putString(payload, address);
+            putString(payload, idempotencyKey);
+            payload.putInt(order.getMerchantId());
+            putString(payload, customer);
+            long createdAt = append(payload);
+            order.setId(id);
+            order.setCreatedAt(createdAt);
+        }
+    }
+
+    public synchronized void orderAccepted(Order order, DeliveryPerson deliveryPerson) throws IOException {
+        append(begin(EventType.ORDER_ACCEPTED, order.getId(), EVENT_HEADER_BYTES));
+        if (deliveryPerson != null) {
+            String name = deliveryPerson.getName();
+            ByteBuffer payload = begin(EventType.COURIER_ASSIGNED, order.getId(), EVENT_HEADER_BYTES + 2 + name.length() * 3);
+            putString(payload, name);
+            append(payload);
+        }
+    }
+
+    public synchronized void orderDelivered(Order order) throws IOException {
+        append(begin(EventType.ORDER_DELIVERED, order.getId(), EVENT_HEADER_BYTES));
+    }
+
+    public synchronized int getLiveOrderCount() {
+        return liveOrders.size();
+    }
+
+    public synchronized int getReplayedEvents() {
+        return replayedEvents;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public int restore(MenuCatalog catalog, CourierDispatcher dispatcher) {
+        List<LiveOrder> orders;
+        synchronized (this) {
+            orders = new ArrayList<>(liveOrders.values());
+        }
+        orders.sort(Comparator.comparingInt(order -> order.id));
+        MenuCatalog.Snapshot menu = catalog.snapshot();
+        for (LiveOrder liveOrder : orders) {
+            Order order = decode(liveOrder, menu);
+            order.setCatalogVersion(menu.getVersion());
+            order.transition(OrderStatus.NEW, OrderStatus.PLACED);
+            if (liveOrder.status == OrderStatus.ACCEPTED) {
+                order.transition(OrderStatus.PLACED, OrderStatus.ACCEPTED);
+                if (liveOrder.courier != null) {
+                    DeliveryPerson deliveryPerson = dispatcher.register(new DeliveryPerson(liveOrder.courier));
+                    Delivery delivery = new Delivery("Order #" + order.getId() + ", total $" + order.calculateTotal(), order.getDeliveryLocation(), dispatcher);
+                    if (delivery.restoreTo(deliveryPerson)) {
+                        order.setDeliveryPerson(deliveryPerson);
+                    }
+                }
+            }
+            OrderManager.restoreOrder(order);
+        }
+        return orders.size();
+    }
+
+    public boolean checkpoint() {
+        if (orderRepository == null) {
+            return true;
+        }
+        synchronized (checkpointLock) {
+            List<LiveOrder> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(uncheckpointed.values());
+                uncheckpointed.clear();
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
+            List<Order> orders = new ArrayList<>(pending.size());
+            for (LiveOrder liveOrder : pending) {
+                Order order = decode(liveOrder, null);
+                order.restoreStatus(liveOrder.status);
+                orders.add(order);
+            }
+            try {
+                orderRepository.checkpoint(orders);
+                return true;
+            } catch (SQLException e) {
+                logger.error("Error checkpointing {} journal orders into the database", orders.size(), e);
+                synchronized (this) {
+                    for (LiveOrder liveOrder : pending) {
+                        uncheckpointed.putIfAbsent(liveOrder.id, liveOrder);
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    public synchronized int getUncheckpointedCount() {
+        return uncheckpointed.size();
+    }
+
+    private static Order decode(LiveOrder liveOrder, MenuCatalog.Snapshot menu) {
+        ByteBuffer payload = ByteBuffer.wrap(liveOrder.lines);
+        int count = payload.getInt();
+        int[] itemIds = new int[count];
+        int[] quantities = new int[count];
+        long[] unitPricesCents = new long[count];
+        String[] names = new String[count];
+        for (int line = 0; line < count; line++) {
+            itemIds[line] = payload.getInt();
+            quantities[line] = payload.getInt();
+            unitPricesCents[line] = payload.getLong();
+            names[line] = getString(payload);
+        }
+        Order order = new Order();
+        if (payload.hasRemaining()) {
+            boolean located = payload.get() != 0;
+            double latitude = payload.getDouble();
+            double longitude = payload.getDouble();
+            String address = getString(payload);
+            order.setDeliveryAddress(address.isEmpty() ? null : address, located ? new GeoPoint(latitude, longitude) : null);
+        }
+        if (payload.hasRemaining()) {
+            String idempotencyKey = getString(payload);
+            order.setIdempotencyKey(idempotencyKey.isEmpty() ? null : idempotencyKey);
+        }
+        int merchantId = -1;
+        if (payload.hasRemaining()) {
+            merchantId = payload.getInt();
+            String customer = getString(payload);
+            order.setCustomer(customer.isEmpty() ? null : customer);
+        }
+        for (int line = 0; line < count; line++) {
+            FoodItem item = menu == null ? null : menu.getById(itemIds[line]);
+            if (merchantId < 0 && item != null) {
+                merchantId = item.getMerchantId();
+            }
+            if (item == null || item.getPriceCents() != unitPricesCents[line] || item.getMerchantId() != merchantId) {
+                item = new FoodItem(itemIds[line], Math.max(Merchant.HOUSE, merchantId), names[line], unitPricesCents[line] / 100.0);
+            }
+            order.addItem(item, quantities[line]);
+        }
+        order.setMerchantId(Math.max(Merchant.HOUSE, merchantId));
+        order.setId(liveOrder.id);
+        order.setCreatedAt(liveOrder.createdAt);
+        return order;
+    }
+
+    public void snapshot() throws IOException {
+        synchronized (checkpointLock) {
+            long snapshotPosition;
+            long snapshotSequence;
+            Map<Integer, Integer> snapshotLastOrderIds;
+            List<LiveOrder> orders;
+            MappedByteBuffer current;
+            synchronized (this) {
+                snapshotPosition = position;
+                snapshotSequence = sequence;
+                snapshotLastOrderIds = new HashMap<>(lastOrderIds);
+                orders = new ArrayList<>(liveOrders.values());
+                current = region;
+                eventsSinceSnapshot = 0;
+            }
+            // events before the snapshot position are not replayed again, so they must reach the database first
+            if (!checkpoint()) {
+                throw new IOException("Journal orders could not be checkpointed, keeping the previous snapshot");
+            }
+            current.force();
+            int size = 4 + 8 + 8 + 4 + snapshotLastOrderIds.size() * 8 + 4 + 4;
+            for (LiveOrder order : orders) {
+                size += 4 + 1 + 8 + 2 + (order.courier == null ? 0 : order.courier.length() * 3) + 4 + order.lines.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putLong(snapshotPosition);
+            buffer.putLong(snapshotSequence);
+            buffer.putInt(snapshotLastOrderIds.size());
+            for (Map.Entry<Integer, Integer> entry : snapshotLastOrderIds.entrySet()) {
+                buffer.putInt(entry.getKey());
+                buffer.putInt(entry.getValue());
+            }
+            buffer.putInt(orders.size());
+            for (LiveOrder order : orders) {
+                buffer.putInt(order.id);
+                buffer.put((byte) order.status.ordinal());
+                buffer.putLong(order.createdAt);
+                putString(buffer, order.courier == null ? "" : order.courier);
+                buffer.putInt(order.lines.length);
+                buffer.put(order.lines);
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), 0, buffer.position());
+            buffer.putInt((int) checksum.getValue());
+            buffer.flip();
+            Path temporary = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            logger.error("Error writing the final journal snapshot", e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing the order journal", e);
+        }
+    }
+
+    private ByteBuffer begin(EventType type, int orderId, int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put((byte) type.ordinal());
+        scratch.putLong(sequence + 1);
+        scratch.putLong(System.currentTimeMillis());
+        scratch.putInt(orderId);
+        return scratch;
+    }
+
+    private long append(ByteBuffer payload) throws IOException {
+        int length = payload.position();
+        int offset = reserve(4 + length + 4);
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        region.putInt(offset, length);
+        region.put(offset + 4, payload.array(), 0, length);
+        region.putInt(offset + 4 + length, (int) crc.getValue());
+        position += 4 + length + 4;
+        apply(ByteBuffer.wrap(payload.array(), 0, length));
+        if (syncEveryAppend) {
+            region.force();
+        }
+        if (++eventsSinceSnapshot >= snapshotInterval && !snapshotPending) {
+            snapshotPending = true;
+            background.execute(this::snapshotInBackground);
+        }
+        return payload.getLong(1 + 8);
+    }
+
+    private int reserve(int bytes) throws IOException {
+        if (bytes > regionBytes - HEADER_BYTES) {
+            throw new IOException("Journal record of " + bytes + " bytes does not fit in a region");
+        }
+        int offset = (int) (position - regionStart);
+        if (regionBytes - offset < bytes) {
+            if (regionBytes - offset >= 4) {
+                region.putInt(offset, PADDING);
+            }
+            region.force();
+            mapRegion(regionStart + regionBytes);
+            position = regionStart;
+            offset = 0;
+        }
+        return offset;
+    }
+
+    private void apply(ByteBuffer payload) {
+        EventType type = EVENT_TYPES[payload.get()];
+        sequence = payload.getLong();
+        long timestamp = payload.getLong();
+        int orderId = payload.getInt();
+        LiveOrder order = liveOrders.get(orderId);
+        LiveOrder next;
+        switch (type) {
+            case ORDER_PLACED:
+                byte[] lines = new byte[payload.remaining()];
+                payload.get(lines);
+                lastOrderIds.merge(ShardRouter.shardOfOrder(orderId), orderId, Math::max);
+                next = new LiveOrder(orderId, OrderStatus.PLACED, null, lines, timestamp);
+                break;
+            case ORDER_ACCEPTED:
+                next = order == null ? null : new LiveOrder(orderId, OrderStatus.ACCEPTED, order.courier, order.lines, order.createdAt);
+                break;
+            case COURIER_ASSIGNED:
+                next = order == null ? null : new LiveOrder(orderId, order.status, getString(payload), order.lines, order.createdAt);
+                break;
+            default:
+                liveOrders.remove(orderId);
+                next = order == null ? null : new LiveOrder(orderId, OrderStatus.DELIVERED, order.courier, order.lines, order.createdAt);
+        }
+        if (next == null) {
+            return;
+        }
+        if (next.status != OrderStatus.DELIVERED) {
+            liveOrders.put(orderId, next);
+        }
+        if (orderRepository != null) {
+            uncheckpointed.put(orderId, next);
+        }
+    }
+
+    private void recover() throws IOException {
+        loadSnapshot();
+        mapRegion(position - position % regionBytes);
+        while (true) {
+            int offset = (int) (position - regionStart);
+            int length = regionBytes - offset >= 4 ? region.getInt(offset) : PADDING;
+            if (length == PADDING) {
+                mapRegion(regionStart + regionBytes);
+                position = regionStart;
+                continue;
+            }
+            if (length <= 0 || offset + 8L + length > regionBytes) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            region.get(offset + 4, payload);
+            crc.reset();
+            crc.update(payload);
+            if (region.getInt(offset + 4 + length) != (int) crc.getValue()) {
+                logger.warn("Discarding torn journal record at offset {}", position);
+                break;
+            }
+            apply(ByteBuffer.wrap(payload));
+            position += 4 + length + 4;
+            replayedEvents++;
+        }
+        int offset = (int) (position - regionStart);
+        if (regionBytes - offset >= 4 && region.getInt(offset) != 0) {
+            region.put(offset, new byte[(int) (regionBytes - offset)]);
+        }
+    }
+
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), 0, buffer.limit() - 4);
+            int magic = buffer.getInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1 || buffer.getInt(buffer.limit() - 4) != (int) checksum.getValue()) {
+                logger.warn("Ignoring corrupt journal snapshot {}", snapshotPath);
+                return;
+            }
+            long snapshotPosition = buffer.getLong();
+            if (snapshotPosition > channel.size()) {
+                logger.warn("Ignoring journal snapshot that is ahead of the journal");
+                return;
+            }
+            long snapshotSequence = buffer.getLong();
+            Map<Integer, Integer> snapshotLastOrderIds = new HashMap<>();
+            if (magic == SNAPSHOT_MAGIC_V1) {
+                snapshotLastOrderIds.put(0, buffer.getInt() - 1);
+            } else {
+                for (int shards = buffer.getInt(); shards > 0; shards--) {
+                    snapshotLastOrderIds.put(buffer.getInt(), buffer.getInt());
+                }
+            }
+            int count = buffer.getInt();
+            Map<Integer, LiveOrder> orders = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int id = buffer.getInt();
+                OrderStatus status = OrderStatus.values()[buffer.get()];
+                long createdAt = magic == SNAPSHOT_MAGIC_V1 ? 0 : buffer.getLong();
+                String courier = getString(buffer);
+                byte[] lines = new byte[buffer.getInt()];
+                buffer.get(lines);
+                orders.put(id, new LiveOrder(id, status, courier.isEmpty() ? null : courier, lines, createdAt));
+            }
+            liveOrders.putAll(orders);
+            lastOrderIds.putAll(snapshotLastOrderIds);
+            position = snapshotPosition;
+            sequence = snapshotSequence;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable journal snapshot {}", snapshotPath, e);
+        }
+    }
+
+    private void mapRegion(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, regionBytes);
+        regionStart = start;
+    }
+
+    private void flush() {
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = region;
+        }
+        current.force();
+    }
+
+    private void checkpointInBackground() {
+        try {
+            checkpoint();
+        } catch (RuntimeException e) {
+            logger.error("Error checkpointing the order journal", e);
+        }
+    }
+
+    private void snapshotInBackground() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            logger.error("Error writing a journal snapshot", e);
+        } finally {
+            synchronized (this) {
+                snapshotPending = false;
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xFFFF);
+        buffer.putShort((short) length);
+        buffer.put(bytes, 0, length);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class LiveOrder {
+        private final int id;
+        private final OrderStatus status;
+        private final String courier;
+        private final byte[] lines;
+        private final long createdAt;
+
+        LiveOrder(int id, OrderStatus status, String courier, byte[] lines, long createdAt) {
+            this.id = id;
+            this.status = status;
+            this.courier = courier;
+            this.lines = lines;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+class OrderRepository {
+    private static final String INSERT_ORDER = "INSERT INTO orders (id, merchant_id, status, total, created_at, delivery_address, delivery_lat, delivery_lon) "
+            + "SELECT next_id, ?, ?, ?, ?, ?, ?, ? FROM (SELECT COALESCE(MAX(id), ?) + 1 AS next_id FROM orders) WHERE next_id <= ?";
+    private static final String CHECKPOINT_ORDER = "INSERT OR IGNORE INTO orders (id, merchant_id, status, total, created_at, delivery_address, delivery_lat, delivery_lon) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_STATUS = "UPDATE orders SET status = ? WHERE id = ?";
+    private static final String INSERT_ORDER_LINE = "INSERT INTO order_lines (order_id, item_id, item_name, quantity, unit_price) VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_CHECKOUT_REQUEST = "INSERT INTO checkout_requests (idempotency_key, order_id, created_at) VALUES (?, ?, ?)";
+    private static final String CHECKPOINT_CHECKOUT_REQUEST = "INSERT OR IGNORE INTO checkout_requests (idempotency_key, order_id, created_at) VALUES (?, ?, ?)";
+    private static final String FIND_CHECKOUT_REQUEST = "SELECT o.id, o.merchant_id, o.status, o.created_at, o.delivery_address, o.delivery_lat, o.delivery_lon "
+            + "FROM checkout_requests c JOIN orders o ON o.id = c.order_id WHERE c.idempotency_key = ?";
+    private static final String FIND_ORDER = "SELECT id, merchant_id, status, created_at, delivery_address, delivery_lat, delivery_lon FROM orders WHERE id = ?";
+    private static final String RECENT_CHECKOUT_REQUESTS = "SELECT idempotency_key, order_id, created_at FROM checkout_requests "
+            + "WHERE created_at >= ? ORDER BY created_at DESC, order_id DESC LIMIT ?";
+
+    static final class CheckoutRequest {
+        private final String key;
+        private final int orderId;
+        private final long createdAt;
+
+        CheckoutRequest(String key, int orderId, long createdAt) {
+            this.key = key;
+            this.orderId = orderId;
+            this.createdAt = createdAt;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getOrderId() {
+            return orderId;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+
+    private final ShardRouter shardRouter;
+
+    public OrderRepository(ConnectionPool connectionPool) {
+        this(new ShardRouter(connectionPool));
+    }
+
+    public OrderRepository(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    public void save(Order order) throws SQLException {
+        writeBatch(Collections.singletonList(order));
+    }
+
+    public void saveAll(List<Order> orders) throws SQLException {
+        if (!orders.isEmpty()) {
+            writeBatch(orders);
+        }
+    }
+
+    public void checkpoint(List<Order> orders) throws SQLException {
+        if (!orders.isEmpty()) {
+            byShard(orders, this::checkpointShard);
+        }
+    }
+
+    public int shardOf(int merchantId) {
+        return shardRouter.shardOf(merchantId);
+    }
+
+    public int getShardCount() {
+        return shardRouter.getShardCount();
+    }
+
+    public int lastOrderId(int shard) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement("SELECT COALESCE(MAX(id), ?) FROM orders")) {
+            preparedStatement.setInt(1, ShardRouter.idBase(shard));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    public boolean updateStatus(Order order) throws SQLException {
+        if (order.getId() <= 0) {
+            return false;
+        }
+        try (Connection connection = shardRouter.poolFor(order.getMerchantId()).getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(UPDATE_STATUS)) {
+            preparedStatement.setString(1, order.getStatus().name());
+            preparedStatement.setInt(2, order.getId());
+            return preparedStatement.executeUpdate() == 1;
+        }
+    }
+
+    public Stream<Order> streamOrders(OrderStatus status, long fromMillis, long toMillis) {
+        return streamOrders(null, status, fromMillis, toMillis);
+    }
+
+    public Stream<Order> streamOrders(Merchant merchant, OrderStatus status, long fromMillis, long toMillis) {
+        return KeysetPager.stream((after, limit) -> listOrders(merchant, status, fromMillis, toMillis, after, limit),
+                KeysetPager.defaultPageSize());
+    }
+
+    public List<Order> listOrders(OrderStatus status, long fromMillis, long toMillis, Order before, int limit) throws SQLException {
+        return listOrders(null, status, fromMillis, toMillis, before, limit);
+    }
+
+    public List<Order> listOrders(Merchant merchant, OrderStatus status, long fromMillis, long toMillis, Order before, int limit) throws SQLException {
+        if (merchant != null) {
+            return listShard(shardRouter.getShard(merchant.getShard()), merchant, status, fromMillis, toMillis, before, limit);
+        }
+        List<Order> page = new ArrayList<>();
+        for (List<Order> shardPage : shardRouter.fanOut((shard, pool) -> listShard(pool, null, status, fromMillis, toMillis, before, limit))) {
+            page.addAll(shardPage);
+        }
+        if (shardRouter.getShardCount() > 1) {
+            page.sort(Comparator.comparingLong(Order::getCreatedAt).thenComparingInt(Order::getId).reversed());
+            if (page.size() > limit) {
+                page = new ArrayList<>(page.subList(0, limit));
+            }
+        }
+        return page;
+    }
+
+    private List<Order> listShard(ConnectionPool pool, Merchant merchant, OrderStatus status, long fromMillis, long toMillis,
+                                  Order before, int limit) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT id, merchant_id, status, created_at, delivery_address, delivery_lat, delivery_lon FROM orders WHERE created_at >= ?");
+        if (merchant != null) {
+            sql.append(" AND merchant_id = ?");
+        }
+        if (status != null) {
+            sql.append(" AND status = ?");
+        }
+        if (before == null) {
+            sql.append(" AND created_at < ?");
+        } else {
+            sql.append(" AND created_at <= ? AND (created_at < ? OR id < ?)");
+        }
+        sql.append(" ORDER BY created_at DESC, id DESC LIMIT ?");
+        List<Order> page = new ArrayList<>(limit);
+        Map<Integer, Order> byId = new HashMap<>();
+        try (Connection connection = pool.getConnection()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql.toString())) {
+                int parameter = 1;
+                preparedStatement.setLong(parameter++, fromMillis);
+                if (merchant != null) {
+                    preparedStatement.setInt(parameter++, merchant.getId());
+                }
+                if (status != null) {
+                    preparedStatement.setString(parameter++, status.name());
+                }
+                if (before == null) {
+                    preparedStatement.setLong(parameter++, toMillis);
+                } else {
+                    preparedStatement.setLong(parameter++, before.getCreatedAt());
+                    preparedStatement.setLong(parameter++, before.getCreatedAt());
+                    preparedStatement.setInt(parameter++, before.getId());
+                }
+                preparedStatement.setInt(parameter, limit);
+                preparedStatement.setFetchSize(limit);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Order order = readOrder(resultSet);
+                        page.add(order);
+                        byId.put(order.getId(), order);
+                    }
+                }
+            }
+            if (!page.isEmpty()) {
+                loadLines(connection, page, byId);
+            }
+        }
+        return page;
+    }
+
+    public Order findOrder(int orderId) throws SQLException {
+        try (Connection connection = shardRouter.getShard(ShardRouter.shardOfOrder(orderId)).getConnection()) {
+            Order order;
+            try (PreparedStatement preparedStatement = connection.prepareStatement(FIND_ORDER)) {
+                preparedStatement.setInt(1, orderId);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        return null;
+                    }
+                    order = readOrder(resultSet);
+                }
+            }
+            Map<Integer, Order> byId = new HashMap<>();
+            byId.put(order.getId(), order);
+            loadLines(connection, Collections.singletonList(order), byId);
+            return order;
+        }
+    }
+
+    public List<CheckoutRequest> recentCheckoutRequests(long sinceMillis, int limit) throws SQLException {
+        List<CheckoutRequest> requests = new ArrayList<>();
+        for (List<CheckoutRequest> shardRequests : shardRouter.fanOut((shard, pool) -> {
+            List<CheckoutRequest> page = new ArrayList<>();
+            try (Connection connection = pool.getConnection();
+                 PreparedStatement preparedStatement = connection.prepareStatement(RECENT_CHECKOUT_REQUESTS)) {
+                preparedStatement.setLong(1, sinceMillis);
+                preparedStatement.setInt(2, limit);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        page.add(new CheckoutRequest(resultSet.getString(1), resultSet.getInt(2), resultSet.getLong(3)));
+                    }
+                }
+            }
+            return page;
+        })) {
+            requests.addAll(shardRequests);
+        }
+        requests.sort(Comparator.comparingLong(CheckoutRequest::getCreatedAt).thenComparingInt(CheckoutRequest::getOrderId));
+        return requests.size() > limit ? new ArrayList<>(requests.subList(requests.size() - limit, requests.size())) : requests;
+    }
+
+    private Order findByIdempotencyKey(Connection connection, String key) throws SQLException {
+        Order order;
+        try (PreparedStatement preparedStatement = connection.prepareStatement(FIND_CHECKOUT_REQUEST)) {
+            preparedStatement.setString(1, key);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                order = readOrder(resultSet);
+            }
+        }
+        Map<Integer, Order> byId = new HashMap<>();
+        byId.put(order.getId(), order);
+        loadLines(connection, Collections.singletonList(order), byId);
+        order.setIdempotencyKey(key);
+        return order;
+    }
+
+    private static Order readOrder(ResultSet resultSet) throws SQLException {
+        Order order = new Order();
+        order.setId(resultSet.getInt("id"));
+        order.setMerchantId(resultSet.getInt("merchant_id"));
+        order.setCreatedAt(resultSet.getLong("created_at"));
+        order.restoreStatus(OrderStatus.valueOf(resultSet.getString("status")));
+        double latitude = resultSet.getDouble("delivery_lat");
+        boolean located = !resultSet.wasNull();
+        double longitude = resultSet.getDouble("delivery_lon");
+        order.setDeliveryAddress(resultSet.getString("delivery_address"),
+                located && !resultSet.wasNull() ? new GeoPoint(latitude, longitude) : null);
+        return order;
+    }
+
+    private void loadLines(Connection connection, List<Order> page, Map<Integer, Order> byId) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT order_id, item_id, item_name, quantity, unit_price FROM order_lines WHERE order_id IN (");
+        for (int i = 0; i < page.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") ORDER BY order_id, id");
+        try (PreparedStatement preparedStatement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < page.size(); i++) {
+                preparedStatement.setInt(i + 1, page.get(i).getId());
+            }
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    Order order = byId.get(resultSet.getInt("order_id"));
+                    FoodItem item = new FoodItem(resultSet.getInt("item_id"), order.getMerchantId(), resultSet.getString("item_name"), resultSet.getDouble("unit_price"));
+                    order.addItem(item, resultSet.getInt("quantity"));
+                }
+            }
+        }
+    }
+
+    private interface ShardWriter {
+        void write(int shard, List<Order> orders) throws SQLException;
+    }
+
+    private void writeBatch(List<Order> orders) throws SQLException {
+        byShard(orders, this::writeShard);
+    }
+
+    private void byShard(List<Order> orders, ShardWriter writer) throws SQLException {
+        Map<Integer, List<Order>> byShard = new TreeMap<>();
+        for (Order order : orders) {
+            byShard.computeIfAbsent(shardRouter.shardOf(order.getMerchantId()), shard -> new ArrayList<>()).add(order);
+        }
+        if (byShard.size() == 1) {
+            Map.Entry<Integer, List<Order>> only = byShard.entrySet().iterator().next();
+            writer.write(only.getKey(), only.getValue());
+            return;
+        }
+        int[] targets = new int[byShard.size()];
+        int next = 0;
+        for (int shard : byShard.keySet()) {
+            targets[next++] = shard;
+        }
+        shardRouter.fanOut(targets, (shard, pool) -> {
+            writer.write(shard, byShard.get(shard));
+            return null;
+        });
+    }
+
+    private void writeShard(int shard, List<Order> orders) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement orderStatement = connection.prepareStatement(INSERT_ORDER, Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement lineStatement = connection.prepareStatement(INSERT_ORDER_LINE);
+                 PreparedStatement requestStatement = connection.prepareStatement(INSERT_CHECKOUT_REQUEST)) {
+                boolean keyed = false;
+                int[] ids = new int[orders.size()];
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < orders.size(); i++) {
+                    Order order = orders.get(i);
+                    if (order.getIdempotencyKey() != null) {
+                        Order original = findByIdempotencyKey(connection, order.getIdempotencyKey());
+                        order.setDuplicateOf(original);
+                        if (original != null) {
+                            continue;
+                        }
+                    }
+                    orderStatement.setInt(1, order.getMerchantId());
+                    orderStatement.setString(2, OrderStatus.PLACED.name());
+                    orderStatement.setDouble(3, order.calculateTotal());
+                    orderStatement.setLong(4, now);
+                    bindDelivery(orderStatement, 5, order);
+                    orderStatement.setInt(8, ShardRouter.idBase(shard));
+                    orderStatement.setInt(9, ShardRouter.lastId(shard));
+                    if (orderStatement.executeUpdate() == 0) {
+                        throw new SQLException("Shard " + shard + " has run out of order ids");
+                    }
+                    try (ResultSet keys = orderStatement.getGeneratedKeys()) {
+                        keys.next();
+                        ids[i] = keys.getInt(1);
+                    }
+                    addLines(lineStatement, ids[i], order.getCart());
+                    if (order.getIdempotencyKey() != null) {
+                        addCheckoutRequest(requestStatement, order.getIdempotencyKey(), ids[i], now);
+                        keyed = true;
+                    }
+                }
+                lineStatement.executeBatch();
+                if (keyed) {
+                    requestStatement.executeBatch();
+                }
+                connection.commit();
+                for (int i = 0; i < orders.size(); i++) {
+                    if (ids[i] != 0) {
+                        orders.get(i).setId(ids[i]);
+                        orders.get(i).setCreatedAt(now);
+                    }
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void checkpointShard(int shard, List<Order> orders) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement orderStatement = connection.prepareStatement(CHECKPOINT_ORDER);
+                 PreparedStatement statusStatement = connection.prepareStatement(UPDATE_STATUS);
+                 PreparedStatement lineStatement = connection.prepareStatement(INSERT_ORDER_LINE);
+                 PreparedStatement requestStatement = connection.prepareStatement(CHECKPOINT_CHECKOUT_REQUEST)) {
+                boolean inserted = false;
+                boolean updated = false;
+                boolean keyed = false;
+                for (Order order : orders) {
+                    orderStatement.setInt(1, order.getId());
+                    orderStatement.setInt(2, order.getMerchantId());
+                    orderStatement.setString(3, order.getStatus().name());
+                    orderStatement.setDouble(4, order.calculateTotal());
+                    orderStatement.setLong(5, order.getCreatedAt());
+                    bindDelivery(orderStatement, 6, order);
+                    if (orderStatement.executeUpdate() == 1) {
+                        addLines(lineStatement, order.getId(), order.getCart());
+                        inserted = true;
+                        if (order.getIdempotencyKey() != null) {
+                            addCheckoutRequest(requestStatement, order.getIdempotencyKey(), order.getId(), order.getCreatedAt());
+                            keyed = true;
+                        }
+                    } else {
+                        statusStatement.setString(1, order.getStatus().name());
+                        statusStatement.setInt(2, order.getId());
+                        statusStatement.addBatch();
+                        updated = true;
+                    }
+                }
+                if (inserted) {
+                    lineStatement.executeBatch();
+                }
+                if (keyed) {
+                    requestStatement.executeBatch();
+                }
+                if (updated) {
+                    statusStatement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static void bindDelivery(PreparedStatement statement, int index, Order order) throws SQLException {
+        statement.setString(index, order.getDeliveryAddress());
+        GeoPoint location = order.getDeliveryLocation();
+        if (location == null) {
+            statement.setNull(index + 1, Types.REAL);
+            statement.setNull(index + 2, Types.REAL);
+        } else {
+            statement.setDouble(index + 1, location.getLatitude());
+            statement.setDouble(index + 2, location.getLongitude());
+        }
+    }
+
+    private static void addLines(PreparedStatement statement, int orderId, Cart cart) throws SQLException {
+        for (int line = 0; line < cart.size(); line++) {
+            statement.setInt(1, orderId);
+            if (cart.getItemId(line) == 0) {
+                statement.setNull(2, Types.INTEGER);
+            } else {
+                statement.setInt(2, cart.getItemId(line));
+            }
+            statement.setString(3, cart.getItem(line).getName());
+            statement.setInt(4, cart.getQuantity(line));
+            statement.setDouble(5, cart.getUnitPriceCents(line) / 100.0);
+            statement.addBatch();
+        }
+    }
+
+    private static void addCheckoutRequest(PreparedStatement statement, String key, int orderId, long createdAt) throws SQLException {
+        statement.setString(1, key);
+        statement.setInt(2, orderId);
+        statement.setLong(3, createdAt);
+        statement.addBatch();
+    }
+}
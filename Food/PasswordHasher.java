@@ -0,0 +1,124 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+class PasswordHasher {
+    private static final String PREFIX = "pbkdf2";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final long verifierTtlNanos;
+    private final SecretKeySpec verifierKey;
+
+    public PasswordHasher() {
+        this(Integer.getInteger("food.auth.iterations", 20_000), Long.getLong("food.auth.verifierTtlSeconds", 300L));
+    }
+
+    public PasswordHasher(int iterations) {
+        this(iterations, 300L);
+    }
+
+    public PasswordHasher(int iterations, long verifierTtlSeconds) {
+        this.iterations = Math.max(1, iterations);
+        this.verifierTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, verifierTtlSeconds));
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        this.verifierKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return encode(iterations, salt, pbkdf2(password, salt, iterations));
+    }
+
+    public boolean verify(User user, String password) {
+        String stored = user.getPassword();
+        if (password == null || stored == null) {
+            return false;
+        }
+        Verified cached = user.getVerified();
+        if (cached != null && cached.expiresAt - System.nanoTime() > 0
+                && MessageDigest.isEqual(cached.mac, verifierMac(stored, password))) {
+            return true;
+        }
+        boolean verified;
+        if (isHashed(stored)) {
+            String[] parts = stored.split("\\$");
+            int storedIterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            verified = MessageDigest.isEqual(expected, pbkdf2(password, salt, storedIterations));
+        } else {
+            verified = MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        if (verified) {
+            user.setVerified(verifierTtlNanos > 0 ? new Verified(verifierMac(stored, password), System.nanoTime() + verifierTtlNanos) : null);
+        }
+        return verified;
+    }
+
+    public boolean needsRehash(String stored) {
+        if (!isHashed(stored)) {
+            return true;
+        }
+        return Integer.parseInt(stored.split("\\$")[1]) != iterations;
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX + "$") && stored.split("\\$").length == 4;
+    }
+
+    private static String encode(int iterations, byte[] salt, byte[] hash) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + "$" + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Password hashing is unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private byte[] verifierMac(String stored, String password) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(verifierKey);
+            mac.update(stored.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is unavailable", e);
+        }
+    }
+
+    static final class Verified {
+        private final byte[] mac;
+        private final long expiresAt;
+
+        Verified(byte[] mac, long expiresAt) {
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SalesAnalytics {
+    private static final Logger logger = LoggerFactory.getLogger(SalesAnalytics.class);
+    private static final Metrics.Histogram CHECKPOINT_LATENCY = Metrics.getInstance().histogram("food_analytics_checkpoint_seconds", "Time spent writing changed analytics counters to the database.");
+    static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ShardRouter shardRouter;
+    private final long retentionHours;
+    private final ScheduledExecutorService checkpointer;
+    private final Totals totals = new Totals();
+    private final ConcurrentHashMap<Integer, Totals> merchantTotals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Totals> merchantHours = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ItemSales> items = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<ItemSales>> itemsByMerchant = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> courierTotals = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> courierHours = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, LongAdder> deliveryHours = new ConcurrentHashMap<>();
+    private final Set<Long> dirtyMerchantHours = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> dirtyItems = ConcurrentHashMap.newKeySet();
+    private final Set<String> dirtyCourierHours = ConcurrentHashMap.newKeySet();
+
+    public SalesAnalytics(ShardRouter shardRouter) {
+        this(shardRouter, Long.getLong("food.analytics.retentionHours", 168L), Long.getLong("food.analytics.checkpointSeconds", 30L));
+    }
+
+    public SalesAnalytics(ShardRouter shardRouter, long retentionHours, long checkpointSeconds) {
+        this.shardRouter = shardRouter;
+        this.retentionHours = Math.max(1, retentionHours);
+        load();
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "analytics-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, checkpointSeconds);
+        checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, interval, interval, TimeUnit.SECONDS);
+    }
+
+    static long hourOf(long epochMillis) {
+        return Math.floorDiv(epochMillis, HOUR_MILLIS);
+    }
+
+    private static long merchantHour(int merchantId, long hour) {
+        return (long) merchantId << 32 | (hour & 0xFFFFFFFFL);
+    }
+
+    private static String courierHour(String username, long hour) {
+        return hour + ":" + username;
+    }
+
+    public void recordOrder(Order order) {
+        long hour = hourOf(order.getCreatedAt() > 0 ? order.getCreatedAt() : System.currentTimeMillis());
+        long cents = order.getTotalCents();
+        int merchantId = order.getMerchantId();
+        totals.add(cents);
+        merchantTotals.computeIfAbsent(merchantId, key -> new Totals()).add(cents);
+        long key = merchantHour(merchantId, hour);
+        merchantHours.computeIfAbsent(key, k -> new Totals()).add(cents);
+        dirtyMerchantHours.add(key);
+        Cart cart = order.getCart();
+        for (int line = 0; line < cart.size(); line++) {
+            int itemId = cart.getItemId(line);
+            ItemSales sales = item(itemId, merchantId);
+            sales.quantity.add(cart.getQuantity(line));
+            sales.revenueCents.add(cart.getUnitPriceCents(line) * cart.getQuantity(line));
+            dirtyItems.add(itemId);
+        }
+    }
+
+    public void recordDelivery(DeliveryPerson deliveryPerson, long epochMillis) {
+        long hour = hourOf(epochMillis);
+        String username = deliveryPerson.getName();
+        courierTotals.computeIfAbsent(username, key -> new LongAdder()).increment();
+        deliveryHours.computeIfAbsent(hour, key -> new LongAdder()).increment();
+        String key = courierHour(username, hour);
+        courierHours.computeIfAbsent(key, k -> new LongAdder()).increment();
+        dirtyCourierHours.add(key);
+    }
+
+    private ItemSales item(int itemId, int merchantId) {
+        ItemSales sales = items.get(itemId);
+        if (sales == null) {
+            sales = items.computeIfAbsent(itemId, key -> new ItemSales(itemId, merchantId));
+            itemsByMerchant.computeIfAbsent(sales.merchantId, key -> ConcurrentHashMap.newKeySet()).add(sales);
+        }
+        return sales;
+    }
+
+    public long getOrderCount() {
+        return totals.orders.sum();
+    }
+
+    public long getRevenueCents() {
+        return totals.revenueCents.sum();
+    }
+
+    public long getAverageOrderCents() {
+        return totals.average();
+    }
+
+    public long getOrderCount(int merchantId) {
+        Totals merchant = merchantTotals.get(merchantId);
+        return merchant == null ? 0 : merchant.orders.sum();
+    }
+
+    public long getRevenueCents(int merchantId) {
+        Totals merchant = merchantTotals.get(merchantId);
+        return merchant == null ? 0 : merchant.revenueCents.sum();
+    }
+
+    public long getAverageOrderCents(int merchantId) {
+        Totals merchant = merchantTotals.get(merchantId);
+        return merchant == null ? 0 : merchant.average();
+    }
+
+    public long[] getHourlyRevenueCents(int merchantId, int hours) {
+        long[] series = new long[Math.max(0, hours)];
+        long first = hourOf(System.currentTimeMillis()) - series.length + 1;
+        for (int i = 0; i < series.length; i++) {
+            Totals bucket = merchantHours.get(merchantHour(merchantId, first + i));
+            series[i] = bucket == null ? 0 : bucket.revenueCents.sum();
+        }
+        return series;
+    }
+
+    public List<ItemRank> getTopItems(int merchantId, int limit) {
+        Set<ItemSales> merchantItems = itemsByMerchant.get(merchantId);
+        List<ItemRank> ranked = new ArrayList<>();
+        if (merchantItems == null) {
+            return ranked;
+        }
+        for (ItemSales sales : merchantItems) {
+            ranked.add(new ItemRank(sales.itemId, sales.quantity.sum(), sales.revenueCents.sum()));
+        }
+        ranked.sort((a, b) -> a.quantity != b.quantity ? Long.compare(b.quantity, a.quantity) : Integer.compare(a.itemId, b.itemId));
+        return ranked.size() > limit ? new ArrayList<>(ranked.subList(0, Math.max(0, limit))) : ranked;
+    }
+
+    public long getDeliveryCount(String username) {
+        LongAdder count = courierTotals.get(username);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long[] getHourlyDeliveries(String username, int hours) {
+        long[] series = new long[Math.max(0, hours)];
+        long first = hourOf(System.currentTimeMillis()) - series.length + 1;
+        for (int i = 0; i < series.length; i++) {
+            LongAdder bucket = username == null ? deliveryHours.get(first + i) : courierHours.get(courierHour(username, first + i));
+            series[i] = bucket == null ? 0 : bucket.sum();
+        }
+        return series;
+    }
+
+    private void load() {
+        long oldest = hourOf(System.currentTimeMillis()) - retentionHours;
+        try {
+            shardRouter.fanOut((shard, pool) -> {
+                try (Connection connection = pool.getConnection();
+                     Statement statement = connection.createStatement()) {
+                    loadShard(statement, shard, oldest);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Error loading analytics checkpoints", e);
+        }
+    }
+
+    private void loadShard(Statement statement, int shard, long oldest) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("SELECT merchant_id, hour, orders, revenue_cents FROM sales_hourly")) {
+            while (resultSet.next()) {
+                int merchantId = resultSet.getInt("merchant_id");
+                long hour = resultSet.getLong("hour");
+                long orders = resultSet.getLong("orders");
+                long cents = resultSet.getLong("revenue_cents");
+                totals.add(orders, cents);
+                merchantTotals.computeIfAbsent(merchantId, key -> new Totals()).add(orders, cents);
+                if (hour >= oldest) {
+                    merchantHours.computeIfAbsent(merchantHour(merchantId, hour), key -> new Totals()).add(orders, cents);
+                }
+            }
+        }
+        try (ResultSet resultSet = statement.executeQuery("SELECT item_id, merchant_id, quantity, revenue_cents FROM item_sales")) {
+            while (resultSet.next()) {
+                ItemSales sales = item(resultSet.getInt("item_id"), resultSet.getInt("merchant_id"));
+                sales.quantity.add(resultSet.getLong("quantity"));
+                sales.revenueCents.add(resultSet.getLong("revenue_cents"));
+            }
+        }
+        if (shard != 0) {
+            return;
+        }
+        try (ResultSet resultSet = statement.executeQuery("SELECT username, hour, deliveries FROM courier_deliveries_hourly")) {
+            while (resultSet.next()) {
+                String username = resultSet.getString("username");
+                long hour = resultSet.getLong("hour");
+                long deliveries = resultSet.getLong("deliveries");
+                courierTotals.computeIfAbsent(username, key -> new LongAdder()).add(deliveries);
+                if (hour >= oldest) {
+                    courierHours.computeIfAbsent(courierHour(username, hour), key -> new LongAdder()).add(deliveries);
+                    deliveryHours.computeIfAbsent(hour, key -> new LongAdder()).add(deliveries);
+                }
+            }
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error checkpointing analytics", e);
+        }
+    }
+
+    public synchronized void checkpoint() throws SQLException {
+        long start = CHECKPOINT_LATENCY.start();
+        Map<Integer, List<Long>> hoursByShard = new HashMap<>();
+        for (Iterator<Long> iterator = dirtyMerchantHours.iterator(); iterator.hasNext(); ) {
+            long key = iterator.next();
+            iterator.remove();
+            hoursByShard.computeIfAbsent(shardRouter.shardOf((int) (key >> 32)), shard -> new ArrayList<>()).add(key);
+        }
+        Map<Integer, List<ItemSales>> itemsByShard = new HashMap<>();
+        for (Iterator<Integer> iterator = dirtyItems.iterator(); iterator.hasNext(); ) {
+            ItemSales sales = items.get(iterator.next());
+            iterator.remove();
+            itemsByShard.computeIfAbsent(shardRouter.shardOf(sales.merchantId), shard -> new ArrayList<>()).add(sales);
+        }
+        List<String> couriers = new ArrayList<>();
+        for (Iterator<String> iterator = dirtyCourierHours.iterator(); iterator.hasNext(); ) {
+            couriers.add(iterator.next());
+            iterator.remove();
+        }
+        SQLException failure = null;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            List<Long> hours = hoursByShard.get(shard);
+            List<ItemSales> itemSales = itemsByShard.get(shard);
+            if (hours == null && itemSales == null && (shard != 0 || couriers.isEmpty())) {
+                continue;
+            }
+            try {
+                writeShard(shard, hours, itemSales, shard == 0 ? couriers : null);
+            } catch (SQLException e) {
+                markDirty(hours, itemSales, shard == 0 ? couriers : null);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        evict();
+        CHECKPOINT_LATENCY.stop(start);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeShard(int shard, List<Long> hours, List<ItemSales> itemSales, List<String> couriers) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                writeMerchantHours(connection, hours);
+                writeItems(connection, itemSales);
+                if (couriers != null) {
+                    writeCourierHours(connection, couriers);
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void markDirty(List<Long> hours, List<ItemSales> itemSales, List<String> couriers) {
+        if (hours != null) {
+            dirtyMerchantHours.addAll(hours);
+        }
+        if (itemSales != null) {
+            for (ItemSales sales : itemSales) {
+                dirtyItems.add(sales.itemId);
+            }
+        }
+        if (couriers != null) {
+            dirtyCourierHours.addAll(couriers);
+        }
+    }
+
+    private void writeMerchantHours(Connection connection, List<Long> keys) throws SQLException {
+        if (keys == null) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO sales_hourly (merchant_id, hour, orders, revenue_cents) VALUES (?, ?, ?, ?)")) {
+            for (long key : keys) {
+                Totals bucket = merchantHours.get(key);
+                statement.setInt(1, (int) (key >> 32));
+                statement.setLong(2, key & 0xFFFFFFFFL);
+                statement.setLong(3, bucket.orders.sum());
+                statement.setLong(4, bucket.revenueCents.sum());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void writeItems(Connection connection, List<ItemSales> itemSales) throws SQLException {
+        if (itemSales == null) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO item_sales (item_id, merchant_id, quantity, revenue_cents) VALUES (?, ?, ?, ?)")) {
+            for (ItemSales sales : itemSales) {
+                statement.setInt(1, sales.itemId);
+                statement.setInt(2, sales.merchantId);
+                statement.setLong(3, sales.quantity.sum());
+                statement.setLong(4, sales.revenueCents.sum());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void writeCourierHours(Connection connection, List<String> keys) throws SQLException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO courier_deliveries_hourly (username, hour, deliveries) VALUES (?, ?, ?)")) {
+            for (String key : keys) {
+                int separator = key.indexOf(':');
+                statement.setString(1, key.substring(separator + 1));
+                statement.setLong(2, Long.parseLong(key.substring(0, separator)));
+                statement.setLong(3, courierHours.get(key).sum());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void evict() {
+        long oldest = hourOf(System.currentTimeMillis()) - retentionHours;
+        merchantHours.keySet().removeIf(key -> (key & 0xFFFFFFFFL) < oldest && !dirtyMerchantHours.contains(key));
+        courierHours.keySet().removeIf(key -> Long.parseLong(key.substring(0, key.indexOf(':'))) < oldest && !dirtyCourierHours.contains(key));
+        deliveryHours.keySet().removeIf(hour -> hour < oldest);
+    }
+
+    public void close() {
+        checkpointer.shutdownNow();
+        try {
+            checkpointer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpointQuietly();
+    }
+
+    static final class ItemRank {
+        private final int itemId;
+        private final long quantity;
+        private final long revenueCents;
+
+        ItemRank(int itemId, long quantity, long revenueCents) {
+            this.itemId = itemId;
+            this.quantity = quantity;
+            this.revenueCents = revenueCents;
+        }
+
+        public int getItemId() {
+            return itemId;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public long getRevenueCents() {
+            return revenueCents;
+        }
+    }
+
+    private static final class Totals {
+        private final LongAdder orders = new LongAdder();
+        private final LongAdder revenueCents = new LongAdder();
+
+        void add(long cents) {
+            orders.increment();
+            revenueCents.add(cents);
+        }
+
+        void add(long count, long cents) {
+            orders.add(count);
+            revenueCents.add(cents);
+        }
+
+        long average() {
+            long count = orders.sum();
+            return count == 0 ? 0 : Math.round((double) revenueCents.sum() / count);
+        }
+    }
+
+    private static final class ItemSales {
+        private final int itemId;
+        private final int merchantId;
+        private final LongAdder quantity = new LongAdder();
+        private final LongAdder revenueCents = new LongAdder();
+
+        ItemSales(int itemId, int merchantId) {
+            this.itemId = itemId;
+            this.merchantId = merchantId;
+        }
+    }
+}
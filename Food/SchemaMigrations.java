@@ -0,0 +1,233 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class SchemaMigrations {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    interface Step {
+        void apply(Statement statement) throws SQLException;
+    }
+
+    static final class Migration {
+        private final int version;
+        private final String description;
+        private final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private static final Migration[] MIGRATIONS = {
+            new Migration(1, "Create users table", statement ->
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS users (username TEXT UNIQUE PRIMARY KEY, password TEXT, role TEXT, is_online INTEGER, is_available INTEGER)")),
+            new Migration(2, "Normalize items table", SchemaMigrations::createItems),
+            new Migration(3, "Normalize orders into orders and order_lines", SchemaMigrations::createOrders),
+            new Migration(4, "Index users by role and presence, orders by status and time", statement -> {
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_users_role_presence ON users (role, is_online, is_available)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_status_created_at ON orders (status, created_at)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_created_at ON orders (created_at)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_order_lines_order_id ON order_lines (order_id)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_order_lines_item_id ON order_lines (item_id)");
+            }),
+            new Migration(5, "Support keyset pagination of users by role and orders by time", statement -> {
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_users_role_username ON users (role, username)");
+                statement.executeUpdate("UPDATE orders SET created_at = 0 WHERE created_at IS NULL");
+            }),
+            new Migration(6, "Partition menus and orders by merchant", SchemaMigrations::addMerchants),
+            new Migration(7, "Store delivery addresses on orders", SchemaMigrations::addDeliveryAddresses),
+            new Migration(8, "Checkpoint sales and delivery analytics", SchemaMigrations::createAnalytics),
+            new Migration(9, "Remember checkout idempotency keys", statement ->
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS checkout_requests (idempotency_key TEXT PRIMARY KEY, "
+                            + "order_id INTEGER NOT NULL REFERENCES orders(id) ON DELETE CASCADE, created_at INTEGER NOT NULL)")),
+            new Migration(10, "Index checkout idempotency keys by time", statement ->
+                    statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_checkout_requests_created_at ON checkout_requests (created_at)"))
+    };
+
+    private static final Set<ConnectionPool> migrated = Collections.newSetFromMap(new WeakHashMap<>());
+
+    public static synchronized void apply(ConnectionPool connectionPool) {
+        if (migrated.contains(connectionPool)) {
+            return;
+        }
+        try (Connection connection = connectionPool.getConnection()) {
+            migrate(connection);
+            migrated.add(connectionPool);
+        } catch (SQLException e) {
+            logger.error("Error migrating the database schema", e);
+        }
+    }
+
+    public static int getLatestVersion() {
+        return MIGRATIONS[MIGRATIONS.length - 1].getVersion();
+    }
+
+    static void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, description TEXT, applied_at INTEGER)");
+        }
+        int current = currentVersion(connection);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.getVersion() > current) {
+                run(connection, migration);
+            }
+        }
+    }
+
+    static int currentVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static void run(Connection connection, Migration migration) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA foreign_keys=OFF");
+            connection.setAutoCommit(false);
+            try {
+                if (currentVersion(connection) < migration.getVersion()) {
+                    migration.step.apply(statement);
+                    try (ResultSet violations = statement.executeQuery("PRAGMA foreign_key_check")) {
+                        if (violations.next()) {
+                            throw new SQLException("Migration " + migration.getVersion() + " left a foreign key violation in " + violations.getString(1));
+                        }
+                    }
+                    try (PreparedStatement record = connection.prepareStatement("INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)")) {
+                        record.setInt(1, migration.getVersion());
+                        record.setString(2, migration.getDescription());
+                        record.setLong(3, System.currentTimeMillis());
+                        record.executeUpdate();
+                    }
+                    logger.info("Applied schema migration {}: {}", migration.getVersion(), migration.getDescription());
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+                statement.execute("PRAGMA foreign_keys=ON");
+            }
+        }
+    }
+
+    private static void createItems(Statement statement) throws SQLException {
+        Set<String> columns = columns(statement, "items");
+        String create = "CREATE TABLE %s (id INTEGER PRIMARY KEY, name TEXT NOT NULL, price REAL NOT NULL)";
+        if (columns.isEmpty()) {
+            statement.executeUpdate(String.format(create, "items"));
+            return;
+        }
+        statement.executeUpdate(String.format(create, "items_new"));
+        statement.executeUpdate("INSERT INTO items_new (id, name, price) SELECT id, COALESCE(name, ''), COALESCE(price, 0) FROM items");
+        statement.executeUpdate("DROP TABLE items");
+        statement.executeUpdate("ALTER TABLE items_new RENAME TO items");
+    }
+
+    private static void createOrders(Statement statement) throws SQLException {
+        Set<String> orderColumns = columns(statement, "orders");
+        Set<String> lineColumns = columns(statement, "order_lines");
+        statement.executeUpdate("CREATE TABLE orders_new (id INTEGER PRIMARY KEY, status TEXT NOT NULL DEFAULT 'PLACED', total REAL, created_at INTEGER)");
+        statement.executeUpdate("CREATE TABLE order_lines_new (id INTEGER PRIMARY KEY, "
+                + "order_id INTEGER NOT NULL REFERENCES orders(id) ON DELETE CASCADE, "
+                + "item_id INTEGER REFERENCES items(id), item_name TEXT, quantity INTEGER NOT NULL, unit_price REAL)");
+        if (!orderColumns.isEmpty()) {
+            statement.executeUpdate("INSERT INTO orders_new (id, status, total, created_at) SELECT id, "
+                    + (orderColumns.contains("status") ? "COALESCE(status, 'PLACED')" : "'PLACED'") + ", "
+                    + (orderColumns.contains("total") ? "total" : "NULL") + ", "
+                    + (orderColumns.contains("created_at") ? "created_at" : "NULL") + " FROM orders");
+        }
+        if (!lineColumns.isEmpty()) {
+            statement.executeUpdate("INSERT INTO order_lines_new (id, order_id, item_id, item_name, quantity, unit_price) "
+                    + "SELECT l.id, l.order_id, (SELECT i.id FROM items i WHERE i.id = l.item_id), l.item_name, COALESCE(l.quantity, 0), l.unit_price "
+                    + "FROM order_lines l WHERE l.order_id IN (SELECT id FROM orders_new)");
+        }
+        if (orderColumns.contains("item_name")) {
+            statement.executeUpdate("INSERT INTO order_lines_new (order_id, item_id, item_name, quantity, unit_price) "
+                    + "SELECT o.id, i.id, o.item_name, COALESCE(o.quantity, 0), i.price FROM orders o "
+                    + "LEFT JOIN items i ON i.id = (SELECT MIN(id) FROM items WHERE name = o.item_name) "
+                    + "WHERE o.item_name IS NOT NULL AND NOT EXISTS (SELECT 1 FROM order_lines_new l WHERE l.order_id = o.id)");
+            statement.executeUpdate("UPDATE orders_new SET total = (SELECT SUM(l.quantity * l.unit_price) FROM order_lines_new l WHERE l.order_id = orders_new.id) "
+                    + "WHERE total IS NULL");
+        }
+        if (!lineColumns.isEmpty()) {
+            statement.executeUpdate("DROP TABLE order_lines");
+        }
+        if (!orderColumns.isEmpty()) {
+            statement.executeUpdate("DROP TABLE orders");
+        }
+        statement.executeUpdate("ALTER TABLE orders_new RENAME TO orders");
+        statement.executeUpdate("ALTER TABLE order_lines_new RENAME TO order_lines");
+    }
+
+    private static void addMerchants(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS merchants (id INTEGER PRIMARY KEY, username TEXT NOT NULL UNIQUE, shard INTEGER NOT NULL, created_at INTEGER)");
+        if (!columns(statement, "items").contains("merchant_id")) {
+            statement.executeUpdate("ALTER TABLE items ADD COLUMN merchant_id INTEGER NOT NULL DEFAULT 0");
+        }
+        if (!columns(statement, "orders").contains("merchant_id")) {
+            statement.executeUpdate("ALTER TABLE orders ADD COLUMN merchant_id INTEGER NOT NULL DEFAULT 0");
+        }
+        statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_items_merchant_id ON items (merchant_id)");
+        statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_merchant_created_at ON orders (merchant_id, created_at)");
+    }
+
+    private static void addDeliveryAddresses(Statement statement) throws SQLException {
+        Set<String> orderColumns = columns(statement, "orders");
+        if (!orderColumns.contains("delivery_address")) {
+            statement.executeUpdate("ALTER TABLE orders ADD COLUMN delivery_address TEXT");
+        }
+        if (!orderColumns.contains("delivery_lat")) {
+            statement.executeUpdate("ALTER TABLE orders ADD COLUMN delivery_lat REAL");
+        }
+        if (!orderColumns.contains("delivery_lon")) {
+            statement.executeUpdate("ALTER TABLE orders ADD COLUMN delivery_lon REAL");
+        }
+    }
+
+    private static void createAnalytics(Statement statement) throws SQLException {
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS sales_hourly (merchant_id INTEGER NOT NULL, hour INTEGER NOT NULL, "
+                + "orders INTEGER NOT NULL, revenue_cents INTEGER NOT NULL, PRIMARY KEY (merchant_id, hour))");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS item_sales (item_id INTEGER PRIMARY KEY, merchant_id INTEGER NOT NULL, "
+                + "quantity INTEGER NOT NULL, revenue_cents INTEGER NOT NULL)");
+        statement.executeUpdate("CREATE TABLE IF NOT EXISTS courier_deliveries_hourly (username TEXT NOT NULL, hour INTEGER NOT NULL, "
+                + "deliveries INTEGER NOT NULL, PRIMARY KEY (username, hour))");
+        statement.executeUpdate("INSERT OR REPLACE INTO sales_hourly (merchant_id, hour, orders, revenue_cents) "
+                + "SELECT merchant_id, created_at / " + SalesAnalytics.HOUR_MILLIS + ", COUNT(*), CAST(ROUND(COALESCE(SUM(COALESCE(total, "
+                + "(SELECT SUM(l.quantity * l.unit_price) FROM order_lines l WHERE l.order_id = o.id))), 0) * 100) AS INTEGER) "
+                + "FROM orders o GROUP BY merchant_id, created_at / " + SalesAnalytics.HOUR_MILLIS);
+        statement.executeUpdate("INSERT OR REPLACE INTO item_sales (item_id, merchant_id, quantity, revenue_cents) "
+                + "SELECT l.item_id, MAX(o.merchant_id), SUM(l.quantity), CAST(ROUND(COALESCE(SUM(l.quantity * l.unit_price), 0) * 100) AS INTEGER) "
+                + "FROM order_lines l JOIN orders o ON o.id = l.order_id WHERE l.item_id IS NOT NULL GROUP BY l.item_id");
+    }
+
+    private static Set<String> columns(Statement statement, String table) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("name"));
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,287 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class ShardRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRouter.class);
+    static final int MAX_SHARDS = 127;
+    private static final int SHARD_ID_BITS = 24;
+
+    interface ShardTask<T> {
+        T run(int shard, ConnectionPool pool) throws SQLException;
+    }
+
+    private static ShardRouter instance;
+
+    private final ConnectionPool[] shards;
+    private final long[] ringHashes;
+    private final int[] ringShards;
+    private final ExecutorService workers;
+    private final Map<Integer, Merchant> merchantsById = new ConcurrentHashMap<>();
+    private final Map<String, Merchant> merchantsByUsername = new ConcurrentHashMap<>();
+
+    public static synchronized ShardRouter getInstance() {
+        if (instance == null) {
+            instance = new ShardRouter(ConnectionPool.getInstance(), Integer.getInteger("food.shards", 1),
+                    System.getProperty("food.shards.urlPattern", "jdbc:sqlite:database-shard%d.db"),
+                    Integer.getInteger("food.db.poolSize", 8), Integer.getInteger("food.db.minIdle", 2));
+        }
+        return instance;
+    }
+
+    public ShardRouter(ConnectionPool directory) {
+        this(directory, 1, null, 0, 0);
+    }
+
+    public ShardRouter(ConnectionPool directory, int shardCount, String urlPattern, int poolSize, int minIdle) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS + ", got " + shardCount);
+        }
+        shards = new ConnectionPool[shardCount];
+        shards[0] = directory;
+        for (int shard = 1; shard < shardCount; shard++) {
+            shards[shard] = new ConnectionPool(String.format(urlPattern, shard), poolSize, minIdle);
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            SchemaMigrations.apply(shards[shard]);
+            ConnectionPool pool = shards[shard];
+            Metrics.getInstance().gauge("food_shard_connections_active", "Connections currently leased per shard.",
+                    "shard", Integer.toString(shard), pool::getActiveCount);
+        }
+        int virtualNodes = Math.max(1, Integer.getInteger("food.shards.virtualNodes", 128));
+        ringHashes = new long[shardCount * virtualNodes];
+        ringShards = new int[ringHashes.length];
+        long[] points = new long[ringHashes.length];
+        Integer[] order = new Integer[points.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = mix(((long) (i / virtualNodes + 1) << 32) | (i % virtualNodes));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+        for (int i = 0; i < order.length; i++) {
+            ringHashes[i] = points[order[i]];
+            ringShards[i] = order[i] / virtualNodes;
+        }
+        if (shardCount > 1) {
+            AtomicInteger threads = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(shardCount, runnable -> {
+                Thread thread = new Thread(runnable, "shard-worker-" + threads.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            workers = null;
+        }
+        loadMerchants();
+    }
+
+    private void loadMerchants() {
+        try (Connection connection = shards[0].getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, username, shard FROM merchants")) {
+            while (resultSet.next()) {
+                cache(new Merchant(resultSet.getInt("id"), resultSet.getString("username"), resultSet.getInt("shard")));
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading merchants", e);
+        }
+        for (Merchant merchant : merchantsById.values()) {
+            if (merchant.getShard() >= shards.length) {
+                throw new IllegalStateException("Merchant " + merchant.getUsername() + " lives on shard " + merchant.getShard()
+                        + " but only " + shards.length + " shards are configured");
+            }
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public ConnectionPool getShard(int shard) {
+        return shards[shard];
+    }
+
+    public ConnectionPool poolFor(int merchantId) {
+        return shards[shardOf(merchantId)];
+    }
+
+    public int shardOf(int merchantId) {
+        Merchant merchant = merchantsById.get(merchantId);
+        if (merchant != null) {
+            return merchant.getShard();
+        }
+        return merchantId == Merchant.HOUSE ? 0 : ringShard(merchantId);
+    }
+
+    public static int idBase(int shard) {
+        return shard << SHARD_ID_BITS;
+    }
+
+    public static int lastId(int shard) {
+        return idBase(shard) + (1 << SHARD_ID_BITS) - 1;
+    }
+
+    public static int shardOfOrder(int orderId) {
+        return orderId >>> SHARD_ID_BITS;
+    }
+
+    int ringShard(int merchantId) {
+        long hash = mix(merchantId);
+        int index = Arrays.binarySearch(ringHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return ringShards[index == ringHashes.length ? 0 : index];
+    }
+
+    public Merchant getMerchant(int id) {
+        return merchantsById.get(id);
+    }
+
+    public List<Merchant> getMerchants() {
+        return new ArrayList<>(merchantsById.values());
+    }
+
+    public Merchant merchant(String username) throws SQLException {
+        Merchant merchant = merchantsByUsername.get(username);
+        return merchant != null ? merchant : register(username);
+    }
+
+    private synchronized Merchant register(String username) throws SQLException {
+        Merchant merchant = merchantsByUsername.get(username);
+        if (merchant != null) {
+            return merchant;
+        }
+        try (Connection connection = shards[0].getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                int id;
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO merchants (username, shard, created_at) VALUES (?, 0, ?)",
+                        Statement.RETURN_GENERATED_KEYS)) {
+                    insert.setString(1, username);
+                    insert.setLong(2, System.currentTimeMillis());
+                    insert.executeUpdate();
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        keys.next();
+                        id = keys.getInt(1);
+                    }
+                }
+                int shard = ringShard(id);
+                try (PreparedStatement update = connection.prepareStatement("UPDATE merchants SET shard = ? WHERE id = ?")) {
+                    update.setInt(1, shard);
+                    update.setInt(2, id);
+                    update.executeUpdate();
+                }
+                connection.commit();
+                merchant = new Merchant(id, username, shard);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        cache(merchant);
+        logger.info("Registered merchant {} (id {}) on shard {}", username, merchant.getId(), merchant.getShard());
+        return merchant;
+    }
+
+    private void cache(Merchant merchant) {
+        merchantsById.put(merchant.getId(), merchant);
+        merchantsByUsername.put(merchant.getUsername(), merchant);
+    }
+
+    public <T> List<T> fanOut(ShardTask<T> task) throws SQLException {
+        int[] all = new int[shards.length];
+        for (int shard = 0; shard < all.length; shard++) {
+            all[shard] = shard;
+        }
+        return fanOut(all, task);
+    }
+
+    public <T> List<T> fanOut(int[] targets, ShardTask<T> task) throws SQLException {
+        List<T> results = new ArrayList<>(targets.length);
+        if (targets.length == 1 || workers == null) {
+            for (int shard : targets) {
+                results.add(task.run(shard, shards[shard]));
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(targets.length);
+        for (int shard : targets) {
+            futures.add(workers.submit(() -> task.run(shard, shards[shard])));
+        }
+        SQLException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for shard " + targets[i], e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                SQLException error = cause instanceof SQLException ? (SQLException) cause
+                        : new SQLException("Shard " + targets[i] + " failed", cause);
+                if (failure == null) {
+                    failure = error;
+                } else {
+                    failure.addSuppressed(error);
+                }
+                results.add(null);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    public long getBusyCount() {
+        long busy = 0;
+        for (ConnectionPool shard : shards) {
+            busy += shard.getBusyCount();
+        }
+        return busy;
+    }
+
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (int shard = 0; shard < shards.length; shard++) {
+            stats.append(shard == 0 ? "" : "; ").append("shard ").append(shard).append(": ").append(shards[shard].getStats());
+        }
+        return stats.toString();
+    }
+
+    public void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        for (int shard = 1; shard < shards.length; shard++) {
+            shards[shard].close();
+        }
+    }
+
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
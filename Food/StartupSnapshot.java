@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class StartupSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(StartupSnapshot.class);
+
+    private static final int MAGIC = 0x464F5753;
+    private static final int VERSION = 1;
+    private static final int TRAILER_BYTES = 7 * 4;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final long createdAt;
+    private final int userCount;
+    private final int userIndex;
+    private final int itemCount;
+    private final int itemsOffset;
+    private final int presenceCount;
+    private final int presenceOffset;
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("food.startup.snapshot");
+    }
+
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("food.startup.snapshotPath", "database.snapshot"));
+    }
+
+    static String describeSource(ShardRouter shardRouter) {
+        StringJoiner source = new StringJoiner(" ");
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            source.add(shardRouter.getShard(shard).getUrl());
+        }
+        return source.toString();
+    }
+
+    public static StartupSnapshot open(Path path, String source) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < 16 + TRAILER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                logger.warn("Ignoring startup snapshot {} of {} bytes", path, channel.size());
+                return null;
+            }
+            StartupSnapshot snapshot = new StartupSnapshot(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            String written = snapshot.getString(16);
+            if (!written.equals(source)) {
+                logger.warn("Ignoring startup snapshot {} written for {}", path, written);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable startup snapshot {}", path, e);
+            return null;
+        }
+    }
+
+    private StartupSnapshot(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        int trailer = buffer.limit() - TRAILER_BYTES;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(buffer.limit() - 4) != MAGIC) {
+            throw new IOException(path + " is not a startup snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(path + " has snapshot version " + buffer.getInt(4));
+        }
+        createdAt = buffer.getLong(8);
+        userCount = buffer.getInt(trailer);
+        userIndex = buffer.getInt(trailer + 4);
+        itemCount = buffer.getInt(trailer + 8);
+        itemsOffset = buffer.getInt(trailer + 12);
+        presenceCount = buffer.getInt(trailer + 16);
+        presenceOffset = buffer.getInt(trailer + 20);
+        if (userIndex < 0 || (long) userIndex + userCount * 4L > trailer || itemsOffset < 0 || itemsOffset > trailer
+                || presenceOffset < 0 || presenceOffset > trailer) {
+            throw new IOException(path + " has a damaged trailer");
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public User findUser(String username) {
+        byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = userCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = buffer.getInt(userIndex + middle * 4);
+            int length = Short.toUnsignedInt(buffer.getShort(offset));
+            byte[] name = new byte[length];
+            buffer.get(offset + 2, name);
+            int comparison = Arrays.compareUnsigned(name, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                int password = offset + 2 + length;
+                int role = password + 2 + Short.toUnsignedInt(buffer.getShort(password));
+                return new User(username, getString(password), getString(role));
+            }
+        }
+        return null;
+    }
+
+    public List<FoodItem> getItems() {
+        List<FoodItem> items = new ArrayList<>(itemCount);
+        int offset = itemsOffset;
+        for (int i = 0; i < itemCount; i++) {
+            String name = getString(offset + 24);
+            items.add(new FoodItem(buffer.getInt(offset), buffer.getInt(offset + 4), name, buffer.getDouble(offset + 8)));
+            offset += 24 + 2 + Short.toUnsignedInt(buffer.getShort(offset + 24));
+        }
+        return items;
+    }
+
+    public Map<Integer, Long> getSales() {
+        Map<Integer, Long> sales = new HashMap<>();
+        int offset = itemsOffset;
+        for (int i = 0; i < itemCount; i++) {
+            long sold = buffer.getLong(offset + 16);
+            if (sold > 0) {
+                sales.put(buffer.getInt(offset), sold);
+            }
+            offset += 24 + 2 + Short.toUnsignedInt(buffer.getShort(offset + 24));
+        }
+        return sales;
+    }
+
+    public int restorePresence(CourierPresence courierPresence) {
+        int offset = presenceOffset;
+        for (int i = 0; i < presenceCount; i++) {
+            String username = getString(offset);
+            offset += 2 + Short.toUnsignedInt(buffer.getShort(offset));
+            courierPresence.restore(username, buffer.getLong(offset));
+            offset += 8;
+        }
+        return presenceCount;
+    }
+
+    private String getString(int offset) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(offset))];
+        buffer.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void write(Path path, String source, Collection<User> users, MenuCatalog menuCatalog,
+                             CourierPresence courierPresence) throws IOException {
+        byte[][][] userRecords = new byte[users.size()][][];
+        int count = 0;
+        for (User user : users) {
+            userRecords[count++] = new byte[][]{bytes(user.getUsername()), bytes(user.getPassword()), bytes(user.getRole())};
+        }
+        Arrays.sort(userRecords, (a, b) -> Arrays.compareUnsigned(a[0], b[0]));
+        List<FoodItem> items = menuCatalog.snapshot().getItems();
+        byte[][] itemNames = new byte[items.size()][];
+        Map<String, Long> states = courierPresence.getStates();
+        byte[] sourceBytes = bytes(source);
+
+        int size = 16 + 2 + sourceBytes.length + userRecords.length * 4 + TRAILER_BYTES;
+        for (byte[][] record : userRecords) {
+            size += 6 + record[0].length + record[1].length + record[2].length;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            itemNames[i] = bytes(items.get(i).getName());
+            size += 24 + 2 + itemNames[i].length;
+        }
+        List<byte[]> courierNames = new ArrayList<>(states.size());
+        List<Long> courierStates = new ArrayList<>(states.size());
+        for (Map.Entry<String, Long> entry : states.entrySet()) {
+            byte[] name = bytes(entry.getKey());
+            courierNames.add(name);
+            courierStates.add(entry.getValue());
+            size += 2 + name.length + 8;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(System.currentTimeMillis());
+        putBytes(buffer, sourceBytes);
+        int[] userOffsets = new int[userRecords.length];
+        for (int i = 0; i < userRecords.length; i++) {
+            userOffsets[i] = buffer.position();
+            putBytes(buffer, userRecords[i][0]);
+            putBytes(buffer, userRecords[i][1]);
+            putBytes(buffer, userRecords[i][2]);
+        }
+        int userIndex = buffer.position();
+        for (int offset : userOffsets) {
+            buffer.putInt(offset);
+        }
+        int itemsOffset = buffer.position();
+        for (int i = 0; i < items.size(); i++) {
+            FoodItem item = items.get(i);
+            buffer.putInt(item.getId());
+            buffer.putInt(item.getMerchantId());
+            buffer.putDouble(item.getPrice());
+            buffer.putLong(menuCatalog.getPopularity(item.getId()));
+            putBytes(buffer, itemNames[i]);
+        }
+        int presenceOffset = buffer.position();
+        for (int i = 0; i < courierNames.size(); i++) {
+            putBytes(buffer, courierNames.get(i));
+            buffer.putLong(courierStates.get(i));
+        }
+        buffer.putInt(userRecords.length);
+        buffer.putInt(userIndex);
+        buffer.putInt(items.size());
+        buffer.putInt(itemsOffset);
+        buffer.putInt(courierNames.size());
+        buffer.putInt(presenceOffset);
+        buffer.putInt(MAGIC);
+        buffer.flip();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 0xFFFF ? bytes : Arrays.copyOf(bytes, 0xFFFF);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+}
@@ -0,0 +1,112 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class UserCache {
+    interface Loader {
+        User load(String username) throws SQLException;
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserCache(int maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    }
+
+    public User get(String username, Loader loader) throws SQLException {
+        Segment segment = segmentFor(username);
+        long now = System.nanoTime();
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(username);
+        }
+        if (entry != null && entry.expiresAt - now > 0) {
+            if (entry.user == null) {
+                negativeHits.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return entry.user;
+        }
+        misses.incrementAndGet();
+        User user = loader.load(username);
+        long expiresAt = System.nanoTime() + (user == null ? negativeTtlNanos : ttlNanos);
+        synchronized (segment) {
+            segment.put(username, new Entry(user, expiresAt));
+        }
+        return user;
+    }
+
+    public void put(User user) {
+        Segment segment = segmentFor(user.getUsername());
+        synchronized (segment) {
+            segment.put(user.getUsername(), new Entry(user, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    public void invalidate(String username) {
+        Segment segment = segmentFor(username);
+        synchronized (segment) {
+            segment.remove(username);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public String getStats() {
+        return String.format("size=%d, hits=%d, negativeHits=%d, misses=%d", size(), hits.get(), negativeHits.get(), misses.get());
+    }
+
+    private Segment segmentFor(String username) {
+        int hash = username.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry {
+        private final User user;
+        private final long expiresAt;
+
+        Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
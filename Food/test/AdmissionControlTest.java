@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AdmissionControlTest {
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private AdmissionControl admissionControl;
+
+    @BeforeEach
+    void setUp() {
+        admissionControl = new AdmissionControl(new AdmissionControl.AdaptiveLimiter(10, 2, 20, 100, 0.5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        admissionControl.close();
+    }
+
+    @Test
+    void allowsABurstThenRejects() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admissionControl.admit(AdmissionControl.Operation.LOGIN, "burst", null));
+        }
+        assertFalse(admissionControl.admit(AdmissionControl.Operation.LOGIN, "burst", null));
+        assertTrue(admissionControl.admit(AdmissionControl.Operation.LOGIN, "someone-else", null));
+    }
+
+    @Test
+    void limitsEachAddress() {
+        for (int i = 0; i < 20; i++) {
+            assertTrue(admissionControl.admit(AdmissionControl.Operation.SIGNUP, null, "10.0.0.1"));
+        }
+        assertFalse(admissionControl.admit(AdmissionControl.Operation.SIGNUP, null, "10.0.0.1"));
+        assertTrue(admissionControl.admit(AdmissionControl.Operation.SIGNUP, null, "10.0.0.2"));
+    }
+
+    @Test
+    void zeroRateDisablesTheBucket() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(admissionControl.admit(AdmissionControl.Operation.SIGNUP, "unlimited", null));
+        }
+    }
+
+    @Test
+    void checkThrowsWithTheOperation() {
+        for (int i = 0; i < 10; i++) {
+            admissionControl.check(AdmissionControl.Operation.CHECKOUT, "checker", null);
+        }
+        AdmissionControl.RateLimitedException e = assertThrows(AdmissionControl.RateLimitedException.class,
+                () -> admissionControl.check(AdmissionControl.Operation.CHECKOUT, "checker", null));
+        assertEquals(AdmissionControl.Operation.CHECKOUT, e.getOperation());
+    }
+
+    @Test
+    void limiterRejectsOverTheLimit() {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        limiter.release();
+        assertTrue(limiter.tryAcquire());
+        assertEquals(10, limiter.getInFlight());
+    }
+
+    @Test
+    void slowWritesShrinkTheLimitDownToTheMinimum() {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        long start = System.nanoTime();
+        limiter.onLatency(start, SLOW);
+        assertEquals(5, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            start += SLOW;
+            limiter.onLatency(start, SLOW);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void overlappingSlowWritesCutTheLimitOnce() {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            limiter.onLatency(start + i, SLOW);
+        }
+        assertEquals(5, limiter.getLimit());
+        limiter.onLatency(start + SLOW - 1, SLOW);
+        assertEquals(5, limiter.getLimit());
+        limiter.onLatency(start + SLOW, SLOW);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void fastWritesGrowTheLimitByAboutOnePerWindowOnlyWhenBusy() {
+        AdmissionControl.AdaptiveLimiter limiter = admissionControl.getLimiter();
+        for (int i = 0; i < 20; i++) {
+            limiter.onLatency(System.nanoTime(), FAST);
+        }
+        assertEquals(10, limiter.getLimit());
+
+        for (int i = 0; i < 6; i++) {
+            limiter.tryAcquire();
+        }
+        for (int i = 0; i < 11; i++) {
+            limiter.onLatency(System.nanoTime(), FAST);
+        }
+        assertEquals(11, limiter.getLimit());
+    }
+
+    @Test
+    void growthStopsAtTheMaximum() {
+        AdmissionControl.AdaptiveLimiter limiter = new AdmissionControl.AdaptiveLimiter(18, 2, 20, 100, 0.5);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+        }
+        for (int i = 0; i < 1000; i++) {
+            limiter.onLatency(System.nanoTime(), FAST);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class BatchDispatcherTest {
+    @Test
+    void beatsGreedyAssignment() {
+        double[][] cost = {
+                {1, 2},
+                {2, 100}
+        };
+        assertArrayEquals(new int[] {1, 0}, BatchDispatcher.solve(cost, 2));
+    }
+
+    @Test
+    void matchesBruteForceOnRandomProblems() {
+        Random random = new Random(42);
+        for (int trial = 0; trial < 200; trial++) {
+            int rows = 1 + random.nextInt(5);
+            int columns = rows + random.nextInt(3);
+            double[][] cost = new double[rows][columns];
+            for (double[] row : cost) {
+                for (int j = 0; j < columns; j++) {
+                    row[j] = random.nextInt(50) / 4.0;
+                }
+            }
+            int[] assignment = BatchDispatcher.solve(cost, columns);
+            Set<Integer> taken = new HashSet<>();
+            double total = 0;
+            for (int row = 0; row < rows; row++) {
+                assertTrue(assignment[row] >= 0);
+                assertTrue(taken.add(assignment[row]));
+                total += cost[row][assignment[row]];
+            }
+            assertEquals(bruteForce(cost, 0, new boolean[columns]), total, 1e-9);
+        }
+    }
+
+    @Test
+    void leavesOrdersUnassignedWhenCouriersRunOut() {
+        double[][] cost = {
+                {3, 9},
+                {1, 8},
+                {2, 1}
+        };
+        int[] assignment = BatchDispatcher.solve(cost, 2);
+        assertArrayEquals(new int[] {-1, 0, 1}, assignment);
+    }
+
+    @Test
+    void neverUsesAMissingEdge() {
+        double[][] cost = {
+                {1e9, 5},
+                {1e9, 1}
+        };
+        int[] assignment = BatchDispatcher.solve(cost, 2);
+        assertEquals(-1, assignment[0]);
+        assertEquals(1, assignment[1]);
+    }
+
+    @Test
+    void handlesAnEmptyBatch() {
+        assertEquals(0, BatchDispatcher.solve(new double[0][0], 0).length);
+    }
+
+    private static double bruteForce(double[][] cost, int row, boolean[] used) {
+        if (row == cost.length) {
+            return 0;
+        }
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < used.length; j++) {
+            if (!used[j]) {
+                used[j] = true;
+                best = Math.min(best, cost[row][j] + bruteForce(cost, row + 1, used));
+                used[j] = false;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,205 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CheckoutPipelineTest {
+    private static final AtomicInteger ids = new AtomicInteger(1_000_000);
+
+    @TempDir
+    Path directory;
+
+    private MenuCatalog menuCatalog;
+    private FoodItem soup;
+    private CheckoutPipeline pipeline;
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private final Set<Order> saved = ConcurrentHashMap.newKeySet();
+    private final Set<Order> poisoned = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        menuCatalog = new MenuCatalog(new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1));
+        soup = menuCatalog.addItem(new FoodItem(0, 7, "Soup", 4.5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    private Order newOrder() {
+        Order order = new Order();
+        order.addItem(soup, 1);
+        return order;
+    }
+
+    // Saves orders one by one like a transaction that fails part way, so earlier orders keep their ids
+    private void persist(List<Order> orders) throws SQLException {
+        batchSizes.add(orders.size());
+        for (Order order : orders) {
+            if (poisoned.contains(order)) {
+                throw new SQLException("constraint failed");
+            }
+        }
+        for (Order order : orders) {
+            assertTrue(saved.add(order), "order saved twice");
+            order.setId(ids.incrementAndGet());
+        }
+    }
+
+    private static FoodOrderingService.CheckoutStatus status(CompletableFuture<FoodOrderingService.CheckoutResult> future) {
+        return future.orTimeout(10, TimeUnit.SECONDS).join().getStatus();
+    }
+
+    @Test
+    void placesOrdersInBatches() {
+        CountDownLatch gate = new CountDownLatch(1);
+        pipeline = new CheckoutPipeline(menuCatalog, orders -> {
+            awaitQuietly(gate);
+            persist(orders);
+        }, 64, 1, 16, 1000);
+        List<CompletableFuture<FoodOrderingService.CheckoutResult>> results = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            results.add(pipeline.submit(newOrder()));
+        }
+        gate.countDown();
+        for (CompletableFuture<FoodOrderingService.CheckoutResult> result : results) {
+            assertEquals(FoodOrderingService.CheckoutStatus.PLACED, status(result));
+            assertEquals(OrderStatus.PLACED, result.join().getOrder().getStatus());
+        }
+        assertEquals(40, saved.size());
+        assertTrue(batchSizes.stream().anyMatch(size -> size > 1));
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 16));
+    }
+
+    @Test
+    void failingOrderIsIsolatedFromItsBatch() {
+        CountDownLatch gate = new CountDownLatch(1);
+        pipeline = new CheckoutPipeline(menuCatalog, orders -> {
+            awaitQuietly(gate);
+            persist(orders);
+        }, 64, 1, 16, 1000);
+        List<CompletableFuture<FoodOrderingService.CheckoutResult>> results = new ArrayList<>();
+        Order bad = newOrder();
+        poisoned.add(bad);
+        for (int i = 0; i < 8; i++) {
+            results.add(pipeline.submit(i == 5 ? bad : newOrder()));
+        }
+        gate.countDown();
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i == 5 ? FoodOrderingService.CheckoutStatus.FAILED : FoodOrderingService.CheckoutStatus.PLACED, status(results.get(i)));
+        }
+        assertEquals(7, saved.size());
+    }
+
+    @Test
+    void ordersSavedBeforeAFailureAreNotSavedAgain() {
+        Order first = newOrder();
+        Order second = newOrder();
+        AtomicReference<Order> savedBeforeFailure = new AtomicReference<>();
+        CountDownLatch gate = new CountDownLatch(1);
+        pipeline = new CheckoutPipeline(menuCatalog, orders -> {
+            awaitQuietly(gate);
+            if (savedBeforeFailure.compareAndSet(null, orders.get(0))) {
+                orders.get(0).setId(ids.incrementAndGet());
+                throw new SQLException("commit failed after the first order");
+            }
+            persist(orders);
+        }, 64, 1, 16, 1000);
+        CompletableFuture<FoodOrderingService.CheckoutResult> firstResult = pipeline.submit(first);
+        CompletableFuture<FoodOrderingService.CheckoutResult> secondResult = pipeline.submit(second);
+        gate.countDown();
+        assertEquals(FoodOrderingService.CheckoutStatus.PLACED, status(firstResult));
+        assertEquals(FoodOrderingService.CheckoutStatus.PLACED, status(secondResult));
+        assertSame(first, savedBeforeFailure.get());
+        assertEquals(Set.of(second), saved);
+    }
+
+    @Test
+    void fullStagesAnswerBusy() {
+        CountDownLatch gate = new CountDownLatch(1);
+        pipeline = new CheckoutPipeline(menuCatalog, orders -> {
+            awaitQuietly(gate);
+            persist(orders);
+        }, 1, 1, 1, 0);
+        List<CompletableFuture<FoodOrderingService.CheckoutResult>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            results.add(pipeline.submit(newOrder()));
+        }
+        int busy = 0;
+        for (CompletableFuture<FoodOrderingService.CheckoutResult> result : results) {
+            if (result.isDone() && result.join().getStatus() == FoodOrderingService.CheckoutStatus.BUSY) {
+                busy++;
+            }
+        }
+        assertTrue(busy > 0, "no checkout was rejected while the writer was blocked");
+        assertTrue(pipeline.getQueueDepth() <= 4);
+        gate.countDown();
+        int placed = 0;
+        int rejected = 0;
+        for (CompletableFuture<FoodOrderingService.CheckoutResult> result : results) {
+            FoodOrderingService.CheckoutStatus status = status(result);
+            if (status == FoodOrderingService.CheckoutStatus.PLACED) {
+                placed++;
+            } else if (status == FoodOrderingService.CheckoutStatus.BUSY) {
+                rejected++;
+            }
+        }
+        assertEquals(saved.size(), placed);
+        assertEquals(50, placed + rejected);
+    }
+
+    @Test
+    void duplicatesAnswerWithTheOriginalOrder() {
+        Order original = newOrder();
+        original.setId(42);
+        pipeline = new CheckoutPipeline(menuCatalog, orders -> orders.forEach(order -> order.setDuplicateOf(original)), 64, 1, 16, 1000);
+        Order retry = newOrder();
+        FoodOrderingService.CheckoutResult result = pipeline.submit(retry).orTimeout(10, TimeUnit.SECONDS).join();
+        assertEquals(FoodOrderingService.CheckoutStatus.PLACED, result.getStatus());
+        assertSame(original, result.getOrder());
+        assertEquals(OrderStatus.NEW, retry.getStatus());
+    }
+
+    @Test
+    void rejectsEmptyCartsAndPlacedOrders() {
+        pipeline = new CheckoutPipeline(menuCatalog, this::persist, 64, 1, 16, 1000);
+        assertEquals(FoodOrderingService.CheckoutStatus.EMPTY_CART, status(pipeline.submit(new Order())));
+        Order order = newOrder();
+        assertEquals(FoodOrderingService.CheckoutStatus.PLACED, status(pipeline.submit(order)));
+        assertEquals(FoodOrderingService.CheckoutStatus.ALREADY_PLACED, status(pipeline.submit(order)));
+    }
+
+    @Test
+    void closedPipelineFailsCheckouts() {
+        pipeline = new CheckoutPipeline(menuCatalog, this::persist, 64, 1, 16, 1000);
+        pipeline.close();
+        assertEquals(FoodOrderingService.CheckoutStatus.FAILED, status(pipeline.submit(newOrder())));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CourierDispatcherTest {
+    private static DeliveryPerson online(CourierDispatcher dispatcher, String name) {
+        DeliveryPerson deliveryPerson = dispatcher.register(new DeliveryPerson(name));
+        deliveryPerson.setOnline(true);
+        return deliveryPerson;
+    }
+
+    @Test
+    void cancellingReleasesTheCourierWithoutCountingACompletion() {
+        CourierDispatcher dispatcher = new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED);
+        DeliveryPerson courier = online(dispatcher, "courier");
+        Delivery delivery = new Delivery("Order #1", dispatcher);
+        assertTrue(delivery.assignToAvailableDeliveryPerson());
+        assertEquals(1, courier.getActiveDeliveries());
+        assertEquals(0, dispatcher.getAvailableCount());
+
+        delivery.cancel();
+        assertEquals(0, courier.getActiveDeliveries());
+        assertEquals(0, courier.getCompletedDeliveries());
+        assertNull(courier.getAssignedDelivery());
+        assertTrue(courier.isAvailable());
+        assertEquals(List.of(courier), dispatcher.getAvailableCouriers());
+    }
+
+    @Test
+    void fewestCompletedDeliveriesPrefersTheLeastBusyCourier() {
+        CourierDispatcher dispatcher = new CourierDispatcher(DispatchPolicy.FEWEST_COMPLETED_DELIVERIES);
+        DeliveryPerson busy = online(dispatcher, "busy");
+        DeliveryPerson idle = online(dispatcher, "idle");
+        for (int i = 0; i < 2; i++) {
+            Delivery delivery = new Delivery("Order #" + i, dispatcher);
+            assertTrue(delivery.assignTo(busy));
+            delivery.complete();
+        }
+        Delivery delivery = new Delivery("Order #3", dispatcher);
+        assertTrue(delivery.assignTo(idle));
+        delivery.complete();
+
+        assertEquals(List.of(idle, busy), dispatcher.getAvailableCouriers());
+        Delivery next = new Delivery("Order #4", dispatcher);
+        assertTrue(next.assignToAvailableDeliveryPerson());
+        assertSame(idle, next.getAssignedDeliveryPerson());
+    }
+}
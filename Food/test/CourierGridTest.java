@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class CourierGridTest {
+    private static DeliveryPerson courier(String name, double latitude, double longitude) {
+        DeliveryPerson deliveryPerson = new DeliveryPerson(name);
+        deliveryPerson.setLocation(new GeoPoint(latitude, longitude));
+        return deliveryPerson;
+    }
+
+    private static List<String> names(List<DeliveryPerson> couriers) {
+        return couriers.stream().map(DeliveryPerson::getName).collect(Collectors.toList());
+    }
+
+    @Test
+    void rejectsNonPositiveCells() {
+        assertThrows(IllegalArgumentException.class, () -> new CourierGrid(0));
+    }
+
+    @Test
+    void returnsTheNearestFirstWithinTheRadius() {
+        CourierGrid grid = new CourierGrid(0.5);
+        grid.update(courier("near", 51.5010, -0.1200));
+        grid.update(courier("middle", 51.5100, -0.1200));
+        grid.update(courier("far", 51.6000, -0.1200));
+        GeoPoint origin = new GeoPoint(51.5000, -0.1200);
+
+        assertEquals(List.of("near", "middle"), names(grid.nearest(origin, 2, 50)));
+        assertEquals(List.of("near", "middle", "far"), names(grid.nearest(origin, 5, 50)));
+        assertEquals(List.of("near", "middle"), names(grid.nearest(origin, 5, 5)));
+        assertTrue(grid.nearest(new GeoPoint(40.0, -3.7), 3, 5).isEmpty());
+    }
+
+    @Test
+    void movesAndRemovesCouriers() {
+        CourierGrid grid = new CourierGrid(0.5);
+        DeliveryPerson moving = courier("moving", 51.50, -0.12);
+        DeliveryPerson staying = courier("staying", 51.52, -0.12);
+        grid.update(moving);
+        grid.update(staying);
+        assertEquals(2, grid.size());
+
+        moving.setLocation(new GeoPoint(51.60, -0.12));
+        grid.update(moving);
+        assertEquals(2, grid.size());
+        assertEquals(List.of("staying", "moving"), names(grid.nearest(new GeoPoint(51.50, -0.12), 2, 50)));
+
+        moving.setLocation(null);
+        grid.update(moving);
+        assertEquals(1, grid.size());
+        grid.remove(staying);
+        grid.remove(staying);
+        assertEquals(0, grid.size());
+        assertTrue(grid.nearest(new GeoPoint(51.50, -0.12), 2, 50).isEmpty());
+    }
+
+    @Test
+    void wrapsAroundTheAntimeridian() {
+        CourierGrid grid = new CourierGrid(0.5);
+        grid.update(courier("east", -17.80, 179.99));
+        grid.update(courier("west", -17.80, -179.97));
+        grid.update(courier("far", -17.80, 179.50));
+
+        assertEquals(List.of("east", "west"), names(grid.nearest(new GeoPoint(-17.80, -179.995), 3, 5)));
+        assertEquals(List.of("west", "east"), names(grid.nearest(new GeoPoint(-17.80, -179.975), 2, 5)));
+    }
+
+    @Test
+    void matchesBruteForce() {
+        assertMatchesBruteForce(51.35, -0.45, 0.3, 0.45);
+    }
+
+    @Test
+    void matchesBruteForceNearThePole() {
+        assertMatchesBruteForce(89.00, -20, 0.3, 40);
+    }
+
+    @Test
+    void matchesBruteForceAcrossTheAntimeridian() {
+        assertMatchesBruteForce(-17.95, 179.80, 0.3, 0.4);
+    }
+
+    private static double longitude(double value) {
+        return value >= 180 ? value - 360 : value;
+    }
+
+    private static void assertMatchesBruteForce(double south, double west, double height, double width) {
+        Random random = new Random(11);
+        CourierGrid grid = new CourierGrid(0.5);
+        List<DeliveryPerson> couriers = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            DeliveryPerson deliveryPerson = courier("courier" + i, south + random.nextDouble() * height, longitude(west + random.nextDouble() * width));
+            couriers.add(deliveryPerson);
+            grid.update(deliveryPerson);
+        }
+        for (int query = 0; query < 200; query++) {
+            DeliveryPerson moved = couriers.get(random.nextInt(couriers.size()));
+            moved.setLocation(new GeoPoint(south + random.nextDouble() * height, longitude(west + random.nextDouble() * width)));
+            grid.update(moved);
+
+            GeoPoint point = new GeoPoint(south - 0.05 + random.nextDouble() * (height + 0.1),
+                    longitude(west - 0.05 + random.nextDouble() * (width + 0.1)));
+            int k = 1 + random.nextInt(10);
+            double maxKm = 0.5 + random.nextDouble() * 10;
+            List<DeliveryPerson> expected = couriers.stream()
+                    .filter(deliveryPerson -> point.distanceKm(deliveryPerson.getLocation()) <= maxKm)
+                    .sorted(Comparator.comparingDouble(deliveryPerson -> point.distanceKm(deliveryPerson.getLocation())))
+                    .limit(k)
+                    .collect(Collectors.toList());
+            assertEquals(names(expected), names(grid.nearest(point, k, maxKm)));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CourierPresenceTest {
+    @TempDir
+    Path directory;
+
+    private UserManager userManager;
+    private CourierPresence presence;
+
+    @BeforeEach
+    void setUp() {
+        userManager = new UserManager(new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1));
+        presence = new CourierPresence(userManager, new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED), 60_000, 60_000, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        presence.close();
+    }
+
+    private int count(String sql, String username) throws SQLException {
+        try (Connection connection = userManager.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    @Test
+    void flushUpdatesExistingCouriers() throws SQLException {
+        assertTrue(userManager.signUp("courier", "secret", "delivery man"));
+        presence.update("courier", true, true);
+        presence.flush();
+        assertEquals(0, presence.getPendingWrites());
+        assertEquals(1, count("SELECT COUNT(*) FROM users WHERE username = ? AND is_online = 1 AND is_available = 1", "courier"));
+    }
+
+    @Test
+    void flushNeverCreatesAccounts() throws SQLException {
+        assertTrue(userManager.signUp("customer", "secret", "user"));
+        presence.update("ghost", true, true);
+        presence.update("customer", true, true);
+        presence.flush();
+        assertEquals(0, count("SELECT COUNT(*) FROM users WHERE username = ?", "ghost"));
+        assertEquals(0, count("SELECT COUNT(*) FROM users WHERE username = ? AND is_online = 1", "customer"));
+    }
+
+    @Test
+    void forgetDropsStateAndPendingWrite() {
+        presence.update("courier", true, true);
+        presence.forget("courier");
+        assertFalse(presence.isTracked("courier"));
+        assertEquals(0, presence.getPendingWrites());
+    }
+}
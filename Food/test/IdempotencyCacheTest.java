@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class IdempotencyCacheTest {
+    private final Map<Integer, Order> database = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger submits = new AtomicInteger();
+    private boolean databaseDown;
+
+    private Order load(int orderId) throws SQLException {
+        loads.incrementAndGet();
+        if (databaseDown) {
+            throw new SQLException("database is down");
+        }
+        return database.get(orderId);
+    }
+
+    private Function<Order, CompletableFuture<FoodOrderingService.CheckoutResult>> answer(FoodOrderingService.CheckoutStatus status) {
+        return order -> {
+            submits.incrementAndGet();
+            return CompletableFuture.completedFuture(result(status, order));
+        };
+    }
+
+    private static FoodOrderingService.CheckoutResult result(FoodOrderingService.CheckoutStatus status, Order order) {
+        return new FoodOrderingService.CheckoutResult(status, order, Collections.emptyList());
+    }
+
+    private static Order order(int id) {
+        Order order = new Order();
+        order.setId(id);
+        return order;
+    }
+
+    @Test
+    void retriesShareTheFirstResult() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        CompletableFuture<FoodOrderingService.CheckoutResult> pending = new CompletableFuture<>();
+        Order first = new Order();
+        CompletableFuture<FoodOrderingService.CheckoutResult> original = cache.checkout("alice/1", first, order -> {
+            submits.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<FoodOrderingService.CheckoutResult> retry = cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED));
+        assertSame(original, retry);
+        pending.complete(result(FoodOrderingService.CheckoutStatus.PLACED, first));
+        assertSame(first, retry.join().getOrder());
+        assertEquals("alice/1", first.getIdempotencyKey());
+        assertEquals(1, submits.get());
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    void failedCheckoutsCanBeRetried() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        assertEquals(FoodOrderingService.CheckoutStatus.BUSY,
+                cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.BUSY)).join().getStatus());
+        assertEquals(0, cache.size());
+        assertEquals(FoodOrderingService.CheckoutStatus.PLACED,
+                cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getStatus());
+        assertEquals(2, submits.get());
+    }
+
+    @Test
+    void missesNeverGoToTheDatabase() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        for (int i = 0; i < 5; i++) {
+            cache.checkout("alice/" + i, new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join();
+        }
+        assertEquals(0, loads.get());
+        assertEquals(5, submits.get());
+    }
+
+    @Test
+    void warmedKeysLoadTheOriginalOrderOnce() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        Order original = order(7);
+        database.put(7, original);
+        cache.remember("alice/1", 7, System.currentTimeMillis());
+        assertSame(original, cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getOrder());
+        assertSame(original, cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getOrder());
+        assertEquals(1, loads.get());
+        assertEquals(0, submits.get());
+    }
+
+    @Test
+    void warmedKeyOfAMissingOrderPlacesANewOne() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        cache.remember("alice/1", 7, System.currentTimeMillis());
+        Order order = new Order();
+        assertSame(order, cache.checkout("alice/1", order, answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getOrder());
+        assertEquals(1, submits.get());
+    }
+
+    @Test
+    void databaseErrorsFailTheRetryButKeepTheKey() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        Order original = order(7);
+        database.put(7, original);
+        cache.remember("alice/1", 7, System.currentTimeMillis());
+        databaseDown = true;
+        assertEquals(FoodOrderingService.CheckoutStatus.FAILED,
+                cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getStatus());
+        databaseDown = false;
+        assertSame(original, cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join().getOrder());
+        assertEquals(0, submits.get());
+    }
+
+    @Test
+    void keysOlderThanTheTtlAreNotWarmed() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        cache.remember("alice/1", 7, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsTheOldestKey() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 2, 60);
+        long now = System.currentTimeMillis();
+        cache.remember("alice/1", 1, now - 2);
+        cache.remember("alice/2", 2, now - 1);
+        cache.remember("alice/3", 3, now);
+        assertEquals(2, cache.size());
+        cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)).join();
+        assertEquals(0, loads.get());
+        assertEquals(1, submits.get());
+    }
+
+    @Test
+    void keepsTheOriginalFoundByTheOrderWriter() {
+        IdempotencyCache cache = new IdempotencyCache(this::load, 10, 60);
+        Order original = order(7);
+        CompletableFuture<FoodOrderingService.CheckoutResult> first = cache.checkout("alice/1", new Order(),
+                order -> CompletableFuture.completedFuture(result(FoodOrderingService.CheckoutStatus.PLACED, original)));
+        assertSame(original, first.join().getOrder());
+        assertSame(first, cache.checkout("alice/1", new Order(), answer(FoodOrderingService.CheckoutStatus.PLACED)));
+        assertEquals(1, cache.size());
+        assertEquals(0, submits.get());
+    }
+}
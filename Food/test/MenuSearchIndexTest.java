@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class MenuSearchIndexTest {
+    private static final String[] WORDS = {"chicken", "chickpea", "chili", "cheese", "burger", "burrito", "salad", "soup", "spicy", "sweet"};
+
+    private static List<String> names(List<FoodItem> items) {
+        return items.stream().map(FoodItem::getName).collect(Collectors.toList());
+    }
+
+    @Test
+    void tokenizesOnNonWordCharacters() {
+        assertArrayEquals(new String[] {"spicy", "chicken", "2"}, MenuSearchIndex.tokenize("Spicy-Chicken (2) chicken"));
+        assertEquals(0, MenuSearchIndex.tokenize("  ").length);
+    }
+
+    @Test
+    void ranksPrefixMatchesBySales() {
+        MenuSearchIndex index = new MenuSearchIndex(2);
+        Map<Integer, Long> sales = new HashMap<>();
+        sales.put(1, 5L);
+        sales.put(2, 50L);
+        sales.put(3, 20L);
+        List<FoodItem> catalog = List.of(new FoodItem(1, "Chicken Soup", 4), new FoodItem(2, "Chili Burger", 6),
+                new FoodItem(3, "Chickpea Salad", 5), new FoodItem(4, "Sweet Soup", 3));
+        index.addAll(catalog, sales);
+
+        assertEquals(List.of("Chili Burger", "Chickpea Salad", "Chicken Soup"), names(index.search("chi", 10)));
+        assertEquals(List.of("Chicken Soup"), names(index.search("soup chi", 10)));
+        assertEquals(List.of("Chili Burger"), names(index.search("CHI", 1)));
+        assertTrue(index.search("pizza", 10).isEmpty());
+
+        index.recordSale(1, 100);
+        assertEquals(List.of("Chicken Soup", "Chili Burger"), names(index.search("ch", 2)));
+        assertEquals(105, index.getPopularity(1));
+    }
+
+    @Test
+    void readdingAnItemReplacesItsName() {
+        MenuSearchIndex index = new MenuSearchIndex(4);
+        index.add(new FoodItem(1, "Cheese Burger", 5), 3);
+        index.add(new FoodItem(1, "Veggie Burger", 5), 0);
+        assertEquals(1, index.size());
+        assertTrue(index.search("cheese", 10).isEmpty());
+        assertEquals(List.of("Veggie Burger"), names(index.search("burg", 10)));
+        assertEquals(3, index.getPopularity(1));
+    }
+
+    @Test
+    void matchesBruteForceWithTopListsSmallerThanTheResult() {
+        Random random = new Random(7);
+        MenuSearchIndex index = new MenuSearchIndex(3);
+        Map<Integer, String> names = new HashMap<>();
+        Map<Integer, Long> popularity = new HashMap<>();
+        List<FoodItem> catalog = new ArrayList<>();
+        for (int id = 1; id <= 60; id++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+            names.put(id, name);
+            popularity.put(id, (long) random.nextInt(20));
+            catalog.add(new FoodItem(id, name, 1));
+        }
+        index.addAll(catalog, popularity);
+        for (int id = 61; id <= 80; id++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+            names.put(id, name);
+            popularity.put(id, (long) random.nextInt(20));
+            index.add(new FoodItem(id, name, 1), popularity.get(id));
+        }
+        for (int round = 0; round < 300; round++) {
+            int id = 1 + random.nextInt(80);
+            long quantity = 1 + random.nextInt(5);
+            index.recordSale(id, quantity);
+            popularity.merge(id, quantity, Long::sum);
+
+            String word = WORDS[random.nextInt(WORDS.length)];
+            String query = word.substring(0, 1 + random.nextInt(word.length()));
+            if (random.nextBoolean()) {
+                String other = WORDS[random.nextInt(WORDS.length)];
+                query += " " + other.substring(0, 1 + random.nextInt(3));
+            }
+            int limit = 1 + random.nextInt(8);
+            String[] terms = MenuSearchIndex.tokenize(query);
+            List<Long> expected = names.keySet().stream()
+                    .filter(candidate -> matches(MenuSearchIndex.tokenize(names.get(candidate)), terms))
+                    .map(popularity::get)
+                    .sorted(Comparator.reverseOrder())
+                    .limit(limit)
+                    .collect(Collectors.toList());
+            List<FoodItem> results = index.search(query, limit);
+            List<Long> actual = results.stream().map(item -> popularity.get(item.getId())).collect(Collectors.toList());
+            assertEquals(expected, actual, query);
+            for (FoodItem item : results) {
+                assertTrue(matches(MenuSearchIndex.tokenize(item.getName()), terms), query);
+            }
+        }
+    }
+
+    private static boolean matches(String[] tokens, String[] terms) {
+        for (String term : terms) {
+            boolean matched = false;
+            for (String token : tokens) {
+                matched |= token.startsWith(term);
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OrderJournalTest {
+    private static final long REGION_BYTES = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private Path journalPath;
+    private OrderRepository orderRepository;
+    private MenuCatalog menuCatalog;
+    private FoodItem soup;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        journalPath = directory.resolve("orders.journal");
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1);
+        orderRepository = new OrderRepository(pool);
+        menuCatalog = new MenuCatalog(pool);
+        soup = menuCatalog.addItem(new FoodItem(0, 7, "Soup", 4.5));
+    }
+
+    private OrderJournal openJournal() throws IOException {
+        return new OrderJournal(journalPath, REGION_BYTES, false, 10_000, 0, orderRepository, 0);
+    }
+
+    private Order newOrder(String customer) {
+        Order order = new Order();
+        order.addItem(soup, 2);
+        order.setCustomer(customer);
+        return order;
+    }
+
+    @Test
+    void replaysEventsWrittenBeforeACrash() throws IOException {
+        OrderJournal crashed = openJournal();
+        Order open = newOrder("alice");
+        Order delivered = newOrder("bob");
+        crashed.orderPlaced(open);
+        crashed.orderPlaced(delivered);
+        crashed.orderAccepted(open, new DeliveryPerson("courier"));
+        crashed.orderDelivered(delivered);
+
+        OrderJournal recovered = openJournal();
+        assertEquals(5, recovered.getReplayedEvents());
+        assertEquals(1, recovered.getLiveOrderCount());
+        Order next = newOrder("carol");
+        recovered.orderPlaced(next);
+        assertEquals(delivered.getId() + 1, next.getId());
+        recovered.close();
+        crashed.close();
+    }
+
+    @Test
+    void idsContinueAfterTheDatabase() throws IOException, SQLException {
+        Order saved = newOrder("alice");
+        orderRepository.save(saved);
+        OrderJournal journal = openJournal();
+        Order order = newOrder("bob");
+        journal.orderPlaced(order);
+        assertEquals(saved.getId() + 1, order.getId());
+        journal.close();
+    }
+
+    @Test
+    void checkpointWritesOrdersWithTheirMerchant() throws IOException, SQLException {
+        OrderJournal journal = openJournal();
+        Order order = newOrder("alice");
+        order.setIdempotencyKey("alice/key");
+        journal.orderPlaced(order);
+        journal.orderAccepted(order, null);
+        assertEquals(1, journal.getUncheckpointedCount());
+        assertTrue(journal.checkpoint());
+        assertEquals(0, journal.getUncheckpointedCount());
+
+        Order stored = orderRepository.findOrder(order.getId());
+        assertNotNull(stored);
+        assertEquals(7, stored.getMerchantId());
+        assertEquals(OrderStatus.ACCEPTED, stored.getStatus());
+        assertEquals(order.getCreatedAt(), stored.getCreatedAt());
+        assertEquals(2, stored.getCart().getQuantity(0));
+        assertEquals(1, orderRepository.recentCheckoutRequests(0, 10).size());
+        journal.close();
+    }
+
+    @Test
+    void restoresMerchantAndCustomerFromASnapshot() throws IOException {
+        OrderJournal journal = openJournal();
+        Order order = newOrder("alice");
+        journal.orderPlaced(order);
+        journal.close();
+
+        OrderJournal reopened = openJournal();
+        assertEquals(0, reopened.getReplayedEvents());
+        reopened.restore(menuCatalog, new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED));
+        Order restored = OrderManager.getOrder(order.getId());
+        assertEquals("alice", restored.getCustomer());
+        assertEquals(7, restored.getMerchantId());
+        assertEquals(order.getCreatedAt(), restored.getCreatedAt());
+        Order next = newOrder("bob");
+        reopened.orderPlaced(next);
+        assertEquals(order.getId() + 1, next.getId());
+        reopened.close();
+    }
+
+    @Test
+    void readsVersionOneSnapshots() throws IOException {
+        OrderJournal journal = openJournal();
+        journal.orderPlaced(newOrder("alice"));
+        journal.close();
+        Path snapshotPath = directory.resolve("orders.journal.snapshot");
+        ByteBuffer current = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        current.getInt();
+        long position = current.getLong();
+        long sequence = current.getLong();
+
+        ByteBuffer legacy = ByteBuffer.allocate(4 + 8 + 8 + 4 + 4 + 4);
+        legacy.putInt(0x464F5331);
+        legacy.putLong(position);
+        legacy.putLong(sequence);
+        legacy.putInt(42);
+        legacy.putInt(0);
+        CRC32 checksum = new CRC32();
+        checksum.update(legacy.array(), 0, legacy.position());
+        legacy.putInt((int) checksum.getValue());
+        Files.write(snapshotPath, legacy.array());
+
+        OrderJournal reopened = openJournal();
+        assertEquals(0, reopened.getLiveOrderCount());
+        Order next = newOrder("bob");
+        reopened.orderPlaced(next);
+        assertEquals(42, next.getId());
+        reopened.close();
+    }
+}
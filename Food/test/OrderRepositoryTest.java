@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OrderRepositoryTest {
+    @TempDir
+    Path directory;
+
+    private ConnectionPool pool;
+    private OrderRepository orderRepository;
+    private MenuCatalog menuCatalog;
+    private FoodItem soup;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        pool = new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1);
+        orderRepository = new OrderRepository(pool);
+        menuCatalog = new MenuCatalog(pool);
+        soup = menuCatalog.addItem(new FoodItem(0, 7, "Soup", 4.5));
+    }
+
+    private Order newOrder(String idempotencyKey) {
+        Order order = new Order();
+        order.addItem(soup, 1);
+        order.setIdempotencyKey(idempotencyKey);
+        return order;
+    }
+
+    @Test
+    void duplicateKeyReturnsTheOriginalOrder() throws SQLException {
+        Order original = newOrder("alice/1");
+        orderRepository.save(original);
+        Order retry = newOrder("alice/1");
+        Order other = newOrder("alice/2");
+        orderRepository.saveAll(Arrays.asList(retry, other));
+
+        assertEquals(0, retry.getId());
+        assertEquals(original.getId(), retry.getDuplicateOf().getId());
+        assertEquals(1, retry.getDuplicateOf().getCart().size());
+        assertNull(other.getDuplicateOf());
+        assertEquals(original.getId() + 1, other.getId());
+        assertEquals(original.getId() + 1, orderRepository.lastOrderId(0));
+    }
+
+    @Test
+    void duplicateKeyInOneBatchFailsTheBatch() throws SQLException {
+        assertThrows(SQLException.class, () -> orderRepository.saveAll(Arrays.asList(newOrder("alice/1"), newOrder("alice/1"))));
+        assertEquals(0, orderRepository.lastOrderId(0));
+    }
+
+    @Test
+    void recentCheckoutRequestsAreOldestFirstAndLimited() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            orderRepository.save(newOrder("alice/" + i));
+        }
+        List<OrderRepository.CheckoutRequest> requests = orderRepository.recentCheckoutRequests(0, 2);
+        assertEquals(2, requests.size());
+        assertEquals(requests.get(0).getOrderId() + 1, requests.get(1).getOrderId());
+        assertEquals("alice/2", requests.get(1).getKey());
+        assertNull(orderRepository.findOrder(requests.get(1).getOrderId() + 1));
+    }
+
+    @Test
+    void idsNeverSpillIntoTheNextShard() throws SQLException {
+        int last = ShardRouter.lastId(0);
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO orders (id, merchant_id, status, created_at) VALUES (" + last + ", 7, 'PLACED', 0)");
+        }
+        Order order = newOrder("alice/1");
+        assertThrows(SQLException.class, () -> orderRepository.save(order));
+        assertEquals(0, order.getId());
+        assertEquals(last, orderRepository.lastOrderId(0));
+
+        menuCatalog.addItem(new FoodItem(last, 7, "Bread", 1.5));
+        assertThrows(SQLException.class, () -> menuCatalog.addItem(new FoodItem(0, 7, "Salad", 6)));
+    }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PasswordHasherTest {
+    private final PasswordHasher hasher = new PasswordHasher(1000, 60);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void hashesAreSaltedAndVerify() {
+        String first = hasher.hash("secret");
+        String second = hasher.hash("secret");
+        assertNotEquals(first, second);
+        assertTrue(PasswordHasher.isHashed(first));
+        assertTrue(first.startsWith("pbkdf2$1000$"));
+        assertTrue(new PasswordHasher(1000, 0).verify(new User("alice", first, "user"), "secret"));
+        assertFalse(new PasswordHasher(1000, 0).verify(new User("alice", first, "user"), "Secret"));
+        assertFalse(hasher.verify(new User("alice", first, "user"), null));
+    }
+
+    @Test
+    void verifiesLegacyPlaintextAndAsksForARehash() {
+        assertTrue(hasher.verify(new User("alice", "secret", "user"), "secret"));
+        assertFalse(hasher.verify(new User("alice", "secret", "user"), "secrets"));
+        assertTrue(hasher.needsRehash("secret"));
+        assertTrue(hasher.needsRehash(new PasswordHasher(500).hash("secret")));
+        assertFalse(hasher.needsRehash(hasher.hash("secret")));
+    }
+
+    @Test
+    void verifiesAHashWithTheIterationsItWasStoredWith() {
+        String stored = new PasswordHasher(500, 0).hash("secret");
+        assertTrue(hasher.verify(new User("alice", stored, "user"), "secret"));
+    }
+
+    @Test
+    void repeatedLoginsUseTheVerifierUntilItExpires() throws InterruptedException {
+        PasswordHasher shortLived = new PasswordHasher(1000, 1);
+        User user = new User("alice", shortLived.hash("secret"), "user");
+        assertTrue(shortLived.verify(user, "secret"));
+        PasswordHasher.Verified verified = user.getVerified();
+        assertNotNull(verified);
+
+        assertTrue(shortLived.verify(user, "secret"));
+        assertSame(verified, user.getVerified());
+        assertFalse(shortLived.verify(user, "wrong"));
+        assertSame(verified, user.getVerified());
+
+        Thread.sleep(1100);
+        assertTrue(shortLived.verify(user, "secret"));
+        assertNotSame(verified, user.getVerified());
+    }
+
+    @Test
+    void verifierIsBoundToTheStoredHashAndTheProcessKey() {
+        User user = new User("alice", hasher.hash("secret"), "user");
+        assertTrue(hasher.verify(user, "secret"));
+
+        User changed = new User("alice", hasher.hash("other"), "user");
+        changed.setVerified(user.getVerified());
+        assertFalse(hasher.verify(changed, "secret"));
+
+        PasswordHasher restarted = new PasswordHasher(1000, 60);
+        User copied = new User("alice", user.getPassword(), "user");
+        copied.setVerified(user.getVerified());
+        assertTrue(restarted.verify(copied, "secret"));
+        assertNotSame(user.getVerified(), copied.getVerified());
+    }
+
+    @Test
+    void zeroTtlDisablesTheVerifier() {
+        PasswordHasher uncached = new PasswordHasher(1000, 0);
+        User user = new User("alice", uncached.hash("secret"), "user");
+        assertTrue(uncached.verify(user, "secret"));
+        assertNull(user.getVerified());
+    }
+
+    @Test
+    void loginUpgradesPlaintextPasswords() throws SQLException {
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1);
+        UserManager userManager = new UserManager(pool);
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO users (username, password, role) VALUES ('alice', 'secret', 'user')")) {
+            statement.executeUpdate();
+        }
+        userManager.loadUsersFromDatabase();
+        assertTrue(userManager.login("alice", "secret"));
+        String upgraded = userManager.getUser("alice").getPassword();
+        assertTrue(PasswordHasher.isHashed(upgraded));
+        assertTrue(userManager.login("alice", "secret"));
+        assertFalse(userManager.login("alice", "wrong"));
+        assertEquals(upgraded, userManager.getUser("alice").getPassword());
+    }
+}
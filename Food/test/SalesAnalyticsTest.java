@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SalesAnalyticsTest {
+    @TempDir
+    Path directory;
+
+    private ShardRouter shardRouter;
+    private SalesAnalytics analytics;
+
+    @BeforeEach
+    void setUp() {
+        shardRouter = new ShardRouter(new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 4, 1), 2,
+                "jdbc:sqlite:" + directory.resolve("database-shard%d.db"), 4, 1);
+        analytics = new SalesAnalytics(shardRouter, 168, 3600);
+    }
+
+    @AfterEach
+    void tearDown() {
+        analytics.close();
+        shardRouter.close();
+    }
+
+    private int merchantOn(int shard) {
+        int merchantId = 1;
+        while (shardRouter.shardOf(merchantId) != shard) {
+            merchantId++;
+        }
+        return merchantId;
+    }
+
+    private Order order(int itemId, int merchantId) {
+        Order order = new Order();
+        order.addItem(new FoodItem(itemId, merchantId, "Soup", 4.5), 2);
+        return order;
+    }
+
+    private void execute(int shard, String sql) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
+    private int count(int shard, String table) throws SQLException {
+        try (Connection connection = shardRouter.getShard(shard).getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    @Test
+    void aFailingShardDoesNotLoseTheOtherShardsChanges() throws SQLException {
+        execute(0, "ALTER TABLE sales_hourly RENAME TO sales_hourly_moved");
+        analytics.recordOrder(order(1, merchantOn(0)));
+        analytics.recordOrder(order(2, merchantOn(1)));
+
+        assertThrows(SQLException.class, analytics::checkpoint);
+        assertEquals(1, count(1, "sales_hourly"));
+        assertEquals(1, count(1, "item_sales"));
+        assertEquals(0, count(0, "item_sales"));
+
+        execute(0, "ALTER TABLE sales_hourly_moved RENAME TO sales_hourly");
+        analytics.checkpoint();
+        assertEquals(1, count(0, "sales_hourly"));
+        assertEquals(1, count(0, "item_sales"));
+        assertEquals(1, count(1, "sales_hourly"));
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+public class OrderingFixtures {
+    private static FoodItem[] menuItems(int count) {
+        FoodItem[] items = new FoodItem[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = new FoodItem(i + 1, "Item " + (i + 1), 1.0 + (i % 50) * 0.25);
+        }
+        return items;
+    }
+
+    private static Order fillOrder(FoodItem[] items) {
+        Order order = new Order();
+        for (FoodItem item : items) {
+            order.addItem(item, 2);
+        }
+        return order;
+    }
+
+    public static DoubleSupplier addItems(int cartSize) {
+        FoodItem[] items = menuItems(cartSize);
+        return () -> fillOrder(items).calculateTotal();
+    }
+
+    public static DoubleSupplier calculateTotal(int cartSize) {
+        Order order = fillOrder(menuItems(cartSize));
+        return order::calculateTotal;
+    }
+
+    public static Object login(int userCount) throws IOException, SQLException {
+        TempDatabase database = new TempDatabase();
+        String password = "secret";
+        String hash = new PasswordHasher().hash(password);
+        UserManager userManager = new UserManager(database.pool);
+        try (Connection connection = database.pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO users (username, password, role) VALUES (?, ?, 'user')")) {
+                for (int i = 0; i < userCount; i++) {
+                    statement.setString(1, "user" + i);
+                    statement.setString(2, hash);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+        userManager.loadUsersFromDatabase();
+        return database.with((BooleanSupplier) () ->
+                userManager.login("user" + ThreadLocalRandom.current().nextInt(userCount), password));
+    }
+
+    public static Object saveOrder(int cartSize) throws IOException, SQLException {
+        TempDatabase database = new TempDatabase();
+        OrderRepository repository = new OrderRepository(database.pool);
+        FoodItem[] items = menuItems(cartSize);
+        try (Connection connection = database.pool.getConnection()) {
+            connection.setAutoCommit(false);
+            for (FoodItem item : items) {
+                try (PreparedStatement statement = item.toPreparedStatement(connection, 0)) {
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+        }
+        return database.with((IntSupplier) () -> {
+            Order order = fillOrder(items);
+            try {
+                repository.save(order);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return order.getId();
+        });
+    }
+
+    public static Object saveFoodItem() throws IOException {
+        TempDatabase database = new TempDatabase();
+        MenuCatalog catalog = new MenuCatalog(database.pool);
+        AtomicInteger sequence = new AtomicInteger();
+        return database.with((IntSupplier) () -> {
+            try {
+                return catalog.addItem(new FoodItem("Dish " + sequence.incrementAndGet(), 9.99)).getId();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public static BooleanSupplier assignDelivery(int courierCount) {
+        CourierDispatcher dispatcher = new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED);
+        for (int i = 0; i < courierCount; i++) {
+            DeliveryPerson deliveryPerson = dispatcher.register(new DeliveryPerson("courier" + i));
+            deliveryPerson.setOnline(true);
+        }
+        return () -> {
+            Delivery delivery = new Delivery("benchmark", dispatcher);
+            DeliveryPerson deliveryPerson = dispatcher.assign(delivery);
+            if (deliveryPerson == null) {
+                return false;
+            }
+            dispatcher.completeDelivery(deliveryPerson);
+            return true;
+        };
+    }
+
+    public static BooleanSupplier assignNearestDelivery(int courierCount) {
+        CourierDispatcher dispatcher = new CourierDispatcher(DispatchPolicy.LEAST_RECENTLY_ASSIGNED);
+        for (int i = 0; i < courierCount; i++) {
+            DeliveryPerson deliveryPerson = dispatcher.register(new DeliveryPerson("courier" + i));
+            deliveryPerson.setLocation(randomCityPoint());
+            deliveryPerson.setOnline(true);
+        }
+        return () -> {
+            GeoPoint destination = randomCityPoint();
+            Delivery delivery = new Delivery("benchmark", destination, dispatcher);
+            DeliveryPerson deliveryPerson = dispatcher.assign(delivery);
+            if (deliveryPerson == null) {
+                return false;
+            }
+            dispatcher.completeDelivery(deliveryPerson);
+            deliveryPerson.setLocation(destination);
+            return true;
+        };
+    }
+
+    private static GeoPoint randomCityPoint() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new GeoPoint(51.35 + random.nextDouble() * 0.3, -0.45 + random.nextDouble() * 0.45);
+    }
+
+    public static class TempDatabase implements AutoCloseable, Supplier<Object> {
+        private final Path directory;
+        private final ConnectionPool pool;
+        private Runnable beforeClose = () -> { };
+        private Object target;
+
+        TempDatabase() throws IOException {
+            directory = Files.createTempDirectory("food-bench");
+            pool = new ConnectionPool("jdbc:sqlite:" + directory.resolve("database.db"), 8, 2);
+        }
+
+        void onClose(Runnable action) {
+            beforeClose = action;
+        }
+
+        Object with(Object target) {
+            this.target = target;
+            return this;
+        }
+
+        @Override
+        public Object get() {
+            return target;
+        }
+
+        @Override
+        public void close() throws IOException {
+            beforeClose.run();
+            pool.close();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
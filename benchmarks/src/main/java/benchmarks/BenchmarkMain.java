@@ -0,0 +1,25 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String threads = System.getProperty("bench.threads", "1,4,16");
+        String resultDirectory = System.getProperty("bench.resultDir", ".");
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (String threadCount : threads.split(",")) {
+            int count = Integer.parseInt(threadCount.trim());
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(count)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultDirectory + "/jmh-result-t" + count + ".json")
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartBenchmark {
+    @Param({"1", "10", "100"})
+    public int cartSize;
+
+    private DoubleSupplier addItems;
+    private DoubleSupplier calculateTotal;
+
+    @Setup
+    public void setUp() throws Exception {
+        addItems = Fixtures.target(Fixtures.create("addItems", cartSize));
+        calculateTotal = Fixtures.target(Fixtures.create("calculateTotal", cartSize));
+    }
+
+    @Benchmark
+    public double addItemsAndTotal() {
+        return addItems.getAsDouble();
+    }
+
+    @Benchmark
+    public double calculateTotal() {
+        return calculateTotal.getAsDouble();
+    }
+}
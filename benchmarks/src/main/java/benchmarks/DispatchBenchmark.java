@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int courierCount;
+
+    private BooleanSupplier assignDelivery;
+    private BooleanSupplier assignNearestDelivery;
+
+    @Setup
+    public void setUp() throws Exception {
+        assignDelivery = Fixtures.target(Fixtures.create("assignDelivery", courierCount));
+        assignNearestDelivery = Fixtures.target(Fixtures.create("assignNearestDelivery", courierCount));
+    }
+
+    @Benchmark
+    public boolean assignAndComplete() {
+        return assignDelivery.getAsBoolean();
+    }
+
+    @Benchmark
+    public boolean assignNearestAndComplete() {
+        return assignNearestDelivery.getAsBoolean();
+    }
+}
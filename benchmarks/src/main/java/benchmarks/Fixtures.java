@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.Supplier;
+
+final class Fixtures {
+    private static final String FIXTURES_CLASS = "OrderingFixtures";
+
+    private Fixtures() {
+    }
+
+    static Object create(String name, Object... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = args[i] instanceof Integer ? int.class : args[i].getClass();
+        }
+        Method factory = Class.forName(FIXTURES_CLASS).getMethod(name, types);
+        try {
+            return factory.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T target(Object fixture) {
+        return (T) (fixture instanceof Supplier ? ((Supplier<?>) fixture).get() : fixture);
+    }
+
+    static void close(Object fixture) throws Exception {
+        if (fixture instanceof AutoCloseable) {
+            ((AutoCloseable) fixture).close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dfood.auth.iterations=1000")
+public class LoginBenchmark {
+    @Param({"1000", "100000"})
+    public int userCount;
+
+    private Object fixture;
+    private BooleanSupplier login;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("login", userCount);
+        login = Fixtures.target(fixture);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.close(fixture);
+    }
+
+    @Benchmark
+    public boolean login() {
+        return login.getAsBoolean();
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"1", "10", "50"})
+    public int cartSize;
+
+    private Object orderFixture;
+    private Object foodItemFixture;
+    private IntSupplier saveOrder;
+    private IntSupplier saveFoodItem;
+
+    @Setup
+    public void setUp() throws Exception {
+        orderFixture = Fixtures.create("saveOrder", cartSize);
+        foodItemFixture = Fixtures.create("saveFoodItem");
+        saveOrder = Fixtures.target(orderFixture);
+        saveFoodItem = Fixtures.target(foodItemFixture);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.close(orderFixture);
+        Fixtures.close(foodItemFixture);
+    }
+
+    @Benchmark
+    public int saveOrderToDatabase() {
+        return saveOrder.getAsInt();
+    }
+
+    @Benchmark
+    public int saveFoodItemToDatabase() {
+        return saveFoodItem.getAsInt();
+    }
+}